@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/**
+ * BaselineStore is a remote source of baseline test runs shared by many registries.
+ * Files are fetched on demand, one file at a time, so a registry only pulls the test
+ * results and screenshots it actually compares against.
+ */
+public interface BaselineStore {
+
+    /**
+     * Get version of remote test history, changes whenever remote test history changes
+     * @return test history version, or -1 if remote has no test history
+     * @throws IOException throws this exception when fail to access remote store
+     */
+    public long getTestHistoryVersion() throws IOException;
+
+    /**
+     * Open remote test history journal
+     * @return stream of test history journal, or null if remote has no test history
+     * @throws IOException throws this exception when fail to access remote store
+     */
+    public InputStream openTestHistory() throws IOException;
+
+    /**
+     * Fetch a file of a remote test run
+     * @param testRunId test run id
+     * @param relativePath file path relative to test run folder, '/' separated
+     * @param target local file to write
+     * @return true if file was fetched, false if remote test run doesn't have the file
+     * @throws IOException throws this exception when fail to access remote store
+     */
+    public boolean fetch(String testRunId, String relativePath, Path target) throws IOException;
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * BaselineStoreCache is a local read through cache of a baseline store.
+ * Remote test history is copied to the cache and refreshed periodically, test result of a
+ * remote test run is fetched when the test run is picked as baseline, and screenshots are
+ * fetched one by one when they are compared.
+ * All public methods are thread safe.
+ */
+public class BaselineStoreCache {
+
+    private static final Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    private static final long HISTORY_REFRESH_MILLIS = 60 * 1000L;
+
+    private final BaselineStore baselineStore;
+    private final Path cacheRoot;
+    private final TestHistoryIndex testHistoryIndex;
+    private long historyVersion = -1;
+    private long historyCheckTime = 0;
+
+    public BaselineStoreCache(BaselineStore baselineStore, Path cacheRoot){
+        this.baselineStore = baselineStore;
+        this.cacheRoot = cacheRoot;
+        this.testHistoryIndex = new TestHistoryIndex(cacheRoot.resolve(Registry.TESTADVISOR_INDEX_FOLDER));
+    }
+
+    public BaselineStore getBaselineStore(){
+        return baselineStore;
+    }
+
+    /**
+     * Find the latest remote test run before the given time in which the test case passed
+     * @param testCaseName test case full name
+     * @param before test run time, only test runs created before this time are considered
+     * @return history entry of the remote LKG test run, or null if not found
+     * @throws IOException throws this exception when fail to access remote test history
+     */
+    public TestHistoryIndex.HistoryEntry findLastPassed(String testCaseName, Instant before) throws IOException{
+        refreshTestHistory();
+        return testHistoryIndex.findLastPassed(testCaseName, before);
+    }
+
+    /**
+     * Get local folder of a remote test run, test result is fetched if it's not cached yet
+     * @param testRunId test run id
+     * @return path to cached test run folder, or null if remote doesn't have the test run
+     * @throws IOException throws this exception when fail to fetch the test run
+     */
+    public synchronized Path getTestRun(String testRunId) throws IOException{
+        Path testRun = cacheRoot.resolve(testRunId);
+        if (Files.exists(testRun.resolve(Registry.TESTADVISOR_TEST_RESULT)))
+            return testRun;
+
+        LOGGER.log(Level.INFO, "Fetch baseline test run {0}", testRunId);
+        Files.createDirectories(testRun);
+        if (!fetch(testRunId, Registry.PORTAL_RECORD_FILENAME, testRun.resolve(Registry.PORTAL_RECORD_FILENAME))){
+            LOGGER.log(Level.FINE, "Baseline test run {0} has no portal record", testRunId);
+        }
+        // test result is fetched last, it marks the test run as cached
+        return fetch(testRunId, Registry.TESTADVISOR_TEST_RESULT, testRun.resolve(Registry.TESTADVISOR_TEST_RESULT)) ? testRun : null;
+    }
+
+    /**
+     * Get local folder of a remote test run which was already cached
+     * @param testRunId test run id
+     * @return path to cached test run folder, or null if the test run is not cached
+     */
+    public Path getCachedTestRun(String testRunId){
+        Path testRun = cacheRoot.resolve(testRunId);
+        return Files.exists(testRun.resolve(Registry.TESTADVISOR_TEST_RESULT)) ? testRun : null;
+    }
+
+    /**
+     * Get a file of a cached remote test run, the file is fetched if it's not cached yet
+     * @param testRun path to cached test run folder
+     * @param relativePath file path relative to test run folder
+     * @return path to cached file, or null if remote doesn't have the file
+     * @throws IOException throws this exception when fail to fetch the file
+     */
+    public synchronized Path getFile(Path testRun, String relativePath) throws IOException{
+        Path file = testRun.resolve(relativePath).normalize();
+        if (!file.startsWith(testRun)) return null;
+        if (Files.exists(file)) return file;
+
+        Files.createDirectories(file.getParent());
+        return fetch(testRun.getFileName().toString(), relativePath.replace(file.getFileSystem().getSeparator(), "/"), file)
+                ? file : null;
+    }
+
+    /**
+     * Copy remote test history to cache if it was changed, check at most once a minute
+     */
+    private synchronized void refreshTestHistory() throws IOException{
+        long now = System.currentTimeMillis();
+        if (now - historyCheckTime < HISTORY_REFRESH_MILLIS) return;
+        historyCheckTime = now;
+
+        long version = baselineStore.getTestHistoryVersion();
+        if (version == historyVersion) return;
+        Path historyFile = cacheRoot.resolve(Registry.TESTADVISOR_INDEX_FOLDER).resolve(TestHistoryIndex.HISTORY_FILENAME);
+        Files.createDirectories(historyFile.getParent());
+        try(InputStream is = baselineStore.openTestHistory()){
+            if (is == null)
+                Files.deleteIfExists(historyFile);
+            else
+                RunArchive.copy(is, historyFile);
+        }
+        historyVersion = version;
+    }
+
+    private boolean fetch(String testRunId, String relativePath, Path target) throws IOException{
+        Path tempFile = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try{
+            if (!baselineStore.fetch(testRunId, relativePath, tempFile))
+                return false;
+            RunArchive.replace(tempFile, target);
+            return true;
+        }finally{
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+}
@@ -14,12 +14,22 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import com.salesforce.cte.adapter.TestAdvisorResultAdapter;
 import com.salesforce.cte.adapter.TestNGAdapter;
@@ -47,6 +57,9 @@ public class CLI {
 
     private static final String PORTAL_UPLOAD_ENDPOINT_V1 = "services/apexrest/v1/BSTRun/";
     private static final String VERSION_PROPERTY = "testadvisor.cli.version";
+    //test result is parsed by both the adapter and the baseline lookups
+    private static final int PARSED_RESULT_SIZE_FACTOR = 8;
+    private static final int IMAGES_PER_COMPARISON = 3;
 
     private String command; //testadvisor cli command, expect to be upper case
     public String getCommand(){
@@ -77,18 +90,38 @@ public class CLI {
         LOGGER.log(Level.INFO, "CLI Starts...");
         CLI cli = new CLI(args);
         if (cli.getCommand()==null) return;
-        switch (cli.getCommand()){
-            case "SETUP":
-                cli.setup();
-                break;
-            case "PROCESS":
-                cli.process();             
-                break;
-            case "UPLOAD":
-                cli.upload();
-                break;
-            default:
-                LOGGER.log(Level.WARNING, "Unknow command:{0}",cli.getCommand());
+        try{
+            switch (cli.getCommand()){
+                case "SETUP":
+                    cli.setup();
+                    break;
+                case "PROCESS":
+                    cli.process();             
+                    break;
+                case "UPLOAD":
+                    cli.upload();
+                    break;
+                case "MIGRATE":
+                    cli.migrate();
+                    break;
+                case "COMPACT":
+                    cli.compact();
+                    break;
+                case "EXPORT":
+                    cli.exportBundle();
+                    break;
+                case "IMPORT":
+                    cli.importBundle();
+                    break;
+                case "WATCH":
+                    cli.watch();
+                    break;
+                default:
+                    LOGGER.log(Level.WARNING, "Unknow command:{0}",cli.getCommand());
+            }
+        }finally{
+            //stop background screenshot threads
+            cli.processor.close();
         }
         LOGGER.log(Level.INFO, "CLI Completed.");
     }
@@ -133,7 +166,7 @@ public class CLI {
         options.addOption(Option.builder("n").longOpt("name").hasArg().argName("result file name")
                                 .desc("Test result file name.").build());
         options.addOption(Option.builder("c").longOpt("cmd").hasArg().argName("COMMAND")
-                                .desc("TestAdvisor-CLI command, Setup|Process|Upload|Download|Clean.").build());
+                                .desc("TestAdvisor-CLI command, Setup|Process|Watch|Upload|Migrate|Compact|Export|Import|Download|Clean.").build());
         options.addOption(Option.builder("f").longOpt("force")
                                 .desc("Force to run current command while ignore TestAdvisor registry state.").build());
 
@@ -188,21 +221,243 @@ public class CLI {
     public void process() throws IOException, ProcessException {
         //process test results and save the signal file
         LOGGER.log(Level.INFO,"Process test result");
-        TestRunSignal testRunSignal = registry.getTestRunProperties();
-        
         if (resultFileName == null || resultFileName.isEmpty()){
-            for(Path path : registry.getUnprocessedTestRunList()){
-                LOGGER.log(Level.INFO,"Processing {0}", path);
-                testRunSignal.testRunId = registry.getTestRunId(path);
-                processTestAdvisorFile(registry.getTestAdvisorTestResultFile(path),testRunSignal);
-                registry.saveTestRunSignal(testRunSignal);
+            List<Path> unprocessedList = registry.getUnprocessedTestRunList();
+            if (Math.min(Configuration.getProcessRuns(), unprocessedList.size()) <= 1){
+                for(Path unprocessed : unprocessedList){
+                    processTestRun(unprocessed);
+                }
+            }else{
+                processTestRuns(unprocessedList);
             }
         }else{
+            TestRunSignal testRunSignal = registry.getTestRunProperties();
             LOGGER.log(Level.INFO,"Processing {0}", resultFileName);
             testRunSignal.testRunId = registry.getTestRunId(resultFileName);
             processFile(resultFileName, testRunSignal);
             registry.saveTestRunSignal(testRunSignal);
         }
+
+        //move new test runs to date shard folders
+        if (registry.isShardedLayout())
+            registry.migrateToShardedLayout();
+    }
+
+    /**
+     * Watch registry and process every new test run as soon as its test result is written
+     * Test runs created before watching are processed first. This command runs until the
+     * process is stopped.
+     * @throws IOException
+     * This exception is thrown when it failed to watch registry
+     * @throws ProcessException
+     * This exception is thrown when it fails to process test result
+     * @throws InterruptedException
+     * This exception is thrown when watching was interrupted
+     */
+    public void watch() throws IOException, ProcessException, InterruptedException {
+        LOGGER.log(Level.INFO,"Watch registry {0}", registry.getRegistryRoot());
+        try(RegistryWatcher watcher = new RegistryWatcher(registry, Configuration.getWatchSettleTime())){
+            watcher.start();
+            process();
+            watcher.watch(testRun -> {
+                registry.getAllTestRuns();
+                processTestRun(testRun);
+                if (registry.isShardedLayout())
+                    registry.migrateToShardedLayout();
+            });
+        }
+    }
+
+    /**
+     * Process test runs in parallel
+     * The number of test runs processed at the same time is bounded by testadvisor.processruns
+     * and by testadvisor.processmemory, a claimed test run only starts when its estimated memory
+     * fits into the memory left by test runs in process.
+     * @param unprocessedList list of unprocessed test runs
+     * @throws IOException
+     * This exception is thrown when it failed to access registry
+     * @throws ProcessException
+     * This exception is thrown when it fails to process test result
+     */
+    private void processTestRuns(List<Path> unprocessedList) throws IOException, ProcessException {
+        int threads = Math.min(Configuration.getProcessRuns(), unprocessedList.size());
+        //memory budget is counted in KB, so it fits into semaphore permits
+        int budget = (int) Math.min(Integer.MAX_VALUE, Configuration.getProcessMemory() / 1024);
+        Semaphore memoryBudget = new Semaphore(budget, true);
+        LOGGER.log(Level.INFO,"Process {0} test runs with {1} threads", new Object[]{unprocessedList.size(), threads});
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try{
+            List<Future<Void>> futures = new ArrayList<>();
+            for(Path unprocessed : unprocessedList){
+                futures.add(executor.submit(() -> {
+                    Path path = claimTestRun(unprocessed);
+                    if (path == null)
+                        return null;
+                    try{
+                        //a test run larger than the whole budget is processed alone
+                        int permits = (int) Math.min(budget, estimateProcessMemory(path) / 1024);
+                        memoryBudget.acquire(permits);
+                        try{
+                            processClaimedTestRun(path);
+                        }finally{
+                            memoryBudget.release(permits);
+                        }
+                    }finally{
+                        registry.releaseTestRun(path);
+                    }
+                    return null;
+                }));
+            }
+            Exception failure = null;
+            for(Future<Void> future : futures){
+                try{
+                    future.get();
+                }catch(InterruptedException ex){
+                    Thread.currentThread().interrupt();
+                    throw new ProcessException(ex);
+                }catch(ExecutionException ex){
+                    LOGGER.log(Level.WARNING, "Failed to process test run {0}", ex.getCause().toString());
+                    if (failure == null)
+                        failure = ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+                }
+            }
+            if (failure instanceof IOException) throw (IOException) failure;
+            if (failure instanceof ProcessException) throw (ProcessException) failure;
+            if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+            if (failure != null) throw new ProcessException(failure);
+        }finally{
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Estimate memory needed to process a test run
+     * Parsed test results take a few times the size of the result file, and every test case
+     * thread may hold a baseline, a current and a diff image at the same time, each as large as
+     * the largest screenshot of the test run. Screenshot sizes are read from PNG headers.
+     * @param testRun path to test run
+     * @return estimated memory in bytes
+     * @throws IOException
+     * This exception is thrown when it failed to access test run folder
+     */
+    static long estimateProcessMemory(Path testRun) throws IOException {
+        Path resultFile = testRun.resolve(Registry.TESTADVISOR_TEST_RESULT);
+        long resultSize = Files.exists(resultFile) ? Files.size(resultFile) : 0;
+        List<Path> screenshots;
+        try(Stream<Path> pathStream = Files.walk(testRun)){
+            screenshots = pathStream.filter(Files::isRegularFile)
+                                    .filter(path -> path.getFileName().toString().toLowerCase().endsWith(".png"))
+                                    .collect(Collectors.toList());
+        }
+        long maxDecodedSize = 0;
+        for(Path screenshot : screenshots){
+            try{
+                maxDecodedSize = Math.max(maxDecodedSize, ScreenshotManager.getDecodedSize(screenshot));
+            }catch(IOException ex){
+                LOGGER.log(Level.FINE, "Failed to read screenshot header {0}", ex.toString());
+            }
+        }
+        long comparisons = Math.min(screenshots.size(), Configuration.getProcessThreads());
+        return resultSize * PARSED_RESULT_SIZE_FACTOR + comparisons * IMAGES_PER_COMPARISON * maxDecodedSize;
+    }
+
+    /**
+     * Process a single unprocessed test run in registry
+     * The test run is skipped if it was claimed or processed by another CLI process sharing the registry.
+     * @param unprocessed path to test run
+     * @throws IOException
+     * This exception is thrown when it failed to access registry
+     * @throws ProcessException
+     * This exception is thrown when it fails to process test result
+     */
+    private void processTestRun(Path unprocessed) throws IOException, ProcessException {
+        Path path = claimTestRun(unprocessed);
+        if (path == null)
+            return;
+        try{
+            processClaimedTestRun(path);
+        }finally{
+            registry.releaseTestRun(path);
+        }
+    }
+
+    /**
+     * Claim an unprocessed test run, so other CLI processes sharing the registry skip it
+     * @param unprocessed path to test run
+     * @return current path to test run, or null if it was claimed or processed by another process
+     * @throws IOException
+     * This exception is thrown when it failed to access registry
+     */
+    private Path claimTestRun(Path unprocessed) throws IOException {
+        Path path = registry.claimTestRun(unprocessed);
+        if (path == null)
+            LOGGER.log(Level.INFO,"Skip {0}, claimed or processed by another process", unprocessed);
+        return path;
+    }
+
+    /**
+     * Process a test run claimed by this process
+     * @param path path to test run
+     * @throws IOException
+     * This exception is thrown when it failed to access registry
+     * @throws ProcessException
+     * This exception is thrown when it fails to process test result
+     */
+    private void processClaimedTestRun(Path path) throws IOException, ProcessException {
+        LOGGER.log(Level.INFO,"Processing {0}", path);
+        TestRunSignal testRunSignal = registry.getTestRunProperties();
+        testRunSignal.testRunId = registry.getTestRunId(path);
+        processTestAdvisorFile(registry.getTestAdvisorTestResultFile(path),testRunSignal);
+        registry.saveTestRunSignal(testRunSignal);
+        if (Configuration.getIsScreenshotStoreEnabled())
+            registry.getScreenshotStore().addTestRun(registry, path);
+    }
+
+    /**
+     * Migrate registry to date sharded layout
+     * @throws IOException
+     * This exception is thrown when it failed to move test runs
+     */
+    public void migrate() throws IOException {
+        LOGGER.log(Level.INFO,"Migrate registry to sharded layout");
+        int count = registry.migrateToShardedLayout();
+        LOGGER.log(Level.INFO,"Moved {0} test runs", count);
+    }
+
+    /**
+     * Compact registry by moving old test runs into archive based on retention policy
+     * @throws IOException
+     * This exception is thrown when it failed to archive test runs
+     */
+    public void compact() throws IOException {
+        LOGGER.log(Level.INFO,"Compact registry");
+        int count = registry.compactTestRuns();
+        LOGGER.log(Level.INFO,"Archived {0} test runs", count);
+    }
+
+    /**
+     * Export baseline test runs to a registry bundle, bundle file name is set by name option
+     * @throws IOException
+     * This exception is thrown when it failed to write registry bundle
+     */
+    public void exportBundle() throws IOException {
+        Path bundleFile = Paths.get(resultFileName == null || resultFileName.isEmpty() ? RegistryBundle.DEFAULT_BUNDLE_FILENAME : resultFileName);
+        LOGGER.log(Level.INFO,"Export registry bundle {0}", bundleFile);
+        int count = new RegistryBundle(registry).exportBundle(bundleFile);
+        LOGGER.log(Level.INFO,"Exported {0} test runs", count);
+    }
+
+    /**
+     * Import baseline test runs from a registry bundle, bundle file name is set by name option
+     * @throws IOException
+     * This exception is thrown when it failed to read registry bundle
+     */
+    public void importBundle() throws IOException {
+        Path bundleFile = Paths.get(resultFileName == null || resultFileName.isEmpty() ? RegistryBundle.DEFAULT_BUNDLE_FILENAME : resultFileName);
+        LOGGER.log(Level.INFO,"Import registry bundle {0}", bundleFile);
+        int count = new RegistryBundle(registry).importBundle(bundleFile);
+        LOGGER.log(Level.INFO,"Imported {0} test runs", count);
     }
 
     /**
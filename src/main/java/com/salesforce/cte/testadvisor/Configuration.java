@@ -16,6 +16,8 @@ import java.util.logging.Logger;
  */
 public class Configuration {
     private static final String FALSE = "false";
+    public static final String IMAGE_COMPARISON_ENGINE = "imagecomparison";
+    public static final String RASTER_COMPARISON_ENGINE = "raster";
 
     private static final Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
     
@@ -29,6 +31,23 @@ public class Configuration {
     private static final String SCREENSHOT_MIN_DIFF_AREA_SIZE_PROPERTY = "testadvisor.screenshotmindiffareasize";
     private static final String SCREENSHOT_MIN_DIFF_RATIO_PROPERTY = "testadvisor.screenshotmindiffratio";
     private static final String UPLOAD_ALL_CONF_TEST_PROPERTY = "testadvisor.uploadallconfigurationtest";
+    private static final String RESULT_CACHE_SIZE_PROPERTY = "testadvisor.resultcachesize";
+    private static final String SCREENSHOT_STORE_PROPERTY = "testadvisor.screenshotstore";
+    private static final String RETENTION_MAX_RUNS_PROPERTY = "testadvisor.retentionmaxruns";
+    private static final String RETENTION_MAX_DAYS_PROPERTY = "testadvisor.retentionmaxdays";
+    private static final String BASELINE_STORE_PROPERTY = "testadvisor.baselinestore";
+    private static final String LEASE_TIMEOUT_PROPERTY = "testadvisor.leasetimeout";
+    private static final String WATCH_SETTLE_TIME_PROPERTY = "testadvisor.watchsettletime";
+    private static final String PROCESS_THREADS_PROPERTY = "testadvisor.processthreads";
+    private static final String PROCESS_RUNS_PROPERTY = "testadvisor.processruns";
+    private static final String PROCESS_MEMORY_PROPERTY = "testadvisor.processmemory";
+    private static final String LEARNED_MASK_PROPERTY = "testadvisor.learnedmask";
+    private static final String IMAGE_CACHE_SIZE_PROPERTY = "testadvisor.imagecachesize";
+    private static final String PERCEPTUAL_HASH_THRESHOLD_PROPERTY = "testadvisor.perceptualhashthreshold";
+    private static final String COMPARISON_ENGINE_PROPERTY = "testadvisor.comparisonengine";
+    private static final String COMPARISON_THREADS_PROPERTY = "testadvisor.comparisonthreads";
+    private static final String PYRAMID_COMPARISON_PROPERTY = "testadvisor.pyramidcomparison";
+    private static final String PREFETCH_IMAGES_PROPERTY = "testadvisor.prefetchimages";
 
     //private constructor to prevent instance
     private Configuration() {}
@@ -92,4 +111,256 @@ public class Configuration {
         return Boolean.parseBoolean(System.getProperty(UPLOAD_ALL_CONF_TEST_PROPERTY, FALSE));
     }
 
+    /**
+     * Memory budget of parsed test result cache
+     * @return
+     * cache size in bytes, system property is defined in MB
+     * default to a quarter of max heap size, up to 256 MB
+     */
+    public static long getResultCacheSize(){
+        long defaultSize = Math.min(256L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 4);
+        String value = System.getProperty(RESULT_CACHE_SIZE_PROPERTY);
+        if (value == null)
+            return defaultSize;
+        try{
+            return Long.parseLong(value) * 1024 * 1024;
+        }catch(Exception ex){
+            LOGGER.log(Level.WARNING, "Invalid system property testadvisor.resultcachesize {0}", value);
+            return defaultSize;
+        }
+    }
+
+    /**
+     * If screenshots of processed test runs are saved in content addressed screenshot store
+     * @return
+     * false, default value, every test run keeps its own screenshots
+     * true, identical screenshots are shared by hard links and detected by content hash
+     */
+    public static boolean getIsScreenshotStoreEnabled(){
+        return Boolean.parseBoolean(System.getProperty(SCREENSHOT_STORE_PROPERTY, FALSE));
+    }
+
+    /**
+     * Number of latest test runs kept in registry when compacting registry
+     * @return
+     * 0, default value, no limit
+     */
+    public static int getRetentionMaxRuns(){
+        try{
+            return Math.max(0, Integer.parseInt(System.getProperty(RETENTION_MAX_RUNS_PROPERTY, "0")));
+        }catch(Exception ex){
+            LOGGER.log(Level.WARNING, "Invalid system property testadvisor.retentionmaxruns {0}",
+                System.getProperty(RETENTION_MAX_RUNS_PROPERTY));
+            return 0;
+        }
+    }
+
+    /**
+     * Test runs created in this number of days are kept in registry when compacting registry
+     * @return
+     * 0, default value, no limit
+     */
+    public static int getRetentionMaxDays(){
+        try{
+            return Math.max(0, Integer.parseInt(System.getProperty(RETENTION_MAX_DAYS_PROPERTY, "0")));
+        }catch(Exception ex){
+            LOGGER.log(Level.WARNING, "Invalid system property testadvisor.retentionmaxdays {0}",
+                System.getProperty(RETENTION_MAX_DAYS_PROPERTY));
+            return 0;
+        }
+    }
+
+    /**
+     * Shared directory of remote baseline store, baselines are fetched from it on demand
+     * when no baseline is found in local registry
+     * @return
+     * empty string, default value, remote baseline store is disabled
+     */
+    public static String getBaselineStorePath(){
+        return System.getProperty(BASELINE_STORE_PROPERTY, "").trim();
+    }
+
+    /**
+     * Time after which a test run lease which was not renewed is considered abandoned
+     * @return
+     * lease timeout in milliseconds, system property is defined in seconds
+     * default to 600 seconds
+     */
+    public static long getLeaseTimeout(){
+        try{
+            return Math.max(1, Long.parseLong(System.getProperty(LEASE_TIMEOUT_PROPERTY, "600"))) * 1000;
+        }catch(Exception ex){
+            LOGGER.log(Level.WARNING, "Invalid system property testadvisor.leasetimeout {0}",
+                System.getProperty(LEASE_TIMEOUT_PROPERTY));
+            return 600 * 1000L;
+        }
+    }
+
+    /**
+     * Time a test result file must stay unchanged before watch command processes its test run
+     * @return
+     * settle time in milliseconds, default to 2000
+     */
+    public static long getWatchSettleTime(){
+        try{
+            return Math.max(0, Long.parseLong(System.getProperty(WATCH_SETTLE_TIME_PROPERTY, "2000")));
+        }catch(Exception ex){
+            LOGGER.log(Level.WARNING, "Invalid system property testadvisor.watchsettletime {0}",
+                System.getProperty(WATCH_SETTLE_TIME_PROPERTY));
+            return 2000;
+        }
+    }
+
+    /**
+     * Number of threads to process test cases of a test run
+     * @return
+     * 1, default value, test cases are processed one by one
+     */
+    public static int getProcessThreads(){
+        try{
+            return Math.max(1, Integer.parseInt(System.getProperty(PROCESS_THREADS_PROPERTY, "1")));
+        }catch(Exception ex){
+            LOGGER.log(Level.WARNING, "Invalid system property testadvisor.processthreads {0}",
+                System.getProperty(PROCESS_THREADS_PROPERTY));
+            return 1;
+        }
+    }
+
+    /**
+     * Number of test runs processed at the same time by process command
+     * @return
+     * 1, default value, test runs are processed one by one
+     */
+    public static int getProcessRuns(){
+        try{
+            return Math.max(1, Integer.parseInt(System.getProperty(PROCESS_RUNS_PROPERTY, "1")));
+        }catch(Exception ex){
+            LOGGER.log(Level.WARNING, "Invalid system property testadvisor.processruns {0}",
+                System.getProperty(PROCESS_RUNS_PROPERTY));
+            return 1;
+        }
+    }
+
+    /**
+     * Memory budget shared by test runs processed at the same time
+     * @return
+     * budget in bytes, system property is defined in MB
+     * default to three quarters of max heap size less decoded image cache and test result cache,
+     * at least an eighth of max heap size
+     */
+    public static long getProcessMemory(){
+        long maxMemory = Runtime.getRuntime().maxMemory();
+        long defaultSize = Math.max(maxMemory / 8,
+                            maxMemory / 4 * 3 - Math.max(0, getImageCacheSize()) - Math.max(0, getResultCacheSize()));
+        String value = System.getProperty(PROCESS_MEMORY_PROPERTY);
+        if (value == null)
+            return defaultSize;
+        try{
+            return Long.parseLong(value) * 1024 * 1024;
+        }catch(Exception ex){
+            LOGGER.log(Level.WARNING, "Invalid system property testadvisor.processmemory {0}", value);
+            return defaultSize;
+        }
+    }
+
+    /**
+     * If screenshot areas to exclude from comparison are learned from test history
+     * @return
+     * false, default value, excluded areas are found by comparing current test run with the baseline of its baseline
+     * true, excluded areas are volatile areas learned from all processed test runs
+     */
+    public static boolean getIsLearnedMaskEnabled(){
+        return Boolean.parseBoolean(System.getProperty(LEARNED_MASK_PROPERTY, FALSE));
+    }
+
+    /**
+     * Memory budget of decoded screenshots kept in memory for reuse
+     * @return
+     * budget in bytes, system property is defined in MB, 0 to disable the cache
+     * default to a quarter of max heap size
+     */
+    public static long getImageCacheSize(){
+        long defaultSize = Runtime.getRuntime().maxMemory() / 4;
+        String value = System.getProperty(IMAGE_CACHE_SIZE_PROPERTY);
+        if (value == null)
+            return defaultSize;
+        try{
+            return Long.parseLong(value) * 1024 * 1024;
+        }catch(Exception ex){
+            LOGGER.log(Level.WARNING, "Invalid system property testadvisor.imagecachesize {0}", value);
+            return defaultSize;
+        }
+    }
+
+    /**
+     * Max hamming distance of perceptual hashes of 2 screenshots to skip pixel comparison
+     * @return
+     * -1, default value, perceptual hash is disabled and screenshots are always compared
+     * 0, only screenshots with the same perceptual hash are skipped
+     * 1 to 64, screenshots with up to this number of different hash bits are skipped
+     */
+    public static int getPerceptualHashThreshold(){
+        try{
+            return Integer.parseInt(System.getProperty(PERCEPTUAL_HASH_THRESHOLD_PROPERTY, "-1"));
+        }catch(Exception ex){
+            LOGGER.log(Level.WARNING, "Invalid system property testadvisor.perceptualhashthreshold {0}",
+                System.getProperty(PERCEPTUAL_HASH_THRESHOLD_PROPERTY));
+            return -1;
+        }
+    }
+
+    /**
+     * Engine to compare screenshots
+     * @return
+     * imagecomparison, default value, screenshots are compared by image comparison library
+     * raster, screenshots are compared on their backing pixel arrays by RasterComparison
+     */
+    public static String getScreenshotComparisonEngine(){
+        String engine = System.getProperty(COMPARISON_ENGINE_PROPERTY, IMAGE_COMPARISON_ENGINE).toLowerCase();
+        if (engine.equals(IMAGE_COMPARISON_ENGINE) || engine.equals(RASTER_COMPARISON_ENGINE))
+            return engine;
+        LOGGER.log(Level.WARNING, "Invalid system property testadvisor.comparisonengine {0}", engine);
+        return IMAGE_COMPARISON_ENGINE;
+    }
+
+    /**
+     * Number of threads to compare row bands of a screenshot in parallel, only used by raster comparison engine
+     * Threads are shared by all test cases processed in parallel.
+     * @return number of threads, default to 1, screenshots are compared in a single thread
+     */
+    public static int getComparisonThreads(){
+        try{
+            return Math.max(1, Integer.parseInt(System.getProperty(COMPARISON_THREADS_PROPERTY, "1")));
+        }catch(Exception ex){
+            LOGGER.log(Level.WARNING, "Invalid system property testadvisor.comparisonthreads {0}",
+                System.getProperty(COMPARISON_THREADS_PROPERTY));
+            return 1;
+        }
+    }
+
+    /**
+     * If screenshots are compared coarse to fine, only used by raster comparison engine
+     * @return
+     * false, default value, all pixels are compared
+     * true, block hashes are compared first and only pixels of different blocks are compared
+     */
+    public static boolean getIsPyramidComparisonEnabled(){
+        return Boolean.parseBoolean(System.getProperty(PYRAMID_COMPARISON_PROPERTY, FALSE));
+    }
+
+    /**
+     * Max number of screenshots read and decoded in background ahead of comparison
+     * Prefetched screenshots are kept in image cache, prefetch is disabled if image cache is disabled.
+     * @return number of screenshots, default to 0, screenshots are not prefetched
+     */
+    public static int getPrefetchImages(){
+        try{
+            return Math.max(0, Integer.parseInt(System.getProperty(PREFETCH_IMAGES_PROPERTY, "0")));
+        }catch(Exception ex){
+            LOGGER.log(Level.WARNING, "Invalid system property testadvisor.prefetchimages {0}",
+                System.getProperty(PREFETCH_IMAGES_PROPERTY));
+            return 0;
+        }
+    }
+
 }
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.github.romankh3.image.comparison.ImageComparisonUtil;
+
+/**
+ * DecodedImageCache keeps decoded screenshots in memory, so a baseline screenshot shared by
+ * many test cases is decoded once per process.
+ *
+ * Images are keyed by absolute path and are valid as long as file size and modified time
+ * don't change. Most recently used images are held up to a budget of width x height x 4
+ * bytes, least recently used images beyond the budget are only softly referenced and are
+ * reused until garbage collector reclaims them.
+ * A file decoded by one thread is not decoded again by other threads asking for it at the
+ * same time, they wait for the decoded image instead.
+ * Cached images are shared, callers must not modify them.
+ * All public methods are thread safe.
+ */
+public class DecodedImageCache {
+
+    private static final int BYTES_PER_PIXEL = 4;
+
+    /**
+     * Decoded image of a screenshot file version
+     */
+    private static class CachedImage {
+        private final long size;
+        private final long modifiedTime;
+        private final long bytes;
+        private final BufferedImage image;
+
+        private CachedImage(long size, long modifiedTime, BufferedImage image){
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+            this.bytes = (long) image.getWidth() * image.getHeight() * BYTES_PER_PIXEL;
+            this.image = image;
+        }
+
+        private boolean isValid(long size, long modifiedTime){
+            return this.size == size && this.modifiedTime == modifiedTime;
+        }
+    }
+
+    private final long maxBytes;
+    private long usedBytes = 0;
+    private final LinkedHashMap<String, CachedImage> strongCache = new LinkedHashMap<>(); //least recently used first
+    private final Map<String, SoftReference<CachedImage>> softCache = new HashMap<>();
+    private final Map<String, CompletableFuture<BufferedImage>> loadingImages = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxBytes max bytes of decoded images strongly held by the cache, 0 to disable cache
+     */
+    public DecodedImageCache(long maxBytes){
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Get decoded image of a screenshot file, file is decoded if it's not cached or was changed
+     * @param file screenshot file
+     * @return decoded image
+     */
+    public BufferedImage getImage(File file){
+        String key = file.getAbsolutePath();
+        long size = file.length();
+        long modifiedTime = file.lastModified();
+        if (maxBytes <= 0)
+            return ImageComparisonUtil.readImageFromResources(key);
+
+        CachedImage cached = getCachedImage(key);
+        if (cached != null && cached.isValid(size, modifiedTime))
+            return cached.image;
+
+        // decode outside of lock, concurrent readers of the same file wait for the first one
+        CompletableFuture<BufferedImage> loading = new CompletableFuture<>();
+        CompletableFuture<BufferedImage> existing = loadingImages.putIfAbsent(key, loading);
+        if (existing != null)
+            return waitForImage(existing);
+        try{
+            BufferedImage image = ImageComparisonUtil.readImageFromResources(key);
+            putCachedImage(key, new CachedImage(size, modifiedTime, image));
+            loading.complete(image);
+            return image;
+        }catch(RuntimeException | Error ex){
+            loading.completeExceptionally(ex);
+            throw ex;
+        }finally{
+            loadingImages.remove(key, loading);
+        }
+    }
+
+    /**
+     * Check whether a decoded image of the current version of a file is cached
+     * Cache is not changed, a softly referenced image is not moved back into budget.
+     * @param file screenshot file
+     * @return true if the file doesn't need to be decoded
+     */
+    public boolean isCached(File file){
+        CachedImage cached = peekCachedImage(file.getAbsolutePath());
+        return cached != null && cached.isValid(file.length(), file.lastModified());
+    }
+
+    private static BufferedImage waitForImage(CompletableFuture<BufferedImage> loading){
+        try{
+            return loading.join();
+        }catch(CompletionException ex){
+            if (ex.getCause() instanceof RuntimeException) throw (RuntimeException) ex.getCause();
+            if (ex.getCause() instanceof Error) throw (Error) ex.getCause();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return bytes of decoded images strongly held by the cache
+     */
+    public synchronized long getUsedBytes(){
+        return usedBytes;
+    }
+
+    private synchronized CachedImage peekCachedImage(String key){
+        CachedImage cached = strongCache.get(key);
+        if (cached != null) return cached;
+        SoftReference<CachedImage> reference = softCache.get(key);
+        return reference == null ? null : reference.get();
+    }
+
+    private synchronized CachedImage getCachedImage(String key){
+        CachedImage cached = strongCache.remove(key);
+        if (cached != null){
+            strongCache.put(key, cached);
+            return cached;
+        }
+
+        SoftReference<CachedImage> reference = softCache.remove(key);
+        cached = reference == null ? null : reference.get();
+        if (cached != null)
+            addStrong(key, cached);
+        return cached;
+    }
+
+    private synchronized void putCachedImage(String key, CachedImage cached){
+        softCache.remove(key);
+        addStrong(key, cached);
+    }
+
+    /**
+     * Add image as most recently used and move least recently used images out of budget
+     * to soft cache
+     */
+    private void addStrong(String key, CachedImage cached){
+        CachedImage previous = strongCache.remove(key);
+        strongCache.put(key, cached);
+        if (previous != null)
+            usedBytes -= previous.bytes;
+        usedBytes += cached.bytes;
+
+        Iterator<Map.Entry<String, CachedImage>> iterator = strongCache.entrySet().iterator();
+        while(usedBytes > maxBytes && iterator.hasNext()){
+            Map.Entry<String, CachedImage> entry = iterator.next();
+            iterator.remove();
+            usedBytes -= entry.getValue().bytes;
+            softCache.put(entry.getKey(), new SoftReference<>(entry.getValue()));
+        }
+        // drop soft references reclaimed by garbage collector
+        softCache.values().removeIf(reference -> reference.get() == null);
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.github.romankh3.image.comparison.model.Rectangle;
+
+/**
+ * ExcludedAreaIndex keeps excluded areas found by comparing the screenshots of a test step,
+ * so the comparison is not repeated when the same pair of screenshots is compared again.
+ *
+ * Excluded areas are keyed by test case name, test step signature and content hash of both
+ * screenshots, and saved as an append only journal in registry index folder. Each line holds
+ * one key followed by the excluded areas as minX,minY,maxX,maxY separated by ';'.
+ * <pre>
+ * com.salesforce.test.Login.testLogin	stepHash	baselineHash	currentHash	0,0,100,20;10,200,50,220
+ * </pre>
+ * Lines appended by other processes are read incrementally. The journal is bounded: it's
+ * rewritten with the latest maxEntries entries when it grows to twice as many entries, and
+ * when registry is compacted. Entries appended by other processes while the journal is
+ * rewritten may be lost, they are found again by comparing the screenshots.
+ * All public methods are thread safe.
+ */
+public class ExcludedAreaIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    public static final String EXCLUDED_AREA_FILENAME = "excluded-areas.log";
+    public static final int MAX_ENTRIES = 10000;
+    private static final String SEPARATOR = "\t";
+    private static final String AREA_SEPARATOR = ";";
+    private static final String POINT_SEPARATOR = ",";
+
+    private final Path indexFile;
+    private final int maxEntries;
+    private Map<String, List<Rectangle>> areaMap = new LinkedHashMap<>(); //in journal order, oldest first
+    private long loadedSize = -1;
+    private Object loadedFileKey = null;
+    private int lineCount = 0;
+
+    public ExcludedAreaIndex(Path indexFolder){
+        this(indexFolder, MAX_ENTRIES);
+    }
+
+    /**
+     * @param indexFolder registry index folder
+     * @param maxEntries max number of entries kept when the journal is rewritten
+     */
+    ExcludedAreaIndex(Path indexFolder, int maxEntries){
+        this.indexFile = indexFolder.resolve(EXCLUDED_AREA_FILENAME);
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Get excluded areas of a test step
+     * @param testCaseName test case full name
+     * @param stepSignature signature of test step
+     * @param baselineHash content hash of baseline screenshot
+     * @param currentHash content hash of current screenshot
+     * @return list of excluded areas, or null if the screenshots were never compared
+     * @throws IOException throws this exception when fail to read the index
+     */
+    public synchronized List<Rectangle> get(String testCaseName, String stepSignature, String baselineHash,
+                                            String currentHash) throws IOException{
+        loadIndex();
+        List<Rectangle> areas = areaMap.get(getKey(testCaseName, stepSignature, baselineHash, currentHash));
+        return areas == null ? null : new ArrayList<>(areas);
+    }
+
+    /**
+     * Save excluded areas of a test step
+     * @param testCaseName test case full name
+     * @param stepSignature signature of test step
+     * @param baselineHash content hash of baseline screenshot
+     * @param currentHash content hash of current screenshot
+     * @param areas list of excluded areas
+     * @throws IOException throws this exception when fail to write the index
+     */
+    public synchronized void put(String testCaseName, String stepSignature, String baselineHash,
+                                    String currentHash, List<Rectangle> areas) throws IOException{
+        loadIndex();
+        String key = getKey(testCaseName, stepSignature, baselineHash, currentHash);
+        if (areaMap.containsKey(key)) return;
+
+        byte[] line = (formatLine(key, areas) + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        Files.createDirectories(indexFile.getParent());
+        Files.write(indexFile, line, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        // lines appended by other processes around this line are read on next load
+        if (Files.size(indexFile) == loadedSize + line.length){
+            loadedSize += line.length;
+            loadedFileKey = getFileKey();
+            lineCount++;
+        }
+        areaMap.put(key, Collections.unmodifiableList(new ArrayList<>(areas)));
+        if (lineCount > maxEntries * 2)
+            compact();
+    }
+
+    /**
+     * Rewrite the journal with the latest entries, at most maxEntries entries are kept
+     * @return number of entries removed
+     * @throws IOException throws this exception when fail to write the index
+     */
+    public synchronized int compact() throws IOException{
+        loadIndex();
+        if (!Files.exists(indexFile)) return 0;
+        int removed = lineCount - Math.min(areaMap.size(), maxEntries);
+        Iterator<String> iterator = areaMap.keySet().iterator();
+        for(int i = areaMap.size(); i > maxEntries; i--){
+            iterator.next();
+            iterator.remove();
+        }
+
+        Path tempFile = Files.createTempFile(indexFile.getParent(), EXCLUDED_AREA_FILENAME, ".tmp");
+        try{
+            try(Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)){
+                for(Map.Entry<String, List<Rectangle>> entry : areaMap.entrySet()){
+                    writer.write(formatLine(entry.getKey(), entry.getValue()));
+                    writer.write(System.lineSeparator());
+                }
+            }
+            try{
+                Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }catch(AtomicMoveNotSupportedException ex){
+                Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }finally{
+            Files.deleteIfExists(tempFile);
+        }
+        loadedSize = Files.size(indexFile);
+        loadedFileKey = getFileKey();
+        lineCount = areaMap.size();
+        return Math.max(0, removed);
+    }
+
+    private static String getKey(String testCaseName, String stepSignature, String baselineHash, String currentHash){
+        return String.join(SEPARATOR, testCaseName, stepSignature, baselineHash, currentHash);
+    }
+
+    private static String formatLine(String key, List<Rectangle> areas){
+        StringBuilder sb = new StringBuilder(key).append(SEPARATOR);
+        for(int i = 0; i < areas.size(); i++){
+            Rectangle area = areas.get(i);
+            if (i > 0) sb.append(AREA_SEPARATOR);
+            sb.append((int) area.getMinPoint().getX()).append(POINT_SEPARATOR)
+                .append((int) area.getMinPoint().getY()).append(POINT_SEPARATOR)
+                .append((int) area.getMaxPoint().getX()).append(POINT_SEPARATOR)
+                .append((int) area.getMaxPoint().getY());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Load lines appended to journal file since last load, the whole file is loaded again if
+     * it was rewritten
+     */
+    private void loadIndex() throws IOException{
+        long size = Files.exists(indexFile) ? Files.size(indexFile) : 0;
+        Object fileKey = size > 0 ? getFileKey() : null;
+        boolean isRewritten = loadedSize < 0 || size < loadedSize || !Objects.equals(fileKey, loadedFileKey);
+        if (size == loadedSize && !isRewritten) return;
+        if (isRewritten){
+            areaMap = new LinkedHashMap<>();
+            loadedSize = 0;
+            lineCount = 0;
+            loadedFileKey = fileKey;
+        }
+        if (size <= loadedSize) return;
+
+        byte[] bytes = new byte[(int) (size - loadedSize)];
+        try(SeekableByteChannel channel = Files.newByteChannel(indexFile, StandardOpenOption.READ)){
+            channel.position(loadedSize);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while(buffer.hasRemaining() && channel.read(buffer) > 0);
+        }
+        // a line being appended by another process is read on next load
+        int length = bytes.length;
+        while(length > 0 && bytes[length - 1] != '\n') length--;
+        try(BufferedReader reader = new BufferedReader(new StringReader(new String(bytes, 0, length, StandardCharsets.UTF_8)))){
+            String line;
+            while((line = reader.readLine()) != null){
+                int index = line.lastIndexOf(SEPARATOR);
+                if (index < 0) continue;
+                lineCount++;
+                List<Rectangle> areas = parseAreas(line.substring(index + 1));
+                if (areas != null)
+                    areaMap.put(line.substring(0, index), Collections.unmodifiableList(areas));
+            }
+        }
+        loadedSize += length;
+    }
+
+    /**
+     * Get file key of journal file, which changes when the journal is rewritten
+     * On file systems without file key, only a journal rewritten to a smaller size is detected.
+     */
+    private Object getFileKey() throws IOException{
+        return Files.readAttributes(indexFile, BasicFileAttributes.class).fileKey();
+    }
+
+    private static List<Rectangle> parseAreas(String value){
+        List<Rectangle> areas = new ArrayList<>();
+        if (value.isEmpty()) return areas;
+        try{
+            for(String area : value.split(AREA_SEPARATOR)){
+                String[] points = area.split(POINT_SEPARATOR);
+                areas.add(new Rectangle(Integer.parseInt(points[0]), Integer.parseInt(points[1]),
+                                        Integer.parseInt(points[2]), Integer.parseInt(points[3])));
+            }
+        }catch(NumberFormatException | ArrayIndexOutOfBoundsException ex){
+            //partially written line
+            LOGGER.log(Level.WARNING, "Invalid excluded areas in index {0}", value);
+            return null;
+        }
+        return areas;
+    }
+}
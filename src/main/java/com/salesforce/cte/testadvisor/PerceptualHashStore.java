@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * PerceptualHashStore keeps perceptual hashes of screenshots, so a screenshot is hashed once.
+ * Hashes are saved next to the screenshots as screenshot-phash.json, keyed by screenshot file
+ * name. A saved hash is valid as long as screenshot file size and modified time don't change.
+ * Changes are kept in memory until flush is called.
+ * All public methods are thread safe.
+ */
+public class PerceptualHashStore {
+
+    public static final String PHASH_FILENAME = "screenshot-phash.json";
+
+    /**
+     * Perceptual hash of a screenshot file version
+     */
+    public static class PerceptualHash {
+        @JsonProperty
+        public long hash;
+        @JsonProperty
+        public int width;
+        @JsonProperty
+        public int height;
+        @JsonProperty
+        public long size;
+        @JsonProperty
+        public long modifiedTime;
+
+        /**
+         * Get number of different bits between 2 hashes of screenshots of the same size
+         * @param other perceptual hash of another screenshot
+         * @return hamming distance, or -1 if screenshots have different size
+         */
+        public int getDistance(PerceptualHash other){
+            if (width != other.width || height != other.height)
+                return -1;
+            return Long.bitCount(hash ^ other.hash);
+        }
+    }
+
+    /**
+     * Persisted hashes of all screenshots in a folder
+     */
+    public static class HashFile {
+        @JsonProperty
+        public Map<String, PerceptualHash> screenshots = new TreeMap<>(); //file name to hash
+    }
+
+    private final ObjectMapper objectMapper = new ObjectMapper()
+                                        .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private final Map<Path, HashFile> hashFiles = new HashMap<>();
+    private final Set<Path> dirtyFolders = new HashSet<>();
+
+    /**
+     * Get saved perceptual hash of a screenshot
+     * @param file path to screenshot
+     * @return perceptual hash, or null if the screenshot was not hashed or was changed since
+     * @throws IOException throws this exception when fail to read hash file
+     */
+    public synchronized PerceptualHash get(Path file) throws IOException{
+        Path path = file.toAbsolutePath().normalize();
+        PerceptualHash hash = getHashFile(path.getParent()).screenshots.get(path.getFileName().toString());
+        if (hash == null || hash.size != Files.size(path)
+            || hash.modifiedTime != Files.getLastModifiedTime(path).toMillis())
+            return null;
+        return hash;
+    }
+
+    /**
+     * Save perceptual hash of a screenshot
+     * @param file path to screenshot
+     * @param hash perceptual hash
+     * @param width screenshot width
+     * @param height screenshot height
+     * @return saved perceptual hash
+     * @throws IOException throws this exception when fail to read hash file
+     */
+    public synchronized PerceptualHash put(Path file, long hash, int width, int height) throws IOException{
+        Path path = file.toAbsolutePath().normalize();
+        PerceptualHash perceptualHash = new PerceptualHash();
+        perceptualHash.hash = hash;
+        perceptualHash.width = width;
+        perceptualHash.height = height;
+        perceptualHash.size = Files.size(path);
+        perceptualHash.modifiedTime = Files.getLastModifiedTime(path).toMillis();
+        getHashFile(path.getParent()).screenshots.put(path.getFileName().toString(), perceptualHash);
+        dirtyFolders.add(path.getParent());
+        return perceptualHash;
+    }
+
+    /**
+     * Save all changed hash files and release loaded hash files
+     * Hash files which failed to save are kept and saved again on next flush.
+     * @throws IOException throws this exception when fail to write hash files
+     */
+    public synchronized void flush() throws IOException{
+        IOException error = null;
+        Iterator<Path> iterator = dirtyFolders.iterator();
+        while(iterator.hasNext()){
+            Path folder = iterator.next();
+            try{
+                saveHashFile(folder);
+                iterator.remove();
+            }catch(IOException ex){
+                if (error == null) error = ex;
+            }
+        }
+        hashFiles.keySet().retainAll(dirtyFolders);
+        if (error != null)
+            throw error;
+    }
+
+    /**
+     * Get number of hash files loaded in memory
+     * @return number of loaded hash files
+     */
+    synchronized int getLoadedCount(){
+        return hashFiles.size();
+    }
+
+    private void saveHashFile(Path folder) throws IOException{
+        Path hashPath = folder.resolve(PHASH_FILENAME);
+        Path tempFile = Files.createTempFile(folder, PHASH_FILENAME, ".tmp");
+        try{
+            objectMapper.writeValue(tempFile.toFile(), hashFiles.get(folder));
+            try{
+                Files.move(tempFile, hashPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }catch(AtomicMoveNotSupportedException ex){
+                Files.move(tempFile, hashPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }finally{
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private HashFile getHashFile(Path folder) throws IOException{
+        HashFile hashFile = hashFiles.get(folder);
+        if (hashFile != null) return hashFile;
+
+        Path hashPath = folder.resolve(PHASH_FILENAME);
+        if (Files.exists(hashPath))
+            hashFile = objectMapper.readValue(hashPath.toFile(), HashFile.class);
+        if (hashFile == null)
+            hashFile = new HashFile();
+        hashFiles.put(folder, hashFile);
+        return hashFile;
+    }
+}
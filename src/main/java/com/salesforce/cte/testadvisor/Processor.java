@@ -7,21 +7,30 @@
 
 package com.salesforce.cte.testadvisor;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -29,7 +38,6 @@ import com.github.romankh3.image.comparison.model.ImageComparisonResult;
 import com.github.romankh3.image.comparison.model.ImageComparisonState;
 import com.github.romankh3.image.comparison.model.Rectangle;
 import com.salesforce.cte.adapter.TestAdvisorAdapter;
-import com.salesforce.cte.adapter.TestAdvisorResultAdapter;
 import com.salesforce.cte.adapter.TestAdvisorTestCase;
 import com.salesforce.cte.adapter.TestAdvisorTestRun;
 import com.salesforce.cte.adapter.TestAdvisorTestSignal;
@@ -48,15 +56,42 @@ import org.json.JSONTokener;
  * @author Yibing Tao
  * This class provide method to process test result with the provided adapter
  */
-public class Processor {
+public class Processor implements Closeable {
     private static final Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
     
-    private Registry registry;
-    private ScreenshotManager screenshotManager;
+    private final Registry registry;
+    private final ScreenshotManager screenshotManager;
+    private final PerceptualHashStore perceptualHashStore;
+
+    /**
+     * Baseline test run loaded once per process and shared by all test cases using it
+     */
+    private static class BaselineRun {
+        private final Path path;
+        private final Instant startTime;
+        private final String salesforceId;
+        private final Map<String, TestAdvisorTestCase> testCases; //test case full name to first test case execution
+
+        private BaselineRun(Path path, Instant startTime, String salesforceId, Map<String, TestAdvisorTestCase> testCases){
+            this.path = path;
+            this.startTime = startTime;
+            this.salesforceId = salesforceId;
+            this.testCases = testCases;
+        }
+    }
 
     public Processor(Registry registry){
         this.registry = registry;
         this.screenshotManager = new ScreenshotManager();
+        this.perceptualHashStore = new PerceptualHashStore();
+    }
+
+    /**
+     * Stop background screenshot threads, processor can't be used after close
+     */
+    @Override
+    public void close(){
+        screenshotManager.close();
     }
     /**
      * 
@@ -80,43 +115,162 @@ public class Processor {
         testRunSignal.testSuiteName = testRunSignal.testSuiteName.isEmpty() ? testRun.getTestSuiteName() : testRunSignal.testSuiteName;
         testRunSignal.clientBuildId = testRunSignal.clientBuildId.isEmpty() ? testRun.getTestsSuiteInfo() : testRunSignal.clientBuildId;
         testRunSignal.testExecutions = new ArrayList<>();
+        Path currentTestRun = registry.getTestRunPath(testRunSignal.testRunId);
+        List<TestAdvisorTestCase> testCaseList = new ArrayList<>();
         for(TestAdvisorTestCase testCase : testRun.getTestCaseList()){
-            LOGGER.log(Level.INFO,"Processing test case {0}", testCase.getTestCaseFullName());
-
             //only upload failed configuration test by default
             if (!Configuration.getUploadAllConfTest() 
                 && testCase.getIsConfiguration() && !testCase.getTestCaseStatus().equalsIgnoreCase("Failed"))
                 continue;
+            testCaseList.add(testCase);
+        }
+
+        //phase 1, resolve baseline test run of every test case and group test cases by baseline
+        Map<Path, List<Integer>> baselineGroups = new LinkedHashMap<>();
+        List<Integer> noBaselineGroup = new ArrayList<>();
+        for(int i = 0; i < testCaseList.size(); i++){
+            Path baseline = Configuration.getIsSeleniumScreenshotEnabled()
+                            ? registry.getBaselineTestRun(currentTestRun, testCaseList.get(i).getTestCaseFullName()) : null;
+            if (baseline == null)
+                noBaselineGroup.add(i);
+            else
+                baselineGroups.computeIfAbsent(baseline, path -> new ArrayList<>()).add(i);
+        }
+
+        //phase 2, load every distinct baseline test run once and process its group of test cases
+        Map<Path, BaselineRun> baselineRuns = new ConcurrentHashMap<>();
+        List<Callable<TestExecution>> tasks = new ArrayList<>(Collections.nCopies(testCaseList.size(), null));
+        for(int i : noBaselineGroup){
+            TestAdvisorTestCase testCase = testCaseList.get(i);
+            tasks.set(i, () -> processTestCase(testCase, null, baselineRuns));
+        }
+        for(Map.Entry<Path, List<Integer>> group : baselineGroups.entrySet()){
+            BaselineRun baseline = getBaselineRun(group.getKey(), baselineRuns);
+            for(int i : group.getValue()){
+                TestAdvisorTestCase testCase = testCaseList.get(i);
+                tasks.set(i, () -> processTestCase(testCase, baseline, baselineRuns));
+            }
+        }
+
+        int threads = Math.min(Configuration.getProcessThreads(), testCaseList.size());
+        if (threads <= 1){
+            for(Callable<TestExecution> task : tasks){
+                testRunSignal.testExecutions.add(callTask(task));
+            }
+        }else{
+            //process test cases in parallel, test executions are collected in test case order
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try{
+                List<Future<TestExecution>> futures = new ArrayList<>();
+                for(Callable<TestExecution> task : tasks){
+                    futures.add(executor.submit(task));
+                }
+                for(Future<TestExecution> future : futures){
+                    testRunSignal.testExecutions.add(getTestExecution(future));
+                }
+            }finally{
+                executor.shutdownNow();
+            }
+        }
 
-            //find baseline test run
-            TestExecution testExection = new TestExecution();
-            testExection.testCaseName = testCase.getTestCaseFullName();
-            testExection.startTime = testCase.getTestCaseStartTime();
-            testExection.endTime = testCase.getTestCaseEndTime();
-            testExection.status = enumPartialMatch(TestStatus.class, testCase.getTestCaseStatus());
-            testExection.isConfiguration = testCase.getIsConfiguration();
-            testExection.traceId = testCase.getTraceId();
-            testExection.testSignals = new ArrayList<>();
-
-            Path baseline = registry.getBaselineTestRun(registry.getTestRunPath(testRunSignal.testRunId), testCase.getTestCaseFullName());
-            if (baseline != null && Configuration.getIsSeleniumScreenshotEnabled()){
-                LOGGER.log(Level.INFO,"Found baseline {0}", baseline);
-                testExection.baselineBuildId = registry.getTestRunId(baseline);
-                testExection.baselineBuildIdStartTime = getTestRunStartTime(baseline);
-                testExection.baselineSalesforceBuildId = getSalesforceId(baseline);
-                //find baseline test case
-                TestAdvisorTestCase baselineCase = getTestCaseFromTestRun(baseline,testCase.getTestCaseFullName());
-                
-                //try to find excluded areas for baseline test case
-                setExcludedAreas(baseline,testCase);
-                //find similarity and extract signals
-                testExection.similarity = compareTestCaseExecution(baselineCase, testCase, testExection.testSignals);
+        //save volatility masks learned from current test run, test signals don't depend on them
+        if (Configuration.getIsLearnedMaskEnabled()){
+            try{
+                registry.getVolatilityMaskIndex().flush();
+            }catch(IOException ex){
+                LOGGER.log(Level.WARNING, "Failed to save volatility masks {0}", ex.toString());
             }
-            else   
-                extractTestSignals(testCase,testExection.testSignals);
+        }
+        //save perceptual hashes of compared screenshots
+        if (Configuration.getPerceptualHashThreshold() >= 0){
+            try{
+                perceptualHashStore.flush();
+            }catch(IOException ex){
+                LOGGER.log(Level.WARNING, "Failed to save perceptual hashes {0}", ex.toString());
+            }
+        }
+    }
+
+    /**
+     * Process a test case in current thread
+     * @param task task to process test case
+     * @return test execution
+     * @throws ProcessException when any process error happened
+     * @throws IOException throws this exception when fail to access test run files
+     */
+    private TestExecution callTask(Callable<TestExecution> task) throws ProcessException, IOException{
+        try{
+            return task.call();
+        }catch(IOException | ProcessException | RuntimeException ex){
+            throw ex;
+        }catch(Exception ex){
+            throw new ProcessException(ex);
+        }
+    }
 
-            testRunSignal.testExecutions.add(testExection);
-        } 
+    /**
+     * Wait for a test case to be processed
+     * @param future result of processTestCase
+     * @return test execution
+     * @throws ProcessException when any process error happened
+     * @throws IOException throws this exception when fail to access test run files
+     */
+    private TestExecution getTestExecution(Future<TestExecution> future) throws ProcessException, IOException{
+        try{
+            return future.get();
+        }catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+            throw new ProcessException(ex);
+        }catch(ExecutionException ex){
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof ProcessException) throw (ProcessException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new ProcessException(cause);
+        }
+    }
+
+    /**
+     * Process a single test case, may be called from multiple threads for test cases of the same test run
+     * @param testCase test case to process
+     * @param baseline baseline test run of the test case, or null if no baseline
+     * @param baselineRuns test runs loaded during current process, shared by all test cases
+     * @return test execution with signals
+     * @throws ProcessException when any process error happened
+     * @throws IOException throws this exception when fail to access test run files
+     */
+    private TestExecution processTestCase(TestAdvisorTestCase testCase, BaselineRun baseline, 
+                                            Map<Path, BaselineRun> baselineRuns) throws ProcessException, IOException{
+        LOGGER.log(Level.INFO,"Processing test case {0}", testCase.getTestCaseFullName());
+
+        TestExecution testExection = new TestExecution();
+        testExection.testCaseName = testCase.getTestCaseFullName();
+        testExection.startTime = testCase.getTestCaseStartTime();
+        testExection.endTime = testCase.getTestCaseEndTime();
+        testExection.status = enumPartialMatch(TestStatus.class, testCase.getTestCaseStatus());
+        testExection.isConfiguration = testCase.getIsConfiguration();
+        testExection.traceId = testCase.getTraceId();
+        testExection.testSignals = new ArrayList<>();
+
+        if (baseline != null){
+            LOGGER.log(Level.INFO,"Found baseline {0}", baseline.path);
+            testExection.baselineBuildId = registry.getTestRunId(baseline.path);
+            testExection.baselineBuildIdStartTime = baseline.startTime;
+            testExection.baselineSalesforceBuildId = baseline.salesforceId;
+            //find baseline test case
+            TestAdvisorTestCase baselineCase = baseline.testCases.get(testCase.getTestCaseFullName());
+            
+            //try to find excluded areas for baseline test case, learned volatility masks replace the extra comparison
+            if (!Configuration.getIsLearnedMaskEnabled())
+                setExcludedAreas(baseline.path, testCase, baselineRuns);
+            //find similarity and extract signals
+            testExection.similarity = compareTestCaseExecution(baselineCase, testCase, testExection.testSignals);
+        }
+        else   
+            extractTestSignals(testCase,testExection.testSignals);
+
+        return testExection;
     }
 
     public static <T extends Enum<?>> T enumPartialMatch(Class<T> enumeration, String search) {
@@ -150,7 +304,8 @@ public class Processor {
         signalList.clear();
         // sort event list by event time, oldest first
         Comparator<TestAdvisorTestSignal> compareByEventTime = Comparator.comparing(TestAdvisorTestSignal::getTestSignalTime);
-        List<TestAdvisorTestSignal> baselineEventList = baseline != null ? baseline.getTestSignalList() : new ArrayList<>();
+        // baseline test case is shared by all users of the cached test run, sort a copy
+        List<TestAdvisorTestSignal> baselineEventList = baseline != null ? new ArrayList<>(baseline.getTestSignalList()) : new ArrayList<>();
         baselineEventList.sort(compareByEventTime);
         List<TestAdvisorTestSignal> currentEventList =  current.getTestSignalList();
         currentEventList.sort(compareByEventTime);
@@ -165,6 +320,7 @@ public class Processor {
         int i=0; //current test step index
         int j=0; //baseline test step index
         int matchCount=0;
+        prefetchScreenshots(currentSteps, baselineSteps, 0, 0);
         
         TestAdvisorTestSignal prevStep = null;
         //for every event in current test
@@ -184,26 +340,29 @@ public class Processor {
                 j++;
             }
 
-            if(j<baselineSteps.size() && fileExist(currentStep.getTestSignalScreenshotPath())
-                && fileExist(baselineSteps.get(j).getTestSignalScreenshotPath())){
+            if(j<baselineSteps.size() && fileExist(getScreenshotFile(currentStep))
+                && fileExist(getScreenshotFile(baselineSteps.get(j)))){
                 // find a match baseline step
                 TestAdvisorTestSignal baselineStep = baselineSteps.get(j);
+                // read next screenshots in background while current screenshots are compared
+                prefetchScreenshots(currentSteps, baselineSteps, i + 1, j + 1);
                 // image comparison
-                Path currentPath = Paths.get(currentStep.getTestSignalScreenshotPath());
+                Path currentPath = getScreenshotFile(currentStep).toPath();
 
                 ImageComparisonResult result;
-                if (Configuration.getExportScreenshotDiffImage()){
-                    File resultFile = currentPath.getParent().resolve(currentPath.getFileName().toString()+".compareresult.png").toFile();
-                    result = screenshotManager.screenshotsComparisonWithExcludedAreas(
-                        new File(baselineStep.getTestSignalScreenshotPath()),new File(currentStep.getTestSignalScreenshotPath()),resultFile
-                    ,currentStep.getExcludedAreas());
+                if (isIdenticalScreenshot(baselineStep, currentStep) || isSimilarScreenshot(baselineStep, currentStep)){
+                    // identical screenshots, no diff
+                    result = null;
+                    learnVolatileAreas(current.getTestCaseFullName(), currentStep, null);
                 }else{
-                    result = screenshotManager.screenshotsComparisonWithExcludedAreas(
-                        new File(baselineStep.getTestSignalScreenshotPath()),new File(currentStep.getTestSignalScreenshotPath())
-                    ,currentStep.getExcludedAreas());
+                    List<Rectangle> sampledAreas = Configuration.getIsLearnedMaskEnabled()
+                                                ? setVolatileAreas(current.getTestCaseFullName(), currentStep) : null;
+                    result = compareScreenshots(baselineStep, currentStep, currentPath);
+                    learnVolatileAreas(current.getTestCaseFullName(), currentStep, result);
+                    removeVolatileDiffAreas(result, sampledAreas);
                 }
 
-                if (result.getImageComparisonState() == ImageComparisonState.MISMATCH 
+                if (result != null && result.getImageComparisonState() == ImageComparisonState.MISMATCH 
                     && isDiffAreaLargeThanThreshhold(result)){
                     //image comparison found diff
                     TestSignal signal = createTestSignalFromEvent(event);
@@ -225,6 +384,130 @@ public class Processor {
         return  (int)(((float)matchCount)/currentSteps.size() * 100);
     }
 
+    /**
+     * Compare screenshots of a test step with the matching baseline test step, excluded areas of current step are ignored
+     * @param baselineStep matching baseline test step
+     * @param currentStep current test step
+     * @param currentPath path to current screenshot
+     * @return image comparison result
+     */
+    private ImageComparisonResult compareScreenshots(TestAdvisorTestSignal baselineStep, TestAdvisorTestSignal currentStep, Path currentPath){
+        if (isVerdictComparison()){
+            return screenshotManager.screenshotsVerdict(getScreenshotFile(baselineStep), getScreenshotFile(currentStep),
+                currentStep.getExcludedAreas(), Configuration.getScreenshotMinDiffRatio());
+        }
+        if (Configuration.getExportScreenshotDiffImage()){
+            File resultFile = currentPath.getParent().resolve(currentPath.getFileName().toString()+".compareresult.png").toFile();
+            return screenshotManager.screenshotsComparisonWithExcludedAreas(
+                getScreenshotFile(baselineStep),getScreenshotFile(currentStep),resultFile
+            ,currentStep.getExcludedAreas());
+        }
+        return screenshotManager.screenshotsComparisonWithExcludedAreas(
+            getScreenshotFile(baselineStep),getScreenshotFile(currentStep)
+        ,currentStep.getExcludedAreas());
+    }
+
+    /**
+     * Check whether screenshot comparison only needs to tell if diff is large enough to report
+     * @return true if exact diff areas are not needed by diff image, diff area export or learned masks
+     */
+    static boolean isVerdictComparison(){
+        return !Configuration.getExportScreenshotDiffImage() && !Configuration.getExportScreenshotDiffArea()
+            && !Configuration.getIsLearnedMaskEnabled();
+    }
+
+    /**
+     * Exclude volatile areas learned from test history from comparison of current test step
+     * Volatile areas are compared in sample comparisons, so the mask learns whether they
+     * are still volatile, diffs found in them are removed after learning.
+     * @param testCaseName test case full name
+     * @param currentStep current test step
+     * @return volatile areas of a sample comparison, null if volatile areas are excluded
+     */
+    private List<Rectangle> setVolatileAreas(String testCaseName, TestAdvisorTestSignal currentStep){
+        try{
+            VolatilityMaskIndex maskIndex = registry.getVolatilityMaskIndex();
+            String stepSignature = getStepSignature(currentStep);
+            List<Rectangle> volatileAreas = maskIndex.getExcludedAreas(testCaseName, stepSignature);
+            if (volatileAreas == null) return null;
+            if (maskIndex.isSampleComparison(testCaseName, stepSignature)){
+                LOGGER.log(Level.INFO,"sample comparison of volatile areas, list size {0}",volatileAreas.size());
+                return volatileAreas;
+            }
+            LOGGER.log(Level.INFO,"volatile areas list size {0}",volatileAreas.size());
+            List<Rectangle> excludedAreas = new ArrayList<>(volatileAreas);
+            if (currentStep.getExcludedAreas() != null)
+                excludedAreas.addAll(currentStep.getExcludedAreas());
+            currentStep.setExcludedAreas(excludedAreas);
+        }catch(IOException ex){
+            LOGGER.log(Level.WARNING, "Failed to read volatility mask {0}", ex.toString());
+        }
+        return null;
+    }
+
+    /**
+     * Remove diff areas covered by volatile areas from comparison result, the result becomes
+     * a match if no diff area is left
+     * @param result image comparison result
+     * @param volatileAreas volatile areas made of whole mask tiles, nothing is removed if null
+     */
+    private static void removeVolatileDiffAreas(ImageComparisonResult result, List<Rectangle> volatileAreas){
+        if (result == null || volatileAreas == null || result.getRectangles() == null) return;
+        List<Rectangle> diffAreas = new ArrayList<>();
+        for(Rectangle diffArea : result.getRectangles()){
+            if (!isCoveredByTiles(diffArea, volatileAreas)) diffAreas.add(diffArea);
+        }
+        result.setRectangles(diffAreas);
+        if (diffAreas.isEmpty() && result.getImageComparisonState() == ImageComparisonState.MISMATCH)
+            result.setImageComparisonState(ImageComparisonState.MATCH);
+    }
+
+    /**
+     * Add screenshot comparison of a test step to its volatility mask
+     * @param testCaseName test case full name
+     * @param currentStep current test step
+     * @param result image comparison result, null if screenshots are identical
+     */
+    private void learnVolatileAreas(String testCaseName, TestAdvisorTestSignal currentStep, ImageComparisonResult result){
+        if (!Configuration.getIsLearnedMaskEnabled()) return;
+        try{
+            VolatilityMaskIndex maskIndex = registry.getVolatilityMaskIndex();
+            if (result == null || result.getActual() == null)
+                // identical screenshots, byte identical screenshots are not decoded
+                maskIndex.addIdenticalComparison(testCaseName, getStepSignature(currentStep));
+            else
+                maskIndex.addComparison(testCaseName, getStepSignature(currentStep), result.getActual().getWidth(), 
+                    result.getActual().getHeight(), result.getRectangles() == null ? new ArrayList<>() : result.getRectangles());
+        }catch(IOException ex){
+            LOGGER.log(Level.WARNING, "Failed to update volatility mask {0}", ex.toString());
+        }
+    }
+
+    /**
+     * Check whether every mask tile touched by an area is in one of the tile areas
+     */
+    private static boolean isCoveredByTiles(Rectangle area, List<Rectangle> tileAreas){
+        int tileSize = VolatilityMaskIndex.TILE_SIZE;
+        int minX = (int) area.getMinPoint().getX();
+        int minY = (int) area.getMinPoint().getY();
+        int maxX = (int) area.getMaxPoint().getX();
+        int maxY = (int) area.getMaxPoint().getY();
+        for(int tileY = minY / tileSize * tileSize; tileY <= maxY; tileY += tileSize){
+            for(int tileX = minX / tileSize * tileSize; tileX <= maxX; tileX += tileSize){
+                // any point of the area inside the tile tells whether the tile is covered
+                int x = Math.max(minX, tileX);
+                int y = Math.max(minY, tileY);
+                boolean isCovered = false;
+                for(Rectangle tileArea : tileAreas){
+                    isCovered |= x >= tileArea.getMinPoint().getX() && x <= tileArea.getMaxPoint().getX()
+                        && y >= tileArea.getMinPoint().getY() && y <= tileArea.getMaxPoint().getY();
+                }
+                if (!isCovered) return false;
+            }
+        }
+        return true;
+    }
+
     private int getDiffRatio(ImageComparisonResult result){
         long imageSize = (long) result.getActual().getWidth() * result.getActual().getHeight();
         long diffSize = 0;
@@ -247,10 +530,78 @@ public class Processor {
         return ret;
     }
 
-    private boolean fileExist(String filename){
-        return new File(filename).exists() && new File(filename).canRead();
+    private boolean fileExist(File file){
+        return file.exists() && file.canRead();
+    }
+
+    /**
+     * Get screenshot file of a test step, screenshot is looked up in current test run folder
+     * if the test run was moved after the screenshot was recorded
+     * @param step test step with screenshot
+     * @return screenshot file
+     */
+    private File getScreenshotFile(TestAdvisorTestSignal step){
+        return registry.resolveScreenshotPath(step.getTestSignalScreenshotPath()).toFile();
+    }
+
+    /**
+     * Prefetch screenshots of a current test step and its matching baseline test step
+     * @param currentSteps current test steps
+     * @param baselineSteps baseline test steps
+     * @param i index of current test step
+     * @param j index of first baseline test step to match
+     */
+    private void prefetchScreenshots(List<TestAdvisorTestSignal> currentSteps, List<TestAdvisorTestSignal> baselineSteps,
+                                        int i, int j){
+        if (Configuration.getPrefetchImages() <= 0 || i >= currentSteps.size())
+            return;
+        TestAdvisorTestSignal currentStep = currentSteps.get(i);
+        while(j<baselineSteps.size() && !isMatchScreenshotEvent(currentStep, baselineSteps.get(j))){
+            j++;
+        }
+        if (j<baselineSteps.size())
+            screenshotManager.prefetchScreenshots(getScreenshotFile(baselineSteps.get(j)), getScreenshotFile(currentStep));
+    }
+
+    /**
+     * Check whether screenshots of 2 test steps are identical based on content hash
+     * @param baselineStep baseline test step
+     * @param currentStep current test step
+     * @return true if screenshot store is enabled and both screenshots have the same content
+     */
+    private boolean isIdenticalScreenshot(TestAdvisorTestSignal baselineStep, TestAdvisorTestSignal currentStep){
+        if (!Configuration.getIsScreenshotStoreEnabled())
+            return false;
+        try{
+            return registry.getScreenshotStore().isIdentical(getScreenshotFile(baselineStep).toPath(),
+                                                            getScreenshotFile(currentStep).toPath());
+        }catch(IOException ex){
+            LOGGER.log(Level.WARNING, "Failed to get screenshot hash {0}", ex.toString());
+            return false;
+        }
     }
     
+    /**
+     * Check whether screenshots of 2 test steps look the same based on perceptual hash
+     * @param baselineStep baseline test step
+     * @param currentStep current test step
+     * @return true if perceptual hash is enabled and hamming distance of both screenshot hashes
+     * is within threshold
+     */
+    private boolean isSimilarScreenshot(TestAdvisorTestSignal baselineStep, TestAdvisorTestSignal currentStep){
+        int threshold = Configuration.getPerceptualHashThreshold();
+        if (threshold < 0)
+            return false;
+        try{
+            int distance = screenshotManager.getPerceptualHash(getScreenshotFile(baselineStep), perceptualHashStore)
+                            .getDistance(screenshotManager.getPerceptualHash(getScreenshotFile(currentStep), perceptualHashStore));
+            return distance >= 0 && distance <= threshold;
+        }catch(IOException ex){
+            LOGGER.log(Level.WARNING, "Failed to get screenshot perceptual hash {0}", ex.toString());
+            return false;
+        }
+    }
+
     private TestSignal createTestSignalFromEvent(TestAdvisorTestSignal event){
         TestSignal signal = new TestSignal();
         signal.signalName = event.getTestSignalName();
@@ -297,6 +648,15 @@ public class Processor {
                 && event1.getTestSignalSeleniumLocator().equals(event2.getTestSignalSeleniumLocator());
     }
 
+    /**
+     * Get signature of a test step, test steps match in different test runs have the same signature
+     * @param step test step
+     * @return hash of selenium command and locator
+     */
+    private String getStepSignature(TestAdvisorTestSignal step){
+        return getHash(step.getTestSignalSeleniumCmd() + "\n" + step.getTestSignalSeleniumLocator());
+    }
+
     private String getHash(String s) {
         if (s==null || s.isEmpty()) 
             return "";
@@ -312,32 +672,39 @@ public class Processor {
         return Base64.getEncoder().encodeToString((messageDigest.digest()));
     }
 
-    private TestAdvisorTestCase getTestCaseFromTestRun(Path testRun, String testCaseName) throws IOException, ProcessException{
-        TestAdvisorTestRun advisorRun;
-        if (testRun == null) return null;
-        if (!testRun.resolve(Registry.TESTADVISOR_TEST_RESULT).toFile().exists()
-            || !testRun.resolve(Registry.TESTADVISOR_TEST_RESULT).toFile().canRead()) return null;
-        try(InputStream is = new FileInputStream(testRun.resolve(Registry.TESTADVISOR_TEST_RESULT).toFile())){
-            advisorRun = new TestAdvisorResultAdapter().process(is);
-        }
-
-        for (TestAdvisorTestCase testcase : advisorRun.getTestCaseList()){
-            if (testcase.getTestCaseFullName().equals(testCaseName))
-                return testcase;
+    /**
+     * Get a test run loaded during current process, the test run is loaded if it's not loaded yet
+     * @param testRun path to test run
+     * @param baselineRuns test runs loaded during current process
+     * @return loaded test run
+     */
+    private BaselineRun getBaselineRun(Path testRun, Map<Path, BaselineRun> baselineRuns) throws IOException, ProcessException{
+        BaselineRun baselineRun = baselineRuns.get(testRun);
+        if (baselineRun == null){
+            baselineRun = loadBaselineRun(testRun);
+            BaselineRun existing = baselineRuns.putIfAbsent(testRun, baselineRun);
+            if (existing != null) baselineRun = existing;
         }
-        return null;
+        return baselineRun;
     }
 
-    private Instant getTestRunStartTime(Path testRun) throws IOException, ProcessException{
-        TestAdvisorTestRun advisorRun;
-        if (testRun == null) return null;
-        if (!testRun.resolve(Registry.TESTADVISOR_TEST_RESULT).toFile().exists()
-            || !testRun.resolve(Registry.TESTADVISOR_TEST_RESULT).toFile().canRead()) return null;
-        try(InputStream is = new FileInputStream(testRun.resolve(Registry.TESTADVISOR_TEST_RESULT).toFile())){
-            advisorRun = new TestAdvisorResultAdapter().process(is);
+    /**
+     * Load test result of a baseline test run and index its test cases by name
+     * @param testRun path to test run
+     * @return loaded test run
+     */
+    private BaselineRun loadBaselineRun(Path testRun) throws IOException, ProcessException{
+        LOGGER.log(Level.INFO,"Load baseline test run {0}", testRun);
+        Path testResult = testRun.resolve(Registry.TESTADVISOR_TEST_RESULT);
+        if (!testResult.toFile().exists() || !testResult.toFile().canRead())
+            return new BaselineRun(testRun, null, getSalesforceId(testRun), new HashMap<>());
+
+        TestAdvisorTestRun advisorRun = TestResultCache.getInstance().getTestAdvisorTestRun(testResult);
+        Map<String, TestAdvisorTestCase> testCases = new HashMap<>();
+        for (TestAdvisorTestCase testcase : advisorRun.getTestCaseList()){
+            testCases.putIfAbsent(testcase.getTestCaseFullName(), testcase);
         }
-
-        return advisorRun.getTestSuiteStartTime();
+        return new BaselineRun(testRun, advisorRun.getTestSuiteStartTime(), getSalesforceId(testRun), testCases);
     }
 
     private String getSalesforceId(Path testRun) throws JSONException, FileNotFoundException{
@@ -354,10 +721,11 @@ public class Processor {
      * excluded areas are defined as different image areas by compare last 2 success test runs
      * @param testrun
      * @param current
+     * @param baselineRuns test runs loaded during current process
      * @throws IOException
      * @throws ProcessException
      */
-    private void setExcludedAreas(Path testrun, TestAdvisorTestCase current) throws IOException, ProcessException{
+    private void setExcludedAreas(Path testrun, TestAdvisorTestCase current, Map<Path, BaselineRun> baselineRuns) throws IOException, ProcessException{
         LOGGER.log(Level.INFO,"Start getExcludedAreas for test {0}",current.getTestCaseFullName());
         LOGGER.log(Level.INFO,"baseline test run {0}",testrun);
 
@@ -366,11 +734,12 @@ public class Processor {
             return;
         LOGGER.log(Level.INFO,"control test run {0}",baselineRun);
 
-        TestAdvisorTestCase baseline = getTestCaseFromTestRun(baselineRun,current.getTestCaseFullName());
+        TestAdvisorTestCase baseline = getBaselineRun(baselineRun, baselineRuns).testCases.get(current.getTestCaseFullName());
 
         // sort event list by event time, oldest first
         Comparator<TestAdvisorTestSignal> compareByEventTime = Comparator.comparing(TestAdvisorTestSignal::getTestSignalTime);
-        List<TestAdvisorTestSignal> baselineEventList = baseline != null ? baseline.getTestSignalList() : new ArrayList<>();
+        // baseline test case is shared by all users of the cached test run, sort a copy
+        List<TestAdvisorTestSignal> baselineEventList = baseline != null ? new ArrayList<>(baseline.getTestSignalList()) : new ArrayList<>();
         baselineEventList.sort(compareByEventTime);
         List<TestAdvisorTestSignal> currentEventList =  current.getTestSignalList();
         currentEventList.sort(compareByEventTime);
@@ -387,23 +756,69 @@ public class Processor {
                 j++;
             }
                     
-            if(j<baselineSteps.size() && fileExist(baselineSteps.get(j).getTestSignalScreenshotPath())
-                && fileExist(currentStep.getTestSignalScreenshotPath())){
+            if(j<baselineSteps.size() && fileExist(getScreenshotFile(baselineSteps.get(j)))
+                && fileExist(getScreenshotFile(currentStep))){
                 LOGGER.log(Level.INFO,"current step number {0}",currentStep.getTestSignalScreenshotRecorderNumber());
                 // find a match baseline step
                 TestAdvisorTestSignal baselineStep = baselineSteps.get(j);
-                // image comparison
-                Path currentPath = Paths.get(currentStep.getTestSignalScreenshotPath());
-                File resultFile = currentPath.getParent().resolve(currentPath.getFileName().toString()+".ignoredareas.png").toFile();
-                ImageComparisonResult result = screenshotManager.screenshotsComparison(
-                    new File(baselineStep.getTestSignalScreenshotPath()),new File(currentStep.getTestSignalScreenshotPath()),resultFile);
-                if (result.getRectangles() != null){
-                    LOGGER.log(Level.INFO,"exclude areas list size {0}",result.getRectangles().size());
-                    currentStep.setExcludedAreas(result.getRectangles());
+                if (isIdenticalScreenshot(baselineStep, currentStep) || isSimilarScreenshot(baselineStep, currentStep)){
+                    // identical screenshots, nothing to exclude
+                    j++;
+                    continue;
+                }
+                List<Rectangle> excludedAreas = getExcludedAreas(current.getTestCaseFullName(), baselineStep, currentStep);
+                if (excludedAreas != null){
+                    LOGGER.log(Level.INFO,"exclude areas list size {0}",excludedAreas.size());
+                    currentStep.setExcludedAreas(excludedAreas);
                 }
                 j++;
             }
         }
     }
 
+    /**
+     * Get excluded areas of a test step by comparing its screenshot with the screenshot of
+     * the matching control test step
+     * Excluded areas are saved in registry excluded area index, a pair of screenshots which
+     * was compared before is not compared again.
+     * @param testCaseName test case full name
+     * @param baselineStep matching test step in control test run
+     * @param currentStep current test step
+     * @return list of excluded areas, or null if comparison didn't find any area
+     */
+    private List<Rectangle> getExcludedAreas(String testCaseName, TestAdvisorTestSignal baselineStep, TestAdvisorTestSignal currentStep){
+        File baselineFile = getScreenshotFile(baselineStep);
+        File currentFile = getScreenshotFile(currentStep);
+        String stepSignature = getStepSignature(currentStep);
+        ExcludedAreaIndex excludedAreaIndex = registry.getExcludedAreaIndex();
+        String baselineHash = null;
+        String currentHash = null;
+        try{
+            baselineHash = registry.getScreenshotStore().getHash(baselineFile.toPath());
+            currentHash = registry.getScreenshotStore().getHash(currentFile.toPath());
+            List<Rectangle> excludedAreas = excludedAreaIndex.get(testCaseName, stepSignature, baselineHash, currentHash);
+            if (excludedAreas != null){
+                LOGGER.log(Level.INFO,"Found saved excluded areas for step {0}",currentStep.getTestSignalScreenshotRecorderNumber());
+                return excludedAreas;
+            }
+        }catch(IOException ex){
+            LOGGER.log(Level.WARNING, "Failed to read excluded areas {0}", ex.toString());
+        }
+
+        // image comparison
+        Path currentPath = currentFile.toPath();
+        File resultFile = currentPath.getParent().resolve(currentPath.getFileName().toString()+".ignoredareas.png").toFile();
+        ImageComparisonResult result = screenshotManager.screenshotsComparison(baselineFile,currentFile,resultFile);
+        if (result.getRectangles() == null)
+            return null;
+
+        if (baselineHash != null && currentHash != null){
+            try{
+                excludedAreaIndex.put(testCaseName, stepSignature, baselineHash, currentHash, result.getRectangles());
+            }catch(IOException ex){
+                LOGGER.log(Level.WARNING, "Failed to save excluded areas {0}", ex.toString());
+            }
+        }
+        return result.getRectangles();
+    }
 }
@@ -0,0 +1,864 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+
+import com.github.romankh3.image.comparison.model.ImageComparisonResult;
+import com.github.romankh3.image.comparison.model.ImageComparisonState;
+import com.github.romankh3.image.comparison.model.Rectangle;
+
+/**
+ * RasterComparison compares 2 images directly on their backing pixel arrays.
+ *
+ * It's an alternative to ImageComparison of image comparison library and returns the same
+ * result: comparison state, diff rectangles and difference percent. Pixels are compared with
+ * the same color tolerance and diff pixels are grouped into regions the same way, see
+ * groupDiffRuns. Rectangles of regions smaller than minimal rectangle size are dropped, then
+ * overlapping rectangles are merged by the same 2 passes of the library.
+ * Pixels are read row by row from DataBufferInt or DataBufferByte without per pixel
+ * allocation, other image types are read through BufferedImage.getRGB.
+ * With a thread pool, images are split into row bands which are compared in parallel.
+ * Diff runs of all bands are grouped together, so rectangles crossing band borders are
+ * the same as comparing in a single thread.
+ * In pyramid mode, images are first compared at block level: every BLOCK_SIZE x BLOCK_SIZE
+ * block is reduced to a hash of its pixels, and only blocks with different hashes are
+ * compared pixel by pixel. Block hashes are cached per image, so a baseline image reused
+ * by many comparisons is hashed once, images must not be modified once compared.
+ * A verdict comparison only tells whether the diff is large enough to report. Diff groups
+ * are tracked while rows are scanned and the scan stops as soon as a group is large enough,
+ * diff groups are coarser than library regions, so a verdict may stop earlier than a full
+ * comparison would find a large enough diff rectangle,
+ * in pyramid mode no pixel is compared if different blocks can't hold a large enough diff.
+ * With a thread pool, each row band tracks its own diff groups and all bands stop once a
+ * group of any band is large enough, otherwise diff runs of all bands are grouped together.
+ * A single instance can be used by multiple threads.
+ */
+public class RasterComparison {
+
+    private static final Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    public static final int GROUP_DISTANCE = 5;
+    // directions a diff region grows in: right, below, above right, below left and below right
+    private static final int[] GROUP_DIRECTION_X = {1, 0, 1, -1, 1};
+    private static final int[] GROUP_DIRECTION_Y = {0, 1, -1, 1, 1};
+    // same as image comparison library default pixel tolerance level 0.1
+    private static final double PIXEL_TOLERANCE_LEVEL = 0.1;
+    private static final int DIFFERENCE_CONSTANT = (int) Math.pow(PIXEL_TOLERANCE_LEVEL * Math.sqrt(255 * 255 * 3.0), 2);
+    private static final int MAX_CHANNEL_DIFF = 3 * 255;
+    private static final int MIN_BAND_HEIGHT = 64;
+    public static final int BLOCK_SIZE = 8;
+    private static final long HASH_PRIME = 0x100000001b3L;
+    private static final int MAX_BOUND_BLOCKS = 1024;
+
+    private final int minimalRectangleSize;
+    private final ExecutorService pool;
+    private final int bandCount;
+    private final boolean pyramid;
+    private final Map<BufferedImage, long[]> blockHashCache = Collections.synchronizedMap(new WeakHashMap<>());
+
+    public RasterComparison(int minimalRectangleSize){
+        this(minimalRectangleSize, null, 1, false);
+    }
+
+    /**
+     * @param minimalRectangleSize minimal size of diff rectangle to report
+     * @param pool thread pool shared by all comparisons, null to compare in current thread
+     * @param bandCount max number of row bands compared in parallel
+     * @param pyramid true to compare block hashes first and only compare pixels of different blocks
+     */
+    public RasterComparison(int minimalRectangleSize, ExecutorService pool, int bandCount, boolean pyramid){
+        this.minimalRectangleSize = minimalRectangleSize;
+        this.pool = pool;
+        this.bandCount = bandCount;
+        this.pyramid = pyramid;
+    }
+
+    /**
+     * Compare 2 images
+     * @param expected baseline image
+     * @param actual current image
+     * @param resultFile comparison result image with diff rectangles, only saved for a mismatch, null if not needed
+     * @param excludedAreas list of areas in current image to exclude from comparison, may be null
+     * @return image comparison result, including difference percent and list of diff area
+     */
+    public ImageComparisonResult compare(BufferedImage expected, BufferedImage actual, File resultFile,
+                                            List<Rectangle> excludedAreas){
+        if (expected.getWidth() != actual.getWidth() || expected.getHeight() != actual.getHeight()){
+            return ImageComparisonResult.defaultSizeMisMatchResult(expected, actual,
+                        getDifferencePercent(expected, resize(actual, expected.getWidth(), expected.getHeight())));
+        }
+
+        // blocks to compare pixel by pixel, null to compare all pixels
+        boolean[] refineBlocks = pyramid ? getRefineBlocks(expected, actual) : null;
+        List<Rectangle> rectangles = new ArrayList<>();
+        DiffRuns runs = null;
+        if (!pyramid || refineBlocks != null){
+            runs = findDiffRuns(expected, actual, excludedAreas, refineBlocks, null);
+            rectangles = getDiffRectangles(runs);
+        }
+        if (rectangles.isEmpty())
+            return ImageComparisonResult.defaultMatchResult(expected, actual);
+
+        // like image comparison library, result image is only saved for a mismatch
+        BufferedImage resultImage = drawRectangles(actual, rectangles);
+        saveResult(resultImage, resultFile);
+        return ImageComparisonResult.defaultMisMatchResult(expected, actual, getDifferencePercent(runs.channelDiff, actual))
+                                    .setResult(resultImage)
+                                    .setRectangles(rectangles);
+    }
+
+    /**
+     * Compare 2 images until the diff is known to be large enough to report or not
+     * A diff is large enough if a diff rectangle is larger than minimal rectangle size in both
+     * width and height, or diff rectangles cover more than min diff ratio of the image.
+     * @param expected baseline image
+     * @param actual current image
+     * @param excludedAreas list of areas in current image to exclude from comparison, may be null
+     * @param minDiffRatio min diff ratio in percent, 0 to ignore diff ratio
+     * @return image comparison result, MISMATCH with diff rectangles found so far if diff is large
+     * enough, otherwise same as full comparison or MATCH without rectangles if different blocks
+     * can't hold a large enough diff. No result image is created.
+     */
+    public ImageComparisonResult verdict(BufferedImage expected, BufferedImage actual, List<Rectangle> excludedAreas,
+                                            int minDiffRatio){
+        if (expected.getWidth() != actual.getWidth() || expected.getHeight() != actual.getHeight())
+            return compare(expected, actual, null, excludedAreas);
+
+        ImageComparisonResult result = ImageComparisonResult.defaultMatchResult(expected, actual);
+        boolean[] refineBlocks = pyramid ? getRefineBlocks(expected, actual) : null;
+        // one tracker per row band, all bands stop once any of them found a large enough diff
+        AtomicBoolean stop = new AtomicBoolean();
+        List<VerdictTracker> trackers = new ArrayList<>();
+        for(int band = 0; band < getBandCount(actual.getHeight()); band++){
+            trackers.add(new VerdictTracker(minimalRectangleSize, minDiffRatio, actual, stop));
+        }
+        if (pyramid && (refineBlocks == null || trackers.get(0).isBelowThreshold(refineBlocks)))
+            return result;
+
+        DiffRuns runs = findDiffRuns(expected, actual, excludedAreas, refineBlocks, trackers);
+        VerdictTracker exceeded = null;
+        for(VerdictTracker tracker : trackers){
+            if (tracker.isExceeded() && exceeded == null) exceeded = tracker;
+        }
+        // diff groups crossing band borders are only complete once runs of all bands are grouped
+        List<Rectangle> rectangles = exceeded != null
+                                        ? filterRectangles(mergeRectangles(exceeded.getRectangles())) : getDiffRectangles(runs);
+        if (rectangles.isEmpty())
+            return result;
+        return ImageComparisonResult.defaultMisMatchResult(expected, actual, getDifferencePercent(runs.channelDiff, actual))
+                                    .setRectangles(rectangles);
+    }
+
+    /**
+     * Tracks diff groups while rows are scanned, diff runs no more than GROUP_DISTANCE apart
+     * in both directions are grouped and each group keeps its bounding box
+     * A diff region of groupDiffRuns never spans multiple groups, so a group is at least as large
+     * as the diff rectangles within it.
+     * Trackers of row bands of the same comparison share a stop flag, so all bands stop once
+     * any band found a large enough diff.
+     */
+    static class VerdictTracker {
+        private final int minAreaSize;
+        private final int minDiffRatio;
+        private final int width;
+        private final int height;
+        private final AtomicBoolean stop;
+        private int[] parent = new int[64];
+        private int[] minX = new int[64];
+        private int[] minY = new int[64];
+        private int[] maxX = new int[64];
+        private int[] maxY = new int[64];
+        private int count = 0;
+        private boolean exceeded = false;
+
+        VerdictTracker(int minAreaSize, int minDiffRatio, BufferedImage image, AtomicBoolean stop){
+            this.minAreaSize = minAreaSize;
+            this.minDiffRatio = minDiffRatio;
+            this.width = image.getWidth();
+            this.height = image.getHeight();
+            this.stop = stop;
+        }
+
+        boolean isExceeded(){
+            return exceeded;
+        }
+
+        /**
+         * Add diff runs of a scanned row to diff groups
+         * @param runs diff runs
+         * @param y scanned row
+         * @return true if a diff group of this or another band is large enough to report
+         */
+        boolean addRow(DiffRuns runs, int y){
+            if (runs.count > parent.length){
+                int capacity = Math.max(runs.count, parent.length * 2);
+                parent = Arrays.copyOf(parent, capacity);
+                minX = Arrays.copyOf(minX, capacity);
+                minY = Arrays.copyOf(minY, capacity);
+                maxX = Arrays.copyOf(maxX, capacity);
+                maxY = Arrays.copyOf(maxY, capacity);
+            }
+            for(int i = runs.rowStart[y]; i < runs.count; i++){
+                parent[i] = i;
+                minX[i] = runs.start[i];
+                maxX[i] = runs.end[i];
+                minY[i] = y;
+                maxY[i] = y;
+                if (i > runs.rowStart[y] && runs.start[i] - runs.end[i - 1] <= GROUP_DISTANCE)
+                    union(i, i - 1);
+                for(int prevY = Math.max(0, y - GROUP_DISTANCE); prevY < y; prevY++){
+                    int j = findFirstRun(runs, runs.rowStart[prevY], runs.rowStart[prevY + 1], runs.start[i] - GROUP_DISTANCE);
+                    for(; j < runs.rowStart[prevY + 1] && runs.start[j] - runs.end[i] <= GROUP_DISTANCE; j++){
+                        union(i, j);
+                    }
+                }
+            }
+            count = runs.count;
+            for(int i = runs.rowStart[y]; i < count && !exceeded; i++){
+                int root = find(i);
+                exceeded = isLargeDiff(new Rectangle(minX[root], minY[root], maxX[root], maxY[root]));
+            }
+            if (exceeded)
+                stop.set(true);
+            return stop.get();
+        }
+
+        /**
+         * @return bounding boxes of all diff groups found so far
+         */
+        List<Rectangle> getRectangles(){
+            List<Rectangle> rectangles = new ArrayList<>();
+            for(int i = 0; i < count; i++){
+                if (parent[i] == i)
+                    rectangles.add(new Rectangle(minX[i], minY[i], maxX[i], maxY[i]));
+            }
+            return rectangles;
+        }
+
+        /**
+         * Check whether diff pixels within different blocks can't make a large enough diff
+         * Diff groups can't reach beyond different blocks extended by GROUP_DISTANCE, so merged
+         * extended blocks are an upper bound of diff rectangles.
+         * @param refineBlocks blocks with different hashes
+         * @return true if diff is not large enough to report whatever pixels differ
+         */
+        boolean isBelowThreshold(boolean[] refineBlocks){
+            int blockColumns = getBlockCount(width);
+            List<Rectangle> bounds = new ArrayList<>();
+            for(int block = 0; block < refineBlocks.length; block++){
+                if (!refineBlocks[block]) continue;
+                int x = block % blockColumns * BLOCK_SIZE;
+                int y = block / blockColumns * BLOCK_SIZE;
+                bounds.add(new Rectangle(Math.max(0, x - GROUP_DISTANCE), Math.max(0, y - GROUP_DISTANCE),
+                    Math.min(width, x + BLOCK_SIZE + GROUP_DISTANCE) - 1, Math.min(height, y + BLOCK_SIZE + GROUP_DISTANCE) - 1));
+                if (bounds.size() > MAX_BOUND_BLOCKS) return false;
+            }
+            long boundSize = 0;
+            for(Rectangle bound : mergeRectangles(bounds)){
+                // pixel count of bound is never smaller than size of a rectangle within it
+                long boundWidth = (long) bound.getMaxPoint().getX() - (long) bound.getMinPoint().getX() + 1;
+                long boundHeight = (long) bound.getMaxPoint().getY() - (long) bound.getMinPoint().getY() + 1;
+                if (Math.min(boundWidth, boundHeight) > minAreaSize)
+                    return false;
+                boundSize += boundWidth * boundHeight;
+            }
+            return minDiffRatio <= 0 || getDiffRatio(boundSize) <= minDiffRatio;
+        }
+
+        /**
+         * Same check as processor does on reported diff rectangles
+         */
+        private boolean isLargeDiff(Rectangle rectangle){
+            long size = (long) rectangle.getWidth() * rectangle.getHeight();
+            if (size < minAreaSize) return false; //dropped by filterRectangles
+            return Math.min(rectangle.getHeight(), rectangle.getWidth()) > minAreaSize
+                || (minDiffRatio > 0 && getDiffRatio(size) > minDiffRatio);
+        }
+
+        private int getDiffRatio(long diffSize){
+            long imageSize = (long) width * height;
+            return imageSize > 0 ? (int) (diffSize * 100 / (float) imageSize) : 0;
+        }
+
+        private int find(int i){
+            while(parent[i] != i){
+                parent[i] = parent[parent[i]];
+                i = parent[i];
+            }
+            return i;
+        }
+
+        private void union(int i, int j){
+            int rootI = find(i);
+            int rootJ = find(j);
+            if (rootI == rootJ) return;
+            int root = Math.min(rootI, rootJ);
+            int other = Math.max(rootI, rootJ);
+            parent[other] = root;
+            minX[root] = Math.min(minX[root], minX[other]);
+            minY[root] = Math.min(minY[root], minY[other]);
+            maxX[root] = Math.max(maxX[root], maxX[other]);
+            maxY[root] = Math.max(maxY[root], maxY[other]);
+        }
+    }
+
+    /**
+     * Runs of adjacent diff pixels per row
+     */
+    static class DiffRuns {
+        private final int[] rowStart; //index of first run of each row, rowStart[height] is run count
+        private int[] start = new int[64];
+        private int[] end = new int[64];
+        private int count = 0;
+        private long channelDiff = 0; //sum of channel differences of all compared pixels
+
+        DiffRuns(int height){
+            rowStart = new int[height + 1];
+        }
+
+        /**
+         * Append runs of a band of rows following rows of this instance
+         */
+        private void append(DiffRuns band, int fromRow, int toRow){
+            for(int y = fromRow; y < toRow; y++){
+                rowStart[y] = count + band.rowStart[y];
+            }
+            if (count + band.count > start.length){
+                start = Arrays.copyOf(start, count + band.count);
+                end = Arrays.copyOf(end, count + band.count);
+            }
+            System.arraycopy(band.start, 0, start, count, band.count);
+            System.arraycopy(band.end, 0, end, count, band.count);
+            count += band.count;
+            rowStart[toRow] = count;
+            channelDiff += band.channelDiff;
+        }
+
+        private void add(int runStart, int runEnd){
+            if (count == start.length){
+                start = Arrays.copyOf(start, count * 2);
+                end = Arrays.copyOf(end, count * 2);
+            }
+            start[count] = runStart;
+            end[count] = runEnd;
+            count++;
+        }
+    }
+
+    /**
+     * Get number of row bands to compare in parallel
+     * @param height image height
+     * @return number of bands, 1 to compare in current thread
+     */
+    private int getBandCount(int height){
+        return pool == null ? 1 : Math.max(1, Math.min(bandCount, height / MIN_BAND_HEIGHT));
+    }
+
+    /**
+     * Compare 2 images of the same size and collect runs of diff pixels, row bands are
+     * compared in parallel if a thread pool is available
+     * @param expected baseline image
+     * @param actual current image
+     * @param excludedAreas areas to exclude from comparison, may be null
+     * @param trackers verdict tracker of each band, null to compare all rows
+     * @return diff runs of all rows
+     */
+    private DiffRuns findDiffRuns(BufferedImage expected, BufferedImage actual, List<Rectangle> excludedAreas,
+                                    boolean[] refineBlocks, List<VerdictTracker> trackers){
+        int height = actual.getHeight();
+        int bands = getBandCount(height);
+        DiffRuns runs = new DiffRuns(height);
+        if (bands <= 1){
+            findDiffRuns(expected, actual, 0, height, excludedAreas, refineBlocks, runs,
+                trackers == null ? null : trackers.get(0));
+            return runs;
+        }
+
+        List<Future<DiffRuns>> futures = new ArrayList<>();
+        try{
+            // first band is compared in current thread
+            for(int band = 1; band < bands; band++){
+                int fromRow = height * band / bands;
+                int toRow = height * (band + 1) / bands;
+                VerdictTracker tracker = trackers == null ? null : trackers.get(band);
+                futures.add(pool.submit(() -> {
+                    DiffRuns bandRuns = new DiffRuns(height);
+                    findDiffRuns(expected, actual, fromRow, toRow, excludedAreas, refineBlocks, bandRuns, tracker);
+                    return bandRuns;
+                }));
+            }
+            findDiffRuns(expected, actual, 0, height / bands, excludedAreas, refineBlocks, runs,
+                trackers == null ? null : trackers.get(0));
+            for(int band = 1; band < bands; band++){
+                runs.append(getBandRuns(futures.get(band - 1)), height * band / bands, height * (band + 1) / bands);
+            }
+            return runs;
+        }finally{
+            for(Future<DiffRuns> future : futures){
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static DiffRuns getBandRuns(Future<DiffRuns> future){
+        try{
+            return future.get();
+        }catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        }catch(ExecutionException ex){
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Compare block hashes of 2 images of the same size
+     * @param expected baseline image
+     * @param actual current image
+     * @return blocks with different hashes to compare pixel by pixel, or null if all blocks are identical
+     */
+    private boolean[] getRefineBlocks(BufferedImage expected, BufferedImage actual){
+        long[] expectedHashes = getBlockHashes(expected);
+        long[] actualHashes = getBlockHashes(actual);
+        boolean[] refineBlocks = new boolean[expectedHashes.length];
+        boolean hasDiff = false;
+        for(int block = 0; block < refineBlocks.length; block++){
+            refineBlocks[block] = expectedHashes[block] != actualHashes[block];
+            hasDiff |= refineBlocks[block];
+        }
+        return hasDiff ? refineBlocks : null;
+    }
+
+    /**
+     * Get hashes of all blocks of an image, the coarse level of comparison
+     * Unlike a scaled down image, a block hash changes with any pixel of the block, so no diff
+     * is lost at coarse level.
+     * @param image image to hash
+     * @return hash of each block, row by row
+     */
+    private long[] getBlockHashes(BufferedImage image){
+        long[] hashes = blockHashCache.get(image);
+        if (hashes != null) return hashes;
+
+        int width = image.getWidth();
+        int blockColumns = getBlockCount(width);
+        hashes = new long[blockColumns * getBlockCount(image.getHeight())];
+        int[] row = new int[width];
+        for(int y = 0; y < image.getHeight(); y++){
+            readRow(image, y, row);
+            int blockRow = y / BLOCK_SIZE * blockColumns;
+            for(int x = 0; x < width; x++){
+                int block = blockRow + x / BLOCK_SIZE;
+                hashes[block] = (hashes[block] ^ (row[x] & 0xffffff)) * HASH_PRIME;
+            }
+        }
+        blockHashCache.put(image, hashes);
+        return hashes;
+    }
+
+    private static int getBlockCount(int size){
+        return (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    /**
+     * Compare rows of 2 images of the same size and collect runs of diff pixels
+     * @param expected baseline image
+     * @param actual current image
+     * @param fromRow first row to compare
+     * @param toRow row after last row to compare
+     * @param excludedAreas areas to exclude from comparison, may be null
+     * @param refineBlocks blocks to compare, pixels of other blocks are identical, null to compare all pixels
+     * @param runs diff runs of compared rows, channel differences of all compared pixels
+     * are added up including excluded areas
+     * @param tracker verdict tracker to stop once diff is large enough, null to compare all rows
+     */
+    static void findDiffRuns(BufferedImage expected, BufferedImage actual, int fromRow, int toRow,
+                                List<Rectangle> excludedAreas, boolean[] refineBlocks, DiffRuns runs,
+                                VerdictTracker tracker){
+        int width = actual.getWidth();
+        int blockColumns = getBlockCount(width);
+        int[] expectedRow = new int[width];
+        int[] actualRow = new int[width];
+        boolean[] excludedRow = excludedAreas == null || excludedAreas.isEmpty() ? null : new boolean[width];
+        long channelDiff = 0;
+        for(int y = fromRow; y < toRow; y++){
+            runs.rowStart[y] = runs.count;
+            if (excludedRow != null)
+                fillExcludedRow(excludedAreas, y, excludedRow);
+
+            int runStart = -1;
+            int runEnd = -1;
+            int blockRow = y / BLOCK_SIZE * blockColumns;
+            int fromX = 0;
+            while(fromX < width){
+                int toX = width;
+                if (refineBlocks != null){
+                    // next segment of adjacent blocks to compare
+                    int block = fromX / BLOCK_SIZE;
+                    while(block < blockColumns && !refineBlocks[blockRow + block]) block++;
+                    if (block == blockColumns) break;
+                    int lastBlock = block;
+                    while(lastBlock < blockColumns && refineBlocks[blockRow + lastBlock]) lastBlock++;
+                    fromX = block * BLOCK_SIZE;
+                    toX = Math.min(width, lastBlock * BLOCK_SIZE);
+                }
+                readRow(expected, y, fromX, toX, expectedRow);
+                readRow(actual, y, fromX, toX, actualRow);
+                for(int x = fromX; x < toX; x++){
+                    int expectedRgb = expectedRow[x];
+                    int actualRgb = actualRow[x];
+                    if (expectedRgb == actualRgb) continue;
+                    int red = ((expectedRgb >> 16) & 0xff) - ((actualRgb >> 16) & 0xff);
+                    int green = ((expectedRgb >> 8) & 0xff) - ((actualRgb >> 8) & 0xff);
+                    int blue = (expectedRgb & 0xff) - (actualRgb & 0xff);
+                    channelDiff += Math.abs(red) + Math.abs(green) + Math.abs(blue);
+                    if (red * red + green * green + blue * blue <= DIFFERENCE_CONSTANT
+                        || (excludedRow != null && excludedRow[x]))
+                        continue;
+                    if (runStart >= 0 && x - runEnd > 1){
+                        runs.add(runStart, runEnd);
+                        runStart = -1;
+                    }
+                    if (runStart < 0) runStart = x;
+                    runEnd = x;
+                }
+                fromX = toX;
+            }
+            if (runStart >= 0)
+                runs.add(runStart, runEnd);
+            if (tracker != null && tracker.addRow(runs, y)){
+                // rows left are not compared
+                Arrays.fill(runs.rowStart, y + 1, toRow, runs.count);
+                break;
+            }
+        }
+        runs.rowStart[toRow] = runs.count;
+        runs.channelDiff += channelDiff;
+    }
+
+    /**
+     * Get diff rectangles to report, same as image comparison library: rectangles of diff regions
+     * smaller than minimal rectangle size are dropped, then overlapping rectangles are merged twice
+     * @param runs diff runs of all rows
+     * @return list of diff rectangles
+     */
+    List<Rectangle> getDiffRectangles(DiffRuns runs){
+        return mergeOverlapping(mergeOverlapping(filterRectangles(groupDiffRuns(runs))));
+    }
+
+    /**
+     * Group diff pixels into regions the same way as image comparison library
+     * Starting from each diff pixel not in a region yet in row order, a region takes diff pixels
+     * not in a region up to GROUP_DISTANCE pixels to the right, below, below left, below right and
+     * above right of its pixels. Unlike grouping by distance, a region doesn't take pixels left
+     * or above of its pixels, nor pixels of an earlier region.
+     * @param runs diff runs of all rows
+     * @return bounding box of each region in order of its first pixel
+     */
+    static List<Rectangle> groupDiffRuns(DiffRuns runs){
+        int height = runs.rowStart.length - 1;
+        // index of first pixel of each run, pixels of runs are numbered in row order
+        int[] offset = new int[runs.count + 1];
+        for(int i = 0; i < runs.count; i++){
+            offset[i + 1] = offset[i] + runs.end[i] - runs.start[i] + 1;
+        }
+        boolean[] grouped = new boolean[offset[runs.count]];
+        int[] stack = new int[64];
+        List<Rectangle> rectangles = new ArrayList<>();
+        for(int y = 0; y < height; y++){
+            for(int i = runs.rowStart[y]; i < runs.rowStart[y + 1]; i++){
+                for(int x = runs.start[i]; x <= runs.end[i]; x++){
+                    if (grouped[offset[i] + x - runs.start[i]]) continue;
+
+                    grouped[offset[i] + x - runs.start[i]] = true;
+                    stack[0] = x;
+                    stack[1] = y;
+                    int size = 2;
+                    int minX = x;
+                    int minY = y;
+                    int maxX = x;
+                    int maxY = y;
+                    while(size > 0){
+                        int pixelY = stack[--size];
+                        int pixelX = stack[--size];
+                        minX = Math.min(minX, pixelX);
+                        minY = Math.min(minY, pixelY);
+                        maxX = Math.max(maxX, pixelX);
+                        maxY = Math.max(maxY, pixelY);
+                        for(int distance = 1; distance <= GROUP_DISTANCE; distance++){
+                            for(int direction = 0; direction < GROUP_DIRECTION_X.length; direction++){
+                                int nextX = pixelX + GROUP_DIRECTION_X[direction] * distance;
+                                int nextY = pixelY + GROUP_DIRECTION_Y[direction] * distance;
+                                int pixel = findPixel(runs, offset, nextX, nextY);
+                                if (pixel < 0 || grouped[pixel]) continue;
+                                grouped[pixel] = true;
+                                if (size + 2 > stack.length)
+                                    stack = Arrays.copyOf(stack, stack.length * 2);
+                                stack[size++] = nextX;
+                                stack[size++] = nextY;
+                            }
+                        }
+                    }
+                    rectangles.add(new Rectangle(minX, minY, maxX, maxY));
+                }
+            }
+        }
+        return rectangles;
+    }
+
+    /**
+     * Find index of a diff pixel
+     * @return index of pixel numbered by offset of its run, -1 if pixel is not a diff pixel
+     */
+    private static int findPixel(DiffRuns runs, int[] offset, int x, int y){
+        if (x < 0 || y < 0 || y >= runs.rowStart.length - 1) return -1;
+        int run = findFirstRun(runs, runs.rowStart[y], runs.rowStart[y + 1], x);
+        if (run == runs.rowStart[y + 1] || runs.start[run] > x) return -1;
+        return offset[run] + x - runs.start[run];
+    }
+
+    /**
+     * Merge overlapping rectangles in a single pass of image comparison library
+     * A pass doesn't always merge all overlapping rectangles, so the library runs it twice.
+     * @param rectangles list of rectangles, merged rectangles are changed to zero rectangles
+     * @return list of merged rectangles
+     */
+    static List<Rectangle> mergeOverlapping(List<Rectangle> rectangles){
+        List<Rectangle> merged = new ArrayList<>(rectangles);
+        for(int i = 0; i < merged.size(); i++){
+            if (merged.get(i).equals(Rectangle.createZero())) i++;
+            for(int j = i + 1; j < merged.size(); j++){
+                Rectangle a = merged.get(i);
+                Rectangle b = merged.get(j);
+                if (b.equals(Rectangle.createZero())) continue;
+                if (a.isOverlapping(b)){
+                    merged.set(i, a.merge(b));
+                    b.makeZeroRectangle();
+                    if (i != 0) i--;
+                }
+            }
+        }
+        List<Rectangle> nonZero = new ArrayList<>();
+        for(Rectangle rectangle : merged){
+            if (!rectangle.equals(Rectangle.createZero()))
+                nonZero.add(rectangle);
+        }
+        return nonZero;
+    }
+
+    /**
+     * Merge overlapping rectangles until no rectangles overlap
+     * @param rectangles list of rectangles
+     * @return list of merged rectangles
+     */
+    static List<Rectangle> mergeRectangles(List<Rectangle> rectangles){
+        List<Rectangle> merged = new ArrayList<>(rectangles);
+        boolean changed = true;
+        while(changed){
+            changed = false;
+            for(int i = 0; i < merged.size() && !changed; i++){
+                for(int j = i + 1; j < merged.size(); j++){
+                    Rectangle a = merged.get(i);
+                    Rectangle b = merged.get(j);
+                    if (isOverlapping(a, b)){
+                        merged.set(i, new Rectangle(
+                            (int) Math.min(a.getMinPoint().getX(), b.getMinPoint().getX()),
+                            (int) Math.min(a.getMinPoint().getY(), b.getMinPoint().getY()),
+                            (int) Math.max(a.getMaxPoint().getX(), b.getMaxPoint().getX()),
+                            (int) Math.max(a.getMaxPoint().getY(), b.getMaxPoint().getY())));
+                        merged.remove(j);
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Remove rectangles smaller than minimal rectangle size in pixel count
+     * @param rectangles list of rectangles
+     * @return list of rectangles to report
+     */
+    List<Rectangle> filterRectangles(List<Rectangle> rectangles){
+        List<Rectangle> filtered = new ArrayList<>();
+        for(Rectangle rectangle : rectangles){
+            if ((long) rectangle.getWidth() * rectangle.getHeight() >= minimalRectangleSize)
+                filtered.add(rectangle);
+        }
+        return filtered;
+    }
+
+    static float getDifferencePercent(long channelDiff, BufferedImage image){
+        long maxDiff = (long) MAX_CHANNEL_DIFF * image.getWidth() * image.getHeight();
+        return maxDiff > 0 ? (float) (100.0 * channelDiff / maxDiff) : 0;
+    }
+
+    private static boolean isOverlapping(Rectangle a, Rectangle b){
+        return a.getMinPoint().getX() <= b.getMaxPoint().getX() && b.getMinPoint().getX() <= a.getMaxPoint().getX()
+            && a.getMinPoint().getY() <= b.getMaxPoint().getY() && b.getMinPoint().getY() <= a.getMaxPoint().getY();
+    }
+
+    /**
+     * Find first run in a row which ends at or after a column
+     */
+    private static int findFirstRun(DiffRuns runs, int from, int to, int minEnd){
+        while(from < to){
+            int middle = (from + to) >>> 1;
+            if (runs.end[middle] < minEnd)
+                from = middle + 1;
+            else
+                to = middle;
+        }
+        return from;
+    }
+
+    /**
+     * Read a row of pixels as packed RGB, alpha is ignored by comparison
+     * @param image image to read
+     * @param y row index
+     * @param row buffer of image width
+     */
+    static void readRow(BufferedImage image, int y, int[] row){
+        readRow(image, y, 0, image.getWidth(), row);
+    }
+
+    /**
+     * Read part of a row of pixels as packed RGB, alpha is ignored by comparison
+     * @param image image to read
+     * @param y row index
+     * @param fromX first column to read
+     * @param toX column after last column to read
+     * @param row buffer of image width, only columns fromX to toX are filled
+     */
+    static void readRow(BufferedImage image, int y, int fromX, int toX, int[] row){
+        WritableRaster raster = image.getRaster();
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        boolean isPlainRaster = raster.getParent() == null && dataBuffer.getNumBanks() == 1 && dataBuffer.getOffset() == 0
+                                && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0;
+        switch(isPlainRaster ? image.getType() : BufferedImage.TYPE_CUSTOM){
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:{
+                int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+                System.arraycopy(((DataBufferInt) dataBuffer).getData(), y * stride + fromX, row, fromX, toX - fromX);
+                break;
+            }
+            case BufferedImage.TYPE_3BYTE_BGR:{
+                int stride = ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride();
+                byte[] data = ((DataBufferByte) dataBuffer).getData();
+                for(int x = fromX, i = y * stride + fromX * 3; x < toX; x++, i += 3){
+                    row[x] = (data[i] & 0xff) | ((data[i + 1] & 0xff) << 8) | ((data[i + 2] & 0xff) << 16);
+                }
+                break;
+            }
+            case BufferedImage.TYPE_4BYTE_ABGR:{
+                int stride = ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride();
+                byte[] data = ((DataBufferByte) dataBuffer).getData();
+                for(int x = fromX, i = y * stride + fromX * 4; x < toX; x++, i += 4){
+                    row[x] = (data[i + 1] & 0xff) | ((data[i + 2] & 0xff) << 8) | ((data[i + 3] & 0xff) << 16);
+                }
+                break;
+            }
+            default:
+                image.getRGB(fromX, y, toX - fromX, 1, row, fromX, image.getWidth());
+        }
+    }
+
+    private static void fillExcludedRow(List<Rectangle> excludedAreas, int y, boolean[] excludedRow){
+        Arrays.fill(excludedRow, false);
+        for(Rectangle area : excludedAreas){
+            if (y < area.getMinPoint().getY() || y > area.getMaxPoint().getY()) continue;
+            int from = Math.max(0, (int) area.getMinPoint().getX());
+            int to = Math.min(excludedRow.length - 1, (int) area.getMaxPoint().getX());
+            if (from <= to)
+                Arrays.fill(excludedRow, from, to + 1, true);
+        }
+    }
+
+    private static float getDifferencePercent(BufferedImage expected, BufferedImage actual){
+        int width = expected.getWidth();
+        int[] expectedRow = new int[width];
+        int[] actualRow = new int[width];
+        long channelDiff = 0;
+        for(int y = 0; y < expected.getHeight(); y++){
+            readRow(expected, y, expectedRow);
+            readRow(actual, y, actualRow);
+            for(int x = 0; x < width; x++){
+                int expectedRgb = expectedRow[x];
+                int actualRgb = actualRow[x];
+                channelDiff += Math.abs(((expectedRgb >> 16) & 0xff) - ((actualRgb >> 16) & 0xff))
+                            + Math.abs(((expectedRgb >> 8) & 0xff) - ((actualRgb >> 8) & 0xff))
+                            + Math.abs((expectedRgb & 0xff) - (actualRgb & 0xff));
+            }
+        }
+        return getDifferencePercent(channelDiff, expected);
+    }
+
+    private static BufferedImage resize(BufferedImage image, int width, int height){
+        BufferedImage resized = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = resized.createGraphics();
+        graphics.drawImage(image, 0, 0, width, height, null);
+        graphics.dispose();
+        return resized;
+    }
+
+    private static BufferedImage drawRectangles(BufferedImage image, List<Rectangle> rectangles){
+        BufferedImage resultImage = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = resultImage.createGraphics();
+        graphics.drawImage(image, 0, 0, null);
+        graphics.setColor(Color.RED);
+        graphics.setStroke(new BasicStroke(1));
+        for(Rectangle rectangle : rectangles){
+            graphics.drawRect((int) rectangle.getMinPoint().getX(), (int) rectangle.getMinPoint().getY(),
+                                rectangle.getWidth(), rectangle.getHeight());
+        }
+        graphics.dispose();
+        return resultImage;
+    }
+
+    private static void saveResult(BufferedImage image, File resultFile){
+        if (resultFile == null) return;
+        try{
+            File parent = resultFile.getAbsoluteFile().getParentFile();
+            if (parent != null) parent.mkdirs();
+            ImageIO.write(image, "png", resultFile);
+        }catch(IOException ex){
+            LOGGER.log(Level.WARNING, "Failed to save comparison result image {0}", ex.toString());
+        }
+    }
+}
@@ -13,25 +13,27 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.time.Instant;
-import java.time.LocalDateTime;
-import java.time.OffsetDateTime;
-import java.time.ZoneId;
-import java.time.ZoneOffset;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -45,7 +47,6 @@ import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.github.romankh3.image.comparison.model.Rectangle;
 import com.google.common.base.Strings;
 import com.salesforce.cte.common.TestAdvisorResult;
-import com.salesforce.cte.common.TestCaseExecution;
 import com.salesforce.cte.datamodel.client.RectangleDeserializer;
 import com.salesforce.cte.datamodel.client.RectangleSerializer;
 import com.salesforce.cte.datamodel.client.TestExecution;
@@ -70,14 +71,77 @@ public class Registry {
     public static final String TESTADVISOR_TEST_RESULT = "test-result.json";
     public static final String TESTADVISOR_PROPERTY_CLIENT_GUID = "ClientRegistryGuid";
     public static final String VERSION_PROPERTY = "testadvisor.cli.version";
+    public static final String TESTADVISOR_INDEX_FOLDER = "index";
+    public static final String TESTADVISOR_SCREENSHOT_STORE_FOLDER = "screenshots";
+    public static final String TESTADVISOR_ARCHIVE_FOLDER = "archive";
+    public static final String TESTADVISOR_BASELINE_CACHE_FOLDER = "baselinecache";
+    public static final String TESTADVISOR_LEASE_FOLDER = "leases";
+    public static final String IMPORTED_MARKER_FILENAME = "test-run.imported";
+    public static final String TESTADVISOR_PROPERTY_LAYOUT = "registry.layout";
+    public static final String LAYOUT_FLAT = "flat";
+    public static final String LAYOUT_SHARDED = "sharded";
 
-    private List<Path> allTestRunList = new ArrayList<>();
+    /**
+     * Immutable snapshot of all test runs with test result in registry
+     * A new snapshot is published whenever the test run list is refreshed, so readers
+     * always see a consistent test run list without locking.
+     */
+    private static class TestRunSnapshot {
+        private final NavigableMap<TestRunId, Path> testRuns;
+        private volatile boolean historyIndexed = false;
+
+        private TestRunSnapshot(NavigableMap<TestRunId, Path> testRuns){
+            this.testRuns = Collections.unmodifiableNavigableMap(testRuns);
+        }
+    }
+
+    private volatile TestRunSnapshot snapshot = new TestRunSnapshot(new TreeMap<>());
+    private final Object writeLock = new Object(); //serializes registry writes
+    private final Object propertiesLock = new Object(); //serializes registry properties access
+    private RunCatalog runCatalog;
+    private TestHistoryIndex testHistoryIndex;
+    private ExcludedAreaIndex excludedAreaIndex;
+    private VolatilityMaskIndex volatilityMaskIndex;
+    private ScreenshotStore screenshotStore;
+    private RunArchive runArchive;
+    private RunLease runLease;
+    private volatile BaselineStoreCache baselineStoreCache;
     private Properties registryConfig = new Properties();
     private Path registryRoot;
     public Path getRegistryRoot(){
         return registryRoot;
     }
 
+    public ScreenshotStore getScreenshotStore(){
+        return screenshotStore;
+    }
+
+    public RunArchive getRunArchive(){
+        return runArchive;
+    }
+
+    public ExcludedAreaIndex getExcludedAreaIndex(){
+        return excludedAreaIndex;
+    }
+
+    public VolatilityMaskIndex getVolatilityMaskIndex(){
+        return volatilityMaskIndex;
+    }
+
+    public BaselineStoreCache getBaselineStoreCache(){
+        return baselineStoreCache;
+    }
+
+    /**
+     * Set remote baseline store used when no baseline is found in registry
+     * Files fetched from baseline store are cached in registry baselinecache folder.
+     * @param baselineStore baseline store, or null to disable remote baseline lookup
+     */
+    public void setBaselineStore(BaselineStore baselineStore){
+        baselineStoreCache = baselineStore == null ? null
+            : new BaselineStoreCache(baselineStore, registryRoot.resolve(TESTADVISOR_BASELINE_CACHE_FOLDER));
+    }
+
     public Registry() throws IOException{
         //get registry root
         registryRoot = System.getenv("TEST_ADVISOR_REGISTRY") != null ?
@@ -108,6 +172,16 @@ public class Registry {
         //load properties
         loadRegistryProperties();
 
+        runCatalog = new RunCatalog(registryRoot, registryRoot.resolve(TESTADVISOR_INDEX_FOLDER));
+        testHistoryIndex = new TestHistoryIndex(registryRoot.resolve(TESTADVISOR_INDEX_FOLDER));
+        excludedAreaIndex = new ExcludedAreaIndex(registryRoot.resolve(TESTADVISOR_INDEX_FOLDER));
+        volatilityMaskIndex = new VolatilityMaskIndex(registryRoot.resolve(TESTADVISOR_INDEX_FOLDER));
+        screenshotStore = new ScreenshotStore(registryRoot.resolve(TESTADVISOR_SCREENSHOT_STORE_FOLDER));
+        runArchive = new RunArchive(registryRoot.resolve(TESTADVISOR_ARCHIVE_FOLDER));
+        runLease = new RunLease(registryRoot.resolve(TESTADVISOR_LEASE_FOLDER), Configuration.getLeaseTimeout());
+        String baselineStorePath = Configuration.getBaselineStorePath();
+        if (!baselineStorePath.isEmpty())
+            setBaselineStore(new SharedDirectoryBaselineStore(Paths.get(baselineStorePath)));
         getAllTestRuns();
     }
 
@@ -117,8 +191,10 @@ public class Registry {
      * This exception is thrown when it failed to access registry properties
      */
     public void loadRegistryProperties() throws IOException{
-        try(InputStream input = Files.newInputStream(registryRoot.resolve(TESTADVISOR_PROPERTIES_FILENAME))){
-            registryConfig.load(input);
+        synchronized(propertiesLock){
+            try(InputStream input = Files.newInputStream(registryRoot.resolve(TESTADVISOR_PROPERTIES_FILENAME))){
+                registryConfig.load(input);
+            }
         }
     }
 
@@ -163,8 +239,10 @@ public class Registry {
      * This exception is thrown when it failed to access registry properties
      */
     public void saveRegistryProperty(String key, String value) throws IOException{
-        registryConfig.setProperty(key, value);
-        saveRegistryProperties();
+        synchronized(propertiesLock){
+            registryConfig.setProperty(key, value);
+            saveRegistryProperties();
+        }
     }
 
     /**
@@ -173,15 +251,28 @@ public class Registry {
      * This exception is thrown when it failed to access registry properties
      */
     public void saveRegistryProperties() throws IOException{
-        //Generate a random UUID if not present yet
-        String guid = registryConfig.getProperty(TESTADVISOR_PROPERTY_CLIENT_GUID,"");
-        if ( guid.isEmpty())
-            registryConfig.setProperty(TESTADVISOR_PROPERTY_CLIENT_GUID, UUID.randomUUID().toString());
-
-        //Save all properites
-        try(OutputStream output = Files.newOutputStream(registryRoot.resolve(TESTADVISOR_PROPERTIES_FILENAME))){
-			registryConfig.store(output, null);
-		}
+        synchronized(propertiesLock){
+            //Generate a random UUID if not present yet
+            String guid = registryConfig.getProperty(TESTADVISOR_PROPERTY_CLIENT_GUID,"");
+            if ( guid.isEmpty())
+                registryConfig.setProperty(TESTADVISOR_PROPERTY_CLIENT_GUID, UUID.randomUUID().toString());
+
+            //Save all properites to a temp file first, so the properties file is never seen half written
+            Path propertiesFile = registryRoot.resolve(TESTADVISOR_PROPERTIES_FILENAME);
+            Path tempFile = Files.createTempFile(registryRoot, TESTADVISOR_PROPERTIES_FILENAME, ".tmp");
+            try{
+                try(OutputStream output = Files.newOutputStream(tempFile)){
+                    registryConfig.store(output, null);
+                }
+                try{
+                    Files.move(tempFile, propertiesFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }catch(AtomicMoveNotSupportedException ex){
+                    Files.move(tempFile, propertiesFile, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }finally{
+                Files.deleteIfExists(tempFile);
+            }
+        }
     }
 
     /**
@@ -201,13 +292,22 @@ public class Registry {
         module.addSerializer(Rectangle.class, new RectangleSerializer());
         objectMapper.registerModule(module);
         String content = objectMapper.writerWithDefaultPrettyPrinter().writeValueAsString(testRunSignal);
-        //create test run folder if necessary
-        registryRoot.resolve(testRunSignal.testRunId).toFile().mkdirs();
-        String fileName = registryRoot.resolve(testRunSignal.testRunId).resolve(SIGNAL_FILENAME).toString();
-        try(BufferedWriter writer = new BufferedWriter(new FileWriter(fileName))){
-          writer.write(content);
+        synchronized(writeLock){
+            //create test run folder if necessary
+            Path testRun = getTestRunPath(testRunSignal.testRunId);
+            if (testRun == null)
+                testRun = registryRoot.resolve(testRunSignal.testRunId);
+            testRun.toFile().mkdirs();
+            String fileName = testRun.resolve(SIGNAL_FILENAME).toString();
+            try(BufferedWriter writer = new BufferedWriter(new FileWriter(fileName))){
+              writer.write(content);
+            }
+            runCatalog.update(testRun);
+            TestRunId testRunId = TestRunId.parse(testRunSignal.testRunId);
+            if (testRunId != null)
+                indexTestRun(testRunId, testRun);
+            return fileName;
         }
-        return fileName;
     }
 
     private void pruneRedundantExceptionsFrom(TestRunSignal testRunSignal) {
@@ -293,14 +393,7 @@ public class Registry {
      */
     public List<Path> getUnprocessedTestRunList() throws IOException{
         getAllTestRuns();
-        List<Path> unProcessedTestRunList = new ArrayList<>();
-        for(Path testRun : allTestRunList){
-            try(Stream<Path> pathStream = Files.walk(testRun, 1)){
-                if (pathStream.noneMatch(name -> name.endsWith(SIGNAL_FILENAME)))
-                    unProcessedTestRunList.add(testRun);
-            }
-        }
-        return unProcessedTestRunList;
+        return getTestRunList(RunCatalog.RunState.UNPROCESSED);
     }
 
     /**
@@ -312,24 +405,51 @@ public class Registry {
      */
     public List<Path> getReadyToUploadTestRunList() throws IOException{
         getAllTestRuns();
-        // filter test run with signal file
-        List<Path> readyList = new ArrayList<>();
-        for(Path testRun : allTestRunList){
-            try(Stream<Path> pathStream = Files.walk(testRun, 1)){
-                if (pathStream.anyMatch(name -> name.endsWith(SIGNAL_FILENAME)))
-                    readyList.add(testRun);
-            }
-        }
-        // filter test run without record file (not upload yet)
-        List<Path> uploadList = new ArrayList<>();
-        for(Path testRun : readyList){
-            try(Stream<Path> pathStream = Files.walk(testRun, 1)){
-                if (pathStream.noneMatch(name -> name.endsWith(PORTAL_RECORD_FILENAME)))
-                    uploadList.add(testRun.resolve(SIGNAL_FILENAME));
+        return getTestRunList(RunCatalog.RunState.PROCESSED).stream()
+                .map(testRun -> testRun.resolve(SIGNAL_FILENAME))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Claim an unprocessed test run, so other CLI processes sharing the registry skip it
+     * The test run is only claimed if it's still unprocessed on disk after the lease was
+     * acquired, since another process may have finished it in the meantime without the
+     * catalog of this process noticing.
+     * @param testRun path to test run
+     * @return current path to test run, or null if the test run is claimed by another
+     * process or is no longer unprocessed
+     * @throws IOException throws this exception when fail to access lease file or registry catalog
+     */
+    public Path claimTestRun(Path testRun) throws IOException{
+        TestRunId testRunId = TestRunId.fromPath(testRun);
+        if (testRunId == null || !runLease.tryAcquire(testRunId.getId()))
+            return null;
+        Path current = testRun;
+        for(RunCatalog.Entry entry : runCatalog.getEntries()){
+            if (entry.testRunId.equals(testRunId.getId()) && entry.path != null){
+                current = entry.resolve(registryRoot);
+                break;
             }
         }
+        // catalog may be stale, check test run folder and refresh its catalog entry
+        RunCatalog.RunState state = RunCatalog.getRunState(current);
+        if (Files.isDirectory(current))
+            runCatalog.update(current);
+        if (state == RunCatalog.RunState.UNPROCESSED)
+            return current;
+        runLease.release(testRunId.getId());
+        return null;
+    }
 
-        return uploadList;
+    /**
+     * Release a test run claimed by claimTestRun
+     * @param testRun path to test run
+     * @throws IOException throws this exception when fail to delete lease file
+     */
+    public void releaseTestRun(Path testRun) throws IOException{
+        TestRunId testRunId = TestRunId.fromPath(testRun);
+        if (testRunId != null)
+            runLease.release(testRunId.getId());
     }
 
     /**
@@ -339,65 +459,155 @@ public class Registry {
      * @throws IOException throw this exception when fail to find test runs
      */
     public List<Path> getAllTestRuns() throws IOException{
-        // get all test run from registry
-        allTestRunList.clear();
-        try(Stream<Path> pathStream = Files.walk(registryRoot,1)){
-            allTestRunList =  pathStream.filter(Files::isDirectory)
-                                        .filter(path -> path.toString().contains(TESTADVISOR_TESTRUN_PREFIX))
-                                        .filter(path -> Files.exists(path.resolve(TESTADVISOR_TEST_RESULT)))
-                                        .collect(Collectors.toList());
+        // get all test run with test result from registry catalog
+        NavigableMap<TestRunId, Path> newTestRunMap = new TreeMap<>();
+        for(RunCatalog.Entry entry : runCatalog.getEntries()){
+            if (entry.state != RunCatalog.RunState.PENDING)
+                newTestRunMap.put(entry.toTestRunId(), entry.resolve(registryRoot));
+        }
+        TestRunSnapshot newSnapshot = new TestRunSnapshot(newTestRunMap);
+        synchronized(writeLock){
+            TestRunSnapshot current = snapshot;
+            // keep current snapshot if nothing changed, so history index check is not repeated
+            if (current.testRuns.equals(newSnapshot.testRuns))
+                newSnapshot = current;
+            else
+                snapshot = newSnapshot;
         }
+        return new ArrayList<>(newSnapshot.testRuns.descendingMap().values());
+    }
 
-        allTestRunList.sort(this::compareTestRun);
-        Collections.reverse(allTestRunList);
-        
-        return allTestRunList;
+    /**
+     * Get current snapshot of all test runs with test result in registry
+     * The snapshot is refreshed by getAllTestRuns and never changes once returned.
+     * @return immutable map of test run id to test run path, ordered by test run created time
+     */
+    public NavigableMap<TestRunId, Path> getTestRunSnapshot(){
+        return snapshot.testRuns;
+    }
+
+    /**
+     * Get list of test runs in given states from registry catalog
+     * @param states test run states to include
+     * @return Sorted list of test runs, latest test run first
+     * @throws IOException throw this exception when fail to access registry catalog
+     */
+    private List<Path> getTestRunList(RunCatalog.RunState... states) throws IOException{
+        List<RunCatalog.RunState> stateList = Arrays.asList(states);
+        return runCatalog.getEntries().stream()
+                .filter(entry -> stateList.contains(entry.state))
+                .sorted(Comparator.comparing(RunCatalog.Entry::toTestRunId).reversed())
+                .map(entry -> entry.resolve(registryRoot))
+                .collect(Collectors.toList());
     }
 
     /**
      * Get baseline test run from all test run list for current test execution in current test run
      * The baseline run will be test run contains last known good (LKG) test execution.
+     * An archived LKG test run is only used when no LKG test run is left in registry, it's
+     * extracted from archive on demand. If neither registry nor archive has a LKG test run,
+     * the LKG test run is looked up in remote baseline store and its test result is fetched.
      * If no LKG was found, the last test run will be pick
      * @param currentTestRun current test run
      * @param testCaseName current test case name
      * @return Baseline test run path. null if no baseline was found.
      * @throws IOException throws this exception when fails to find baseline test run 
      */
-    public Path     getBaselineTestRun(Path currentTestRun, String testCaseName) throws IOException{
-        List<Path> beforeTestRunList = findBeforeTestRunList(currentTestRun);
+    public Path getBaselineTestRun(Path currentTestRun, String testCaseName) throws IOException{
+        TestRunSnapshot current = snapshot;
+        TestRunId currentTestRunId = TestRunId.fromPath(currentTestRun);
+        if (currentTestRunId == null)
+            return null;
+        Map.Entry<TestRunId, Path> latestTestRun = current.testRuns.lowerEntry(currentTestRunId);
         
+        BaselineStoreCache remote = baselineStoreCache;
+
         // no test run found
-        if (beforeTestRunList.isEmpty())
+        if (latestTestRun == null && runArchive.isEmpty() && remote == null)
             return null;
 
-        //all test run before current run should order by create date and latest on top
-        for(Path testrun : beforeTestRunList){
-            if(containsPassedTest(testrun, testCaseName))
+        // make sure all test runs are in test history index
+        indexTestRuns(current);
+
+        // search test history for the latest passed run which is still in registry
+        Instant before = currentTestRunId.getCreatedTime();
+        String archivedTestRunId = null;
+        TestHistoryIndex.HistoryEntry entry;
+        while((entry = testHistoryIndex.findLastPassed(testCaseName, before)) != null){
+            TestRunId testRunId = TestRunId.parse(entry.getTestRunId());
+            Path testrun = testRunId == null ? null : current.testRuns.get(testRunId);
+            if (testrun != null)
+                return testrun;
+            if (archivedTestRunId == null && runArchive.contains(entry.getTestRunId()))
+                archivedTestRunId = entry.getTestRunId();
+            before = entry.getTestRunTime();
+        }
+
+        //no LKG run in registry, use the latest archived LKG run
+        if (archivedTestRunId != null)
+            return runArchive.getTestRun(archivedTestRunId);
+
+        //no LKG run in registry or archive, fetch the latest LKG run from baseline store
+        if (remote != null){
+            Path testrun = getRemoteBaselineTestRun(remote, testCaseName, currentTestRunId.getCreatedTime());
+            if (testrun != null)
                 return testrun;
         }
 
         //no LKG run found, return latest run.
-        return beforeTestRunList.get(0);
+        return latestTestRun == null ? null : latestTestRun.getValue();
     }
 
     /**
-     * Check whether current test run contains test result for passed test case
-     * @param testRun
-     * current test run path
-     * @param test
-     * current test execution
-     * @return
-     * true -- if current test run contains test result for passed current test case
-     * false -- otherwise
+     * Get the latest LKG test run in remote baseline store, test result of the test run is fetched on demand
+     * @param remote baseline store cache
+     * @param testCaseName current test case name
+     * @param before current test run created time
+     * @return path to cached baseline test run, or null if not found or baseline store is not accessible
+     */
+    private Path getRemoteBaselineTestRun(BaselineStoreCache remote, String testCaseName, Instant before){
+        try{
+            TestHistoryIndex.HistoryEntry entry = remote.findLastPassed(testCaseName, before);
+            return entry == null ? null : remote.getTestRun(entry.getTestRunId());
+        }catch(IOException ex){
+            LOGGER.log(Level.WARNING, "Failed to get baseline from baseline store {0}", ex.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Add all test runs in registry snapshot to test history index
+     * @param current test run snapshot
+     * @throws IOException throws this exception when fails to access test run 
+     */
+    private void indexTestRuns(TestRunSnapshot current) throws IOException{
+        if (current.historyIndexed) return;
+        synchronized(writeLock){
+            if (current.historyIndexed) return;
+            for(Map.Entry<TestRunId, Path> testRun : current.testRuns.entrySet()){
+                indexTestRun(testRun.getKey(), testRun.getValue());
+            }
+            current.historyIndexed = true;
+        }
+    }
+
+    /**
+     * Add test case status of a test run to test history index if it's not indexed yet
+     * @param testRunId test run id
+     * @param testRun test run path
      * @throws IOException throws this exception when fails to access test run 
      */
-    private boolean containsPassedTest(Path testRun, String testCaseName) throws IOException{
-        TestAdvisorResult result = getTestAdvisorResult(testRun);
-        for(TestCaseExecution test : result.getTestCaseExecutionList()){
-            if (test.getTestName().equals(testCaseName) && test.getTestStatus().equals(com.salesforce.cte.common.TestStatus.PASSED))
-                return true;
+    private void indexTestRun(TestRunId testRunId, Path testRun) throws IOException{
+        if (!Files.exists(testRun.resolve(TESTADVISOR_TEST_RESULT)) || testHistoryIndex.isIndexed(testRunId.getId()))
+            return;
+        TestAdvisorResult result;
+        try{
+            result = getTestAdvisorResult(testRun);
+        }catch(IOException ex){
+            LOGGER.log(Level.WARNING, "Failed to read test result for test history index {0}", ex.toString());
+            return;
         }
-        return false;
+        testHistoryIndex.addTestRun(testRunId.getId(), testRunId.getCreatedTime(), result);
     }
 
     /**
@@ -409,32 +619,12 @@ public class Registry {
      * returned test run list order by created time, latest first
      */
     public List<Path> findBeforeTestRunList(Path currentTestRun) {
-        List<Path> beforeList = new ArrayList<>();
-
-        for(Path testrun : allTestRunList){
-            if(compareTestRun(testrun, currentTestRun)<0){
-                beforeList.add(testrun);
-            }
-        }
-
-        return beforeList;
+        TestRunId currentTestRunId = TestRunId.fromPath(currentTestRun);
+        if (currentTestRunId == null)
+            return new ArrayList<>();
+        return new ArrayList<>(snapshot.testRuns.headMap(currentTestRunId, false).descendingMap().values());
     }
 
-    /**
-     * Compare 2 test run based on create time
-     * @param testrun1 testrun1
-     * @param testrun2 testrun2
-     * @return
-     * 1 - test run 1 created after test run 2
-     * -1 - test run 1 created before test run 2
-     * 0 - test run 1 and 2 created at same time
-     */
-    private int compareTestRun(Path testrun1, Path testrun2){
-        ZonedDateTime testRun1Time = getTestRunCreatedTime(testrun1);
-        ZonedDateTime testRun2Time = getTestRunCreatedTime(testrun2);
-
-        return testRun1Time.compareTo(testRun2Time);
-    }
     /**
      * Get test run signal object for current test run from registry
      * @param path
@@ -478,11 +668,7 @@ public class Registry {
             return new TestAdvisorResult();
         }
 
-        try(InputStream is = new FileInputStream(testResultFilePath.toString())){
-            ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule())
-                                        .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
-            return objectMapper.readValue(is, TestAdvisorResult.class);
-        }
+        return TestResultCache.getInstance().getTestAdvisorResult(testResultFilePath);
     }
 
     /**
@@ -496,8 +682,11 @@ public class Registry {
      */
     public void savePortalResponse(Path path, String response) throws IOException{
         String filename = path.getParent().resolve(PORTAL_RECORD_FILENAME).toAbsolutePath().toString();
-        try(BufferedWriter writer = new BufferedWriter(new FileWriter(filename))){
-            writer.write(response);
+        synchronized(writeLock){
+            try(BufferedWriter writer = new BufferedWriter(new FileWriter(filename))){
+                writer.write(response);
+            }
+            runCatalog.update(path.getParent());
         }
     }
 
@@ -524,44 +713,243 @@ public class Registry {
      */
     public String getTestRunId(String path){
         if (path == null || path.isEmpty()) return "";
-        DateTimeFormatter taDateFormatter = DateTimeFormatter.ofPattern(TESTADVISOR_TESTRUN_PATTERN_STRING);
-        String testRunId = TESTADVISOR_TESTRUN_PREFIX + taDateFormatter.format(OffsetDateTime.now( ZoneOffset.UTC ));
-        Pattern pattern = Pattern.compile("(TestRun-\\d{8}-\\d{6})");
-        Matcher matcher = pattern.matcher(path);
-        return matcher.find( ) ? matcher.group(0) : testRunId;
+        TestRunId testRunId = TestRunId.find(path);
+        return testRunId != null ? testRunId.getId() : TestRunId.now().getId();
     }
 
     /**
      * Get test run path from test run id
+     * Test runs in registry snapshot are resolved from memory, other test runs are looked up
+     * in date shard folder, registry root, extracted archived test runs and then in test runs
+     * cached from remote baseline store.
      * @param testRunId test run id
      * @return test run path, or null if can't find the match path
      */
     public Path getTestRunPath(String testRunId){
-        for(Path path : allTestRunList){
-            if (path.endsWith(testRunId))
-                return path;
+        TestRunId id = TestRunId.parse(testRunId);
+        if (id == null) return null;
+        Path testRun = snapshot.testRuns.get(id);
+        if (testRun != null) return testRun;
+
+        testRun = getShardedTestRunPath(id);
+        if (Files.isDirectory(testRun)) return testRun;
+        testRun = registryRoot.resolve(id.getId());
+        if (Files.isDirectory(testRun)) return testRun;
+        testRun = runArchive.getExtractedTestRun(id.getId());
+        if (testRun != null) return testRun;
+        BaselineStoreCache remote = baselineStoreCache;
+        return remote == null ? null : remote.getCachedTestRun(id.getId());
+    }
+
+    /**
+     * Get test run path in date sharded layout, registryRoot/yyyy/MM/TestRun-yyyyMMdd-HHmmss
+     * @param testRunId test run id
+     * @return test run path in date shard folder
+     */
+    public Path getShardedTestRunPath(TestRunId testRunId){
+        return getShardedTestRunPath(registryRoot, testRunId);
+    }
+
+    /**
+     * Get test run path in date sharded layout of a registry
+     * @param root registry root
+     * @param testRunId test run id
+     * @return path to test run in date shard folder
+     */
+    static Path getShardedTestRunPath(Path root, TestRunId testRunId){
+        String date = testRunId.getId().substring(TESTADVISOR_TESTRUN_PREFIX.length());
+        return root.resolve(date.substring(0, 4)).resolve(date.substring(4, 6)).resolve(testRunId.getId());
+    }
+
+    /**
+     * Check whether registry uses date sharded layout
+     * @return true if test runs are moved to date shard folders
+     */
+    public boolean isShardedLayout(){
+        return LAYOUT_SHARDED.equalsIgnoreCase(registryConfig.getProperty(TESTADVISOR_PROPERTY_LAYOUT, LAYOUT_FLAT));
+    }
+
+    /**
+     * Move test runs from registry root to date shard folders and switch registry to sharded layout
+     * Pending test runs and test runs claimed by other processes are skipped since test result
+     * or signal may still be written to them.
+     * @return number of test runs moved
+     * @throws IOException throws this exception when fail to move test run folder
+     */
+    public int migrateToShardedLayout() throws IOException{
+        int count = 0;
+        synchronized(writeLock){
+            if (!isShardedLayout())
+                saveRegistryProperty(TESTADVISOR_PROPERTY_LAYOUT, LAYOUT_SHARDED);
+
+            for(RunCatalog.Entry entry : runCatalog.getEntries()){
+                if (entry.state == RunCatalog.RunState.PENDING || runLease.isLeasedByOthers(entry.testRunId)) continue;
+                Path source = entry.resolve(registryRoot);
+                Path target = getShardedTestRunPath(entry.toTestRunId());
+                if (source.equals(target) || Files.exists(target)) continue;
+
+                LOGGER.log(Level.INFO, "Move test run {0} to {1}", new Object[]{source, target});
+                Files.createDirectories(target.getParent());
+                try{
+                    Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+                }catch(AtomicMoveNotSupportedException ex){
+                    Files.move(source, target);
+                }
+                runCatalog.update(target);
+                count++;
+            }
         }
-        return null;
+        getAllTestRuns();
+        return count;
     }
 
     /**
-     * Get test run created time stamp
-     * @param path
-     * Path to the test run
-     * @return
-     * Test run created time
-     * or EPOCH (1970/1/1) if path is null or invalid
-     */
-    private ZonedDateTime getTestRunCreatedTime(Path path){
-        if (path == null) return Instant.EPOCH.atZone(ZoneId.of("UTC"));
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern(TESTADVISOR_TESTRUN_PATTERN_STRING);    
-        Pattern pattern = Pattern.compile("(\\d{8}-\\d{6})");
-        Matcher matcher = pattern.matcher(path.toAbsolutePath().toString());
-        if  (matcher.find())
-            return LocalDateTime.parse(matcher.group(0),formatter).atZone(ZoneId.of("UTC"));
-        
-        LOGGER.log(Level.WARNING, "Path object does NOT contain created time, path:{0}",path.toAbsolutePath());
-        return Instant.EPOCH.atZone(ZoneId.of("UTC"));
+     * Compact registry based on retention policy
+     * Uploaded and imported test runs are moved into archive unless they are one of the latest
+     * testadvisor.retentionmaxruns test runs, created in last testadvisor.retentionmaxdays days,
+     * or the latest passed test run of any test case. Nothing is compacted if no retention
+     * rule is configured. Excluded area index is compacted and idle extracted test runs are
+     * evicted from archive as well.
+     * @return number of test runs moved to archive
+     * @throws IOException throws this exception when fail to archive test runs
+     */
+    public int compactTestRuns() throws IOException{
+        int maxRuns = Configuration.getRetentionMaxRuns();
+        int maxDays = Configuration.getRetentionMaxDays();
+        if (maxRuns <= 0 && maxDays <= 0)
+            return 0;
+        int removed = excludedAreaIndex.compact();
+        LOGGER.log(Level.INFO, "Removed {0} entries from excluded area index", removed);
+        int evicted = runArchive.evictExtracted();
+        LOGGER.log(Level.INFO, "Removed {0} extracted test runs from archive", evicted);
+
+        Map<TestRunId, Path> archiveMap = new TreeMap<>();
+        synchronized(writeLock){
+            getAllTestRuns();
+            TestRunSnapshot current = snapshot;
+            indexTestRuns(current);
+
+            Set<String> keepSet = testHistoryIndex.getLastPassedTestRunIds();
+            if (maxRuns > 0){
+                current.testRuns.descendingKeySet().stream().limit(maxRuns)
+                    .forEach(testRunId -> keepSet.add(testRunId.getId()));
+            }
+            if (maxDays > 0){
+                Instant threshold = Instant.now().minus(maxDays, ChronoUnit.DAYS);
+                current.testRuns.keySet().stream()
+                    .filter(testRunId -> testRunId.getCreatedTime().isAfter(threshold))
+                    .forEach(testRunId -> keepSet.add(testRunId.getId()));
+            }
+
+            for(RunCatalog.Entry entry : runCatalog.getEntries()){
+                if ((entry.state == RunCatalog.RunState.UPLOADED || entry.state == RunCatalog.RunState.IMPORTED)
+                    && !keepSet.contains(entry.testRunId))
+                    archiveMap.put(entry.toTestRunId(), entry.resolve(registryRoot));
+            }
+            if (archiveMap.isEmpty())
+                return 0;
+
+            runArchive.add(archiveMap);
+            for(Map.Entry<TestRunId, Path> testRun : archiveMap.entrySet()){
+                RunArchive.deleteFolder(testRun.getValue());
+                runCatalog.remove(testRun.getKey().getId());
+            }
+        }
+        getAllTestRuns();
+        int count = screenshotStore.prune();
+        LOGGER.log(Level.INFO, "Removed {0} unused screenshots from screenshot store", count);
+        return archiveMap.size();
+    }
+
+    /**
+     * Get test runs needed to find baselines, which are the latest passed test run of every
+     * test case and the latest test run in registry. Archived test runs are extracted.
+     * @return map of test run id to test run path
+     * @throws IOException throws this exception when fail to access test runs
+     */
+    public NavigableMap<TestRunId, Path> getBaselineTestRuns() throws IOException{
+        getAllTestRuns();
+        TestRunSnapshot current = snapshot;
+        indexTestRuns(current);
+
+        NavigableMap<TestRunId, Path> testRuns = new TreeMap<>();
+        if (!current.testRuns.isEmpty())
+            testRuns.put(current.testRuns.lastKey(), current.testRuns.lastEntry().getValue());
+        for(String id : testHistoryIndex.getLastPassedTestRunIds()){
+            TestRunId testRunId = TestRunId.parse(id);
+            if (testRunId == null) continue;
+            Path testRun = current.testRuns.get(testRunId);
+            if (testRun == null)
+                testRun = runArchive.getTestRun(id);
+            if (testRun != null)
+                testRuns.put(testRunId, testRun);
+        }
+        return testRuns;
+    }
+
+    /**
+     * Add a test run which was copied into registry from another registry
+     * The test run is marked as imported, so it's only used as baseline and never processed or uploaded.
+     * @param testRun path to test run folder
+     * @throws IOException throws this exception when fail to update registry
+     */
+    public void addImportedTestRun(Path testRun) throws IOException{
+        synchronized(writeLock){
+            Files.write(testRun.resolve(IMPORTED_MARKER_FILENAME), new byte[0]);
+            runCatalog.update(testRun);
+        }
+    }
+
+    /**
+     * Merge test history from another registry into test history index
+     * @param input stream of test history journal
+     * @return number of test runs merged
+     * @throws IOException throws this exception when fail to update test history index
+     */
+    public int mergeTestHistory(InputStream input) throws IOException{
+        synchronized(writeLock){
+            return testHistoryIndex.merge(input);
+        }
+    }
+
+    /**
+     * Get path of a new test run folder based on registry layout
+     * @param testRunId test run id
+     * @return path to test run folder
+     */
+    public Path getNewTestRunPath(TestRunId testRunId){
+        return isShardedLayout() ? getShardedTestRunPath(testRunId) : registryRoot.resolve(testRunId.getId());
+    }
+
+    /**
+     * Resolve screenshot path recorded in test result
+     * Screenshot paths are recorded as absolute path when test run is created, if the test
+     * run folder was moved later, the screenshot is looked up in current test run folder.
+     * Screenshots of test runs cached from remote baseline store are fetched on demand.
+     * @param screenshotPath screenshot path recorded in test result
+     * @return path to screenshot file, or recorded path if it can't be resolved
+     */
+    public Path resolveScreenshotPath(String screenshotPath){
+        Path recorded = Paths.get(screenshotPath);
+        if (Files.exists(recorded)) return recorded;
+
+        TestRunId testRunId = TestRunId.find(screenshotPath);
+        Path testRun = testRunId == null ? null : getTestRunPath(testRunId.getId());
+        if (testRun == null) return recorded;
+        String relative = screenshotPath.substring(screenshotPath.indexOf(testRunId.getId()) + testRunId.getId().length())
+                                        .replaceFirst("^[\\\\/]+", "");
+        if (relative.isEmpty()) return testRun;
+        Path screenshot = testRun.resolve(relative);
+        BaselineStoreCache remote = baselineStoreCache;
+        if (remote == null || Files.exists(screenshot) || !testRun.equals(remote.getCachedTestRun(testRunId.getId())))
+            return screenshot;
+        try{
+            Path fetched = remote.getFile(testRun, relative.replace('\\', '/'));
+            return fetched == null ? screenshot : fetched;
+        }catch(IOException ex){
+            LOGGER.log(Level.WARNING, "Failed to fetch screenshot from baseline store {0}", ex.toString());
+            return screenshot;
+        }
     }
 
     /**
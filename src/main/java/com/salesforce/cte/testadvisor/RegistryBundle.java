@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+/**
+ * RegistryBundle exports the baseline relevant part of a registry into a single zip file and
+ * imports it into another registry, so a new registry can find baselines right away.
+ * A bundle contains the latest passed test run of every test case, the latest test run, and
+ * the test history index. Screenshots are stored without compression since they are already
+ * compressed images, and bundle entries are extracted in parallel on import.
+ */
+public class RegistryBundle {
+
+    private static final Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    public static final String DEFAULT_BUNDLE_FILENAME = "testadvisor-bundle.zip";
+    private static final String MANIFEST_ENTRY = "bundle-manifest.json";
+    private static final String TESTRUN_FOLDER = "testruns/";
+    private static final String HISTORY_ENTRY = Registry.TESTADVISOR_INDEX_FOLDER + "/" + TestHistoryIndex.HISTORY_FILENAME;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Bundle manifest, list of test runs in the bundle
+     */
+    public static class Manifest {
+        @JsonProperty
+        public Instant exportTime;
+        @JsonProperty
+        public List<String> testRuns = new ArrayList<>();
+    }
+
+    private final Registry registry;
+    private final ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule())
+                                        .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false)
+                                        .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    public RegistryBundle(Registry registry){
+        this.registry = registry;
+    }
+
+    /**
+     * Export baseline test runs and test history to a bundle file
+     * @param bundleFile path to bundle file
+     * @return number of test runs exported
+     * @throws IOException throws this exception when fail to access registry or write bundle
+     */
+    public int exportBundle(Path bundleFile) throws IOException{
+        Map<TestRunId, Path> testRuns = registry.getBaselineTestRuns();
+        Manifest manifest = new Manifest();
+        manifest.exportTime = Instant.now();
+        testRuns.keySet().forEach(testRunId -> manifest.testRuns.add(testRunId.getId()));
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        Path tempFile = Files.createTempFile(bundleFile.toAbsolutePath().getParent(), bundleFile.getFileName().toString(), ".tmp");
+        try{
+            try(ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(tempFile))){
+                zos.putNextEntry(new ZipEntry(MANIFEST_ENTRY));
+                zos.write(objectMapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(manifest));
+                zos.closeEntry();
+
+                Path historyFile = registry.getRegistryRoot().resolve(HISTORY_ENTRY);
+                if (Files.exists(historyFile))
+                    addFile(zos, HISTORY_ENTRY, historyFile, buffer);
+
+                for(Map.Entry<TestRunId, Path> testRun : testRuns.entrySet()){
+                    LOGGER.log(Level.INFO, "Export test run {0}", testRun.getValue());
+                    List<Path> files;
+                    try(Stream<Path> pathStream = Files.walk(testRun.getValue())){
+                        files = pathStream.filter(Files::isRegularFile).filter(RegistryBundle::isBundleFile)
+                                    .sorted().collect(Collectors.toList());
+                    }
+                    for(Path file : files){
+                        String name = TESTRUN_FOLDER + testRun.getKey().getId() + "/" + testRun.getValue().relativize(file).toString()
+                                        .replace(file.getFileSystem().getSeparator(), "/");
+                        addFile(zos, name, file, buffer);
+                    }
+                }
+            }
+            Files.move(tempFile, bundleFile, StandardCopyOption.REPLACE_EXISTING);
+        }finally{
+            Files.deleteIfExists(tempFile);
+        }
+        return testRuns.size();
+    }
+
+    /**
+     * Import a bundle file into registry
+     * Test runs already in registry are skipped, test run files are extracted in parallel.
+     * @param bundleFile path to bundle file
+     * @return number of test runs imported
+     * @throws IOException throws this exception when fail to read bundle or write registry
+     */
+    public int importBundle(Path bundleFile) throws IOException{
+        try(ZipFile zipFile = new ZipFile(bundleFile.toFile())){
+            ZipEntry manifestEntry = zipFile.getEntry(MANIFEST_ENTRY);
+            if (manifestEntry == null)
+                throw new IOException("Invalid registry bundle " + bundleFile);
+            Manifest manifest;
+            try(InputStream is = zipFile.getInputStream(manifestEntry)){
+                manifest = objectMapper.readValue(is, Manifest.class);
+            }
+
+            // test runs to import, extract to a temp folder first so registry never sees a half imported test run
+            Map<String, Path> targetMap = new HashMap<>();
+            Map<String, Path> tempMap = new HashMap<>();
+            for(String id : manifest.testRuns){
+                TestRunId testRunId = TestRunId.parse(id);
+                if (testRunId == null || registry.getTestRunPath(id) != null) continue;
+                Path target = registry.getNewTestRunPath(testRunId);
+                Files.createDirectories(target.getParent());
+                targetMap.put(id, target);
+                tempMap.put(id, Files.createTempDirectory(target.getParent(), ".import-" + id));
+            }
+
+            try{
+                extractTestRuns(zipFile, tempMap);
+                for(Map.Entry<String, Path> testRun : targetMap.entrySet()){
+                    Files.move(tempMap.get(testRun.getKey()), testRun.getValue());
+                    registry.addImportedTestRun(testRun.getValue());
+                }
+            }finally{
+                for(Path tempFolder : tempMap.values())
+                    RunArchive.deleteFolder(tempFolder);
+            }
+
+            ZipEntry historyEntry = zipFile.getEntry(HISTORY_ENTRY);
+            if (historyEntry != null){
+                try(InputStream is = zipFile.getInputStream(historyEntry)){
+                    LOGGER.log(Level.INFO, "Merged test history of {0} test runs", registry.mergeTestHistory(is));
+                }
+            }
+            registry.getAllTestRuns();
+            return targetMap.size();
+        }
+    }
+
+    /**
+     * Extract test run files from bundle in parallel
+     */
+    private void extractTestRuns(ZipFile zipFile, Map<String, Path> tempMap) throws IOException{
+        if (tempMap.isEmpty()) return;
+        List<ZipEntry> zipEntries = new ArrayList<>();
+        Enumeration<? extends ZipEntry> enumeration = zipFile.entries();
+        while(enumeration.hasMoreElements()){
+            ZipEntry zipEntry = enumeration.nextElement();
+            if (!zipEntry.isDirectory() && zipEntry.getName().startsWith(TESTRUN_FOLDER))
+                zipEntries.add(zipEntry);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+        try{
+            List<Future<Void>> futures = new ArrayList<>();
+            for(ZipEntry zipEntry : zipEntries){
+                String name = zipEntry.getName().substring(TESTRUN_FOLDER.length());
+                int index = name.indexOf('/');
+                Path tempFolder = index < 0 ? null : tempMap.get(name.substring(0, index));
+                if (tempFolder == null) continue;
+                Path target = tempFolder.resolve(name.substring(index + 1)).normalize();
+                if (!target.startsWith(tempFolder)){
+                    LOGGER.log(Level.WARNING, "Skip invalid bundle entry {0}", zipEntry.getName());
+                    continue;
+                }
+                futures.add(executor.submit(() -> {
+                    Files.createDirectories(target.getParent());
+                    try(InputStream is = zipFile.getInputStream(zipEntry)){
+                        Files.copy(is, target, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    return null;
+                }));
+            }
+            for(Future<Void> future : futures)
+                future.get();
+        }catch(ExecutionException ex){
+            throw new IOException(ex.getCause());
+        }catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        }finally{
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Add a file to bundle, already compressed images are stored without compression
+     */
+    private static void addFile(ZipOutputStream zos, String name, Path file, byte[] buffer) throws IOException{
+        ZipEntry zipEntry = new ZipEntry(name);
+        zipEntry.setTime(Files.getLastModifiedTime(file).toMillis());
+        if (name.toLowerCase().endsWith(".png")){
+            CRC32 crc = new CRC32();
+            try(InputStream is = Files.newInputStream(file)){
+                int count;
+                while((count = is.read(buffer)) > 0)
+                    crc.update(buffer, 0, count);
+            }
+            zipEntry.setMethod(ZipEntry.STORED);
+            zipEntry.setSize(Files.size(file));
+            zipEntry.setCrc(crc.getValue());
+        }
+        zos.putNextEntry(zipEntry);
+        try(InputStream is = Files.newInputStream(file)){
+            RunArchive.copy(is, zos, buffer);
+        }
+        zos.closeEntry();
+    }
+
+    /**
+     * Check whether a test run file belongs to bundle, image comparison output is skipped
+     */
+    private static boolean isBundleFile(Path file){
+        String name = file.getFileName().toString();
+        return !name.endsWith(".compareresult.png") && !name.endsWith(".ignoredareas.png")
+                && !name.equals(Registry.IMPORTED_MARKER_FILENAME);
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.salesforce.cte.helper.ProcessException;
+
+/**
+ * RegistryWatcher watches registry root for new test runs and hands a test run over for
+ * processing as soon as its test result file is written, so no registry scan is needed.
+ * Registry root is watched for new test run folders and every test run folder without test
+ * signal is watched for its test result file. Since file close can't be observed, a test
+ * result file is considered complete once it was not changed for the settle time.
+ * A test run stays pending until its test signal is written, so a test run which failed to
+ * process, or was skipped while claimed by another process, is handed over again with backoff.
+ */
+public class RegistryWatcher implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    private static final long MIN_POLL_MILLIS = 100;
+    private static final long MAX_RETRY_MILLIS = 10 * 60 * 1000L;
+
+    /**
+     * Handler to process a test run with complete test result
+     */
+    public interface TestRunHandler {
+        public void process(Path testRun) throws IOException, ProcessException;
+    }
+
+    private final Registry registry;
+    private final long settleMillis;
+    private WatchService watchService;
+    private final Map<WatchKey, Path> watchKeys = new HashMap<>();
+    private final Map<Path, Long> pendingTestRuns = new LinkedHashMap<>(); //test run to last change time
+    private final Map<Path, Long> retryTestRuns = new LinkedHashMap<>(); //test run to next retry time
+    private final Map<Path, Integer> retryCounts = new HashMap<>();
+
+    public RegistryWatcher(Registry registry, long settleMillis){
+        this.registry = registry;
+        this.settleMillis = settleMillis;
+    }
+
+    /**
+     * Start watching registry, test runs with test result but no test signal yet are
+     * handed over after settle time
+     * @throws IOException throws this exception when fail to watch registry
+     */
+    public synchronized void start() throws IOException{
+        if (watchService != null) return;
+        watchService = registry.getRegistryRoot().getFileSystem().newWatchService();
+        watchKeys.put(registry.getRegistryRoot().register(watchService, StandardWatchEventKinds.ENTRY_CREATE),
+                        registry.getRegistryRoot());
+        scanRegistryRoot();
+    }
+
+    /**
+     * Watch registry and process test runs until current thread is interrupted
+     * @param handler handler to process test runs
+     * @throws IOException throws this exception when fail to watch registry
+     * @throws InterruptedException throws this exception when current thread was interrupted
+     */
+    public void watch(TestRunHandler handler) throws IOException, InterruptedException{
+        start();
+        while(!Thread.currentThread().isInterrupted()){
+            poll(handler, Math.max(MIN_POLL_MILLIS, settleMillis));
+        }
+        throw new InterruptedException();
+    }
+
+    /**
+     * Wait for registry changes and process test runs whose test result file settled
+     * @param handler handler to process test runs
+     * @param timeoutMillis max time to wait for a registry change
+     * @return number of test runs handed over to handler
+     * @throws IOException throws this exception when fail to watch registry
+     * @throws InterruptedException throws this exception when current thread was interrupted
+     */
+    public int poll(TestRunHandler handler, long timeoutMillis) throws IOException, InterruptedException{
+        start();
+        WatchKey key = watchService.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        while(key != null){
+            handleEvents(key);
+            key = watchService.poll();
+        }
+
+        int count = 0;
+        for(Path testRun : getSettledTestRuns()){
+            LOGGER.log(Level.INFO, "Found new test result in {0}", testRun);
+            try{
+                handler.process(testRun);
+                count++;
+            }catch(IOException | ProcessException ex){
+                LOGGER.log(Level.WARNING, "Failed to process test run {0} {1}", new Object[]{testRun, ex.toString()});
+            }
+            if (!Files.exists(testRun.resolve(Registry.SIGNAL_FILENAME)))
+                retryLater(testRun);
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized void close() throws IOException{
+        if (watchService != null)
+            watchService.close();
+        watchService = null;
+        watchKeys.clear();
+        pendingTestRuns.clear();
+        retryTestRuns.clear();
+        retryCounts.clear();
+    }
+
+    private synchronized void handleEvents(WatchKey key) throws IOException{
+        Path folder = watchKeys.get(key);
+        for(WatchEvent<?> event : key.pollEvents()){
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW){
+                LOGGER.log(Level.INFO, "Registry watch events overflow, rescan registry root");
+                scanRegistryRoot();
+                continue;
+            }
+            if (folder == null) continue;
+            Path path = folder.resolve((Path) event.context());
+            if (folder.equals(registry.getRegistryRoot())){
+                if (isTestRunFolder(path))
+                    watchTestRun(path);
+            }else if (path.getFileName().toString().equals(Registry.TESTADVISOR_TEST_RESULT)){
+                pendingTestRuns.put(folder, System.currentTimeMillis());
+                retryTestRuns.remove(folder);
+                retryCounts.remove(folder);
+            }else if (path.getFileName().toString().equals(Registry.SIGNAL_FILENAME)){
+                //test run was processed, by this or another process
+                key.cancel();
+                removeTestRun(folder);
+            }
+        }
+        if (!key.reset()){
+            //test run folder was moved or deleted
+            watchKeys.remove(key);
+            if (folder != null)
+                removeTestRun(folder);
+        }
+    }
+
+    private void removeTestRun(Path testRun){
+        pendingTestRuns.remove(testRun);
+        retryTestRuns.remove(testRun);
+        retryCounts.remove(testRun);
+    }
+
+    /**
+     * Hand a test run over again later, retry interval doubles from settle time up to 10 minutes
+     * @param testRun test run without test signal after it was handed over
+     */
+    private synchronized void retryLater(Path testRun){
+        if (watchService == null || pendingTestRuns.containsKey(testRun)) return;
+        int retries = retryCounts.merge(testRun, 1, Integer::sum);
+        long backoff = Math.max(MIN_POLL_MILLIS, settleMillis) << Math.min(retries - 1, 16);
+        retryTestRuns.put(testRun, System.currentTimeMillis() + Math.min(backoff, MAX_RETRY_MILLIS));
+        LOGGER.log(Level.INFO, "Test run {0} is not processed yet, retry in {1} ms", new Object[]{testRun, Math.min(backoff, MAX_RETRY_MILLIS)});
+    }
+
+    /**
+     * Watch all test run folders in registry root which are not processed yet
+     */
+    private void scanRegistryRoot() throws IOException{
+        List<Path> testRuns;
+        try(Stream<Path> pathStream = Files.list(registry.getRegistryRoot())){
+            testRuns = pathStream.filter(RegistryWatcher::isTestRunFolder).collect(Collectors.toList());
+        }
+        for(Path testRun : testRuns){
+            if (!Files.exists(testRun.resolve(Registry.SIGNAL_FILENAME)))
+                watchTestRun(testRun);
+        }
+    }
+
+    private void watchTestRun(Path testRun) throws IOException{
+        if (!watchKeys.containsValue(testRun)){
+            watchKeys.put(testRun.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                                            StandardWatchEventKinds.ENTRY_MODIFY), testRun);
+        }
+        //test result may be written before the folder is watched
+        if (Files.exists(testRun.resolve(Registry.TESTADVISOR_TEST_RESULT)) && !retryTestRuns.containsKey(testRun))
+            pendingTestRuns.putIfAbsent(testRun, System.currentTimeMillis());
+    }
+
+    /**
+     * Remove and return pending test runs whose test result file was not changed in settle time,
+     * and test runs due for retry. Test run folder is still watched until test signal is written.
+     */
+    private synchronized List<Path> getSettledTestRuns(){
+        List<Path> testRuns = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Path, Long>> retryIterator = retryTestRuns.entrySet().iterator();
+        while(retryIterator.hasNext()){
+            Map.Entry<Path, Long> entry = retryIterator.next();
+            if (now < entry.getValue()) continue;
+            retryIterator.remove();
+            if (Files.exists(entry.getKey().resolve(Registry.TESTADVISOR_TEST_RESULT)))
+                testRuns.add(entry.getKey());
+            else
+                retryCounts.remove(entry.getKey());
+        }
+        Iterator<Map.Entry<Path, Long>> iterator = pendingTestRuns.entrySet().iterator();
+        while(iterator.hasNext()){
+            Map.Entry<Path, Long> entry = iterator.next();
+            long lastChange = entry.getValue();
+            try{
+                lastChange = Math.max(lastChange,
+                    Files.getLastModifiedTime(entry.getKey().resolve(Registry.TESTADVISOR_TEST_RESULT)).toMillis());
+            }catch(IOException ex){
+                //test result was removed
+                iterator.remove();
+                continue;
+            }
+            if (now - lastChange < settleMillis) continue;
+            iterator.remove();
+            testRuns.add(entry.getKey());
+        }
+        return testRuns;
+    }
+
+    private static boolean isTestRunFolder(Path path){
+        return path.getFileName().toString().startsWith(Registry.TESTADVISOR_TESTRUN_PREFIX) && Files.isDirectory(path);
+    }
+}
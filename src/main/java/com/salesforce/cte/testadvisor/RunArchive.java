@@ -0,0 +1,426 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+/**
+ * RunArchive keeps test runs compacted out of the live registry.
+ * Test runs compacted together are compressed into a new zip file of their month, yyyy-MM.zip,
+ * yyyy-MM-2.zip and so on, so existing archive files are never rewritten. An archive index
+ * records which archive contains each test run. An archived test run is extracted on demand
+ * when it is needed again, for example as the baseline of a test case, and extracted test
+ * runs which were not accessed for a day are evicted.
+ * All public methods are thread safe.
+ */
+public class RunArchive {
+
+    private static final Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    public static final String INDEX_FILENAME = "archive-index.json";
+    public static final String EXTRACTED_FOLDER = "extracted";
+    private static final String ARCHIVE_EXTENSION = ".zip";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long EXTRACTED_MAX_IDLE_MILLIS = 24 * 60 * 60 * 1000L;
+    //access time of an extracted test run is recorded at most once in this interval
+    private static final long ACCESS_UPDATE_MILLIS = 60 * 60 * 1000L;
+
+    /**
+     * Archive index entry for a single test run
+     */
+    public static class Entry {
+        @JsonProperty
+        public String testRunId;
+        @JsonProperty
+        public Instant createdTime;
+        @JsonProperty
+        public String archive; //archive file name
+
+        public TestRunId toTestRunId(){
+            return TestRunId.of(testRunId, createdTime);
+        }
+    }
+
+    /**
+     * Persisted archive index file content
+     */
+    public static class IndexFile {
+        @JsonProperty
+        public List<Entry> testRuns = new ArrayList<>();
+    }
+
+    private final Path archiveRoot;
+    private final Path indexFile;
+    private final ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule())
+                                        .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false)
+                                        .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private Map<String, Entry> entries;
+    private long indexFileModifiedTime = -1;
+
+    public RunArchive(Path archiveRoot){
+        this.archiveRoot = archiveRoot;
+        this.indexFile = archiveRoot.resolve(INDEX_FILENAME);
+    }
+
+    /**
+     * Get all archived test runs
+     * @return list of archive entries, order by test run id
+     * @throws IOException throws this exception when fail to read archive index
+     */
+    public synchronized List<Entry> getEntries() throws IOException{
+        loadIndex();
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Check whether archive has any test run
+     * @return true if no test run was archived
+     * @throws IOException throws this exception when fail to read archive index
+     */
+    public synchronized boolean isEmpty() throws IOException{
+        loadIndex();
+        return entries.isEmpty();
+    }
+
+    /**
+     * Get folder of an archived test run which was already extracted
+     * @param testRunId test run id
+     * @return path to extracted test run folder, or null if test run was not extracted
+     */
+    public Path getExtractedTestRun(String testRunId){
+        Path testRun = archiveRoot.resolve(EXTRACTED_FOLDER).resolve(testRunId);
+        if (!Files.isDirectory(testRun))
+            return null;
+        recordAccess(testRun);
+        return testRun;
+    }
+
+    /**
+     * Check whether test run is archived
+     * @param testRunId test run id
+     * @return true if test run is in archive
+     * @throws IOException throws this exception when fail to read archive index
+     */
+    public synchronized boolean contains(String testRunId) throws IOException{
+        loadIndex();
+        return entries.containsKey(testRunId);
+    }
+
+    /**
+     * Add test runs to archive, test runs are grouped into new monthly archive files
+     * Test run folders are not deleted, caller deletes them after they are archived.
+     * @param testRuns map of test run id to test run folder
+     * @throws IOException throws this exception when fail to write archive
+     */
+    public synchronized void add(Map<TestRunId, Path> testRuns) throws IOException{
+        loadIndex();
+        Map<String, Map<TestRunId, Path>> periodMap = new TreeMap<>();
+        for(Map.Entry<TestRunId, Path> testRun : testRuns.entrySet()){
+            periodMap.computeIfAbsent(getArchivePeriod(testRun.getKey()), name -> new TreeMap<>())
+                .put(testRun.getKey(), testRun.getValue());
+        }
+
+        Files.createDirectories(archiveRoot);
+        for(Map.Entry<String, Map<TestRunId, Path>> period : periodMap.entrySet()){
+            String archiveName = writeArchive(period.getKey(), period.getValue());
+            LOGGER.log(Level.INFO, "Archived {0} test runs to {1}", new Object[]{period.getValue().size(), archiveName});
+            for(TestRunId testRunId : period.getValue().keySet()){
+                Entry entry = new Entry();
+                entry.testRunId = testRunId.getId();
+                entry.createdTime = testRunId.getCreatedTime();
+                entry.archive = archiveName;
+                entries.put(entry.testRunId, entry);
+            }
+        }
+        saveIndex();
+    }
+
+    /**
+     * Get folder of an archived test run, the test run is extracted if necessary
+     * @param testRunId test run id
+     * @return path to extracted test run folder, or null if test run is not archived
+     * @throws IOException throws this exception when fail to extract the test run
+     */
+    public synchronized Path getTestRun(String testRunId) throws IOException{
+        loadIndex();
+        Entry entry = entries.get(testRunId);
+        if (entry == null) return null;
+
+        Path testRun = getExtractedTestRun(testRunId);
+        if (testRun != null)
+            return testRun;
+        testRun = archiveRoot.resolve(EXTRACTED_FOLDER).resolve(testRunId);
+
+        LOGGER.log(Level.INFO, "Extract test run {0} from {1}", new Object[]{testRunId, entry.archive});
+        Path tempFolder = Files.createTempDirectory(Files.createDirectories(testRun.getParent()), testRunId);
+        String prefix = testRunId + "/";
+        try(ZipFile zipFile = new ZipFile(archiveRoot.resolve(entry.archive).toFile())){
+            Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+            while(zipEntries.hasMoreElements()){
+                ZipEntry zipEntry = zipEntries.nextElement();
+                if (zipEntry.isDirectory() || !zipEntry.getName().startsWith(prefix)) continue;
+                Path target = tempFolder.resolve(zipEntry.getName().substring(prefix.length())).normalize();
+                if (!target.startsWith(tempFolder)){
+                    LOGGER.log(Level.WARNING, "Skip invalid archive entry {0}", zipEntry.getName());
+                    continue;
+                }
+                Files.createDirectories(target.getParent());
+                try(InputStream is = zipFile.getInputStream(zipEntry)){
+                    Files.copy(is, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            moveFolder(tempFolder, testRun);
+        }finally{
+            deleteFolder(tempFolder);
+        }
+        return testRun;
+    }
+
+    /**
+     * Evict extracted test runs which were not accessed for a day
+     * An evicted test run is extracted again when it's needed.
+     * @return number of evicted test runs
+     * @throws IOException throws this exception when fail to delete extracted test runs
+     */
+    public synchronized int evictExtracted() throws IOException{
+        Path extractedRoot = archiveRoot.resolve(EXTRACTED_FOLDER);
+        if (!Files.isDirectory(extractedRoot)) return 0;
+        loadIndex();
+        List<Path> testRuns;
+        try(Stream<Path> pathStream = Files.list(extractedRoot)){
+            //folders of test runs being extracted are not in archive index yet
+            testRuns = pathStream.filter(path -> entries.containsKey(path.getFileName().toString()))
+                                 .collect(Collectors.toList());
+        }
+        long threshold = System.currentTimeMillis() - EXTRACTED_MAX_IDLE_MILLIS;
+        int count = 0;
+        for(Path testRun : testRuns){
+            if (Files.getLastModifiedTime(testRun).toMillis() >= threshold) continue;
+            //move out of place first, so readers never see a partially deleted test run
+            Path evicted = Files.createTempDirectory(extractedRoot, ".evicted");
+            try{
+                Files.move(testRun, evicted.resolve(testRun.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+                count++;
+            }catch(AtomicMoveNotSupportedException | NoSuchFileException ex){
+                LOGGER.log(Level.FINE, "Skip evicting {0} {1}", new Object[]{testRun, ex.toString()});
+            }finally{
+                deleteFolder(evicted);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Record access of an extracted test run in its folder modified time
+     */
+    private static void recordAccess(Path testRun){
+        try{
+            long now = System.currentTimeMillis();
+            if (now - Files.getLastModifiedTime(testRun).toMillis() > ACCESS_UPDATE_MILLIS)
+                Files.setLastModifiedTime(testRun, FileTime.fromMillis(now));
+        }catch(IOException ex){
+            LOGGER.log(Level.FINE, "Failed to record access of {0} {1}", new Object[]{testRun, ex.toString()});
+        }
+    }
+
+    /**
+     * Get archive period of a test run, one period per month
+     * @param testRunId test run id
+     * @return archive period, yyyy-MM
+     */
+    static String getArchivePeriod(TestRunId testRunId){
+        String date = testRunId.getId().substring(Registry.TESTADVISOR_TESTRUN_PREFIX.length());
+        return date.substring(0, 4) + "-" + date.substring(4, 6);
+    }
+
+    /**
+     * Create an empty new archive file of a period, yyyy-MM.zip for the first archive file,
+     * then yyyy-MM-2.zip, yyyy-MM-3.zip and so on. Creating the file reserves its name, so
+     * processes compacting at the same time never write the same archive file.
+     */
+    private String createArchiveFile(String period) throws IOException{
+        for(int part = 1; ; part++){
+            String archiveName = part == 1 ? period + ARCHIVE_EXTENSION : period + "-" + part + ARCHIVE_EXTENSION;
+            try{
+                Files.createFile(archiveRoot.resolve(archiveName));
+                return archiveName;
+            }catch(FileAlreadyExistsException ex){
+                //name taken by an earlier archive file
+            }
+        }
+    }
+
+    /**
+     * Write test runs to a new archive file of a period, existing archive files are not changed
+     * @return archive file name
+     */
+    private String writeArchive(String period, Map<TestRunId, Path> testRuns) throws IOException{
+        Path tempFile = Files.createTempFile(archiveRoot, period, ".tmp");
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try{
+            try(ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(tempFile))){
+                for(Map.Entry<TestRunId, Path> testRun : testRuns.entrySet()){
+                    List<Path> files;
+                    try(Stream<Path> pathStream = Files.walk(testRun.getValue())){
+                        files = pathStream.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+                    }
+                    for(Path file : files){
+                        String name = testRun.getKey().getId() + "/" + testRun.getValue().relativize(file).toString()
+                                            .replace(file.getFileSystem().getSeparator(), "/");
+                        ZipEntry zipEntry = new ZipEntry(name);
+                        zipEntry.setTime(Files.getLastModifiedTime(file).toMillis());
+                        zos.putNextEntry(zipEntry);
+                        try(InputStream is = Files.newInputStream(file)){
+                            copy(is, zos, buffer);
+                        }
+                        zos.closeEntry();
+                    }
+                }
+            }
+            String archiveName = createArchiveFile(period);
+            try{
+                replace(tempFile, archiveRoot.resolve(archiveName));
+            }catch(IOException ex){
+                Files.deleteIfExists(archiveRoot.resolve(archiveName));
+                throw ex;
+            }
+            return archiveName;
+        }finally{
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private void loadIndex() throws IOException{
+        long modifiedTime = Files.exists(indexFile) ? Files.getLastModifiedTime(indexFile).toMillis() : -1;
+        if (entries != null && modifiedTime == indexFileModifiedTime) return;
+
+        Map<String, Entry> newEntries = new TreeMap<>();
+        if (modifiedTime >= 0){
+            IndexFile index = objectMapper.readValue(indexFile.toFile(), IndexFile.class);
+            for(Entry entry : index.testRuns){
+                if (entry.testRunId != null && entry.createdTime != null && entry.archive != null)
+                    newEntries.put(entry.testRunId, entry);
+            }
+        }
+        entries = newEntries;
+        indexFileModifiedTime = modifiedTime;
+    }
+
+    private void saveIndex() throws IOException{
+        IndexFile index = new IndexFile();
+        index.testRuns = new ArrayList<>(entries.values());
+        Path tempFile = Files.createTempFile(archiveRoot, INDEX_FILENAME, ".tmp");
+        try{
+            objectMapper.writerWithDefaultPrettyPrinter().writeValue(tempFile.toFile(), index);
+            replace(tempFile, indexFile);
+        }finally{
+            Files.deleteIfExists(tempFile);
+        }
+        indexFileModifiedTime = Files.getLastModifiedTime(indexFile).toMillis();
+    }
+
+    private static void moveFolder(Path source, Path target) throws IOException{
+        try{
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        }catch(FileAlreadyExistsException | DirectoryNotEmptyException ex){
+            //extracted by another process
+        }catch(AtomicMoveNotSupportedException ex){
+            Files.move(source, target);
+        }
+    }
+
+    /**
+     * Replace target file with source file, atomically if file system supports it
+     * @param source source file
+     * @param target target file
+     * @throws IOException throws this exception when fail to move the file
+     */
+    static void replace(Path source, Path target) throws IOException{
+        try{
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }catch(AtomicMoveNotSupportedException ex){
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Copy all bytes of a stream to another stream
+     * @param is input stream
+     * @param os output stream
+     * @param buffer copy buffer
+     * @throws IOException throws this exception when fail to read or write
+     */
+    static void copy(InputStream is, OutputStream os, byte[] buffer) throws IOException{
+        int count;
+        while((count = is.read(buffer)) > 0)
+            os.write(buffer, 0, count);
+    }
+
+    /**
+     * Write all bytes of a stream to a file, readers see either the old or the new file content
+     * @param is input stream
+     * @param target target file
+     * @throws IOException throws this exception when fail to read or write
+     */
+    static void copy(InputStream is, Path target) throws IOException{
+        Path tempFile = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try{
+            Files.copy(is, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            replace(tempFile, target);
+        }finally{
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Delete a folder and all its content
+     * @param folder folder to delete
+     * @throws IOException throws this exception when fail to delete a file
+     */
+    static void deleteFolder(Path folder) throws IOException{
+        if (!Files.exists(folder)) return;
+        List<Path> paths;
+        try(Stream<Path> pathStream = Files.walk(folder)){
+            paths = pathStream.collect(Collectors.toList());
+        }
+        Collections.reverse(paths);
+        for(Path path : paths)
+            Files.deleteIfExists(path);
+    }
+}
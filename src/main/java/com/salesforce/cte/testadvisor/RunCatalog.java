@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+/**
+ * RunCatalog keeps a persistent list of all test runs in the registry together with
+ * their created time and lifecycle state, so listing test runs does not need to walk
+ * every test run folder.
+ * The catalog is updated incrementally whenever registry writes a test run file and
+ * is rebuilt from disk only when the catalog file is missing or stale.
+ * Test runs can be stored flat under registry root or in date shard folders yyyy/MM,
+ * only registry folders which were changed since last scan are listed again.
+ * All public methods are thread safe.
+ */
+public class RunCatalog {
+
+    private static final Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    public static final String CATALOG_FILENAME = "testrun-catalog.json";
+    //file systems with coarse time stamps may not show a change made right after a scan
+    private static final long MODIFIED_TIME_GRANULARITY_MILLIS = 2000;
+    private static final String ROOT_FOLDER = "";
+    private static final Pattern YEAR_FOLDER_PATTERN = Pattern.compile("\\d{4}");
+    private static final Pattern MONTH_FOLDER_PATTERN = Pattern.compile("\\d{2}");
+
+    /**
+     * Lifecycle state of a test run in registry
+     */
+    public enum RunState {
+        PENDING,     //test run folder exists, but no test result file yet
+        UNPROCESSED, //test result file exists, no signal file yet
+        PROCESSED,   //signal file exists, not uploaded yet
+        UPLOADED,    //portal record file exists
+        IMPORTED     //imported from a registry bundle, only used as baseline
+    }
+
+    /**
+     * Catalog entry for a single test run
+     */
+    public static class Entry {
+        @JsonProperty
+        public String testRunId;
+        @JsonProperty
+        public Instant createdTime;
+        @JsonProperty
+        public RunState state;
+        @JsonProperty
+        public String path; //test run folder relative to registry root, '/' separated
+
+        public TestRunId toTestRunId(){
+            return TestRunId.of(testRunId, createdTime);
+        }
+
+        /**
+         * Get test run folder
+         * @param registryRoot registry root
+         * @return path to test run folder
+         */
+        public Path resolve(Path registryRoot){
+            return registryRoot.resolve(path == null ? testRunId : path);
+        }
+
+        private String getFolder(){
+            if (path == null) return ROOT_FOLDER;
+            int index = path.lastIndexOf('/');
+            return index < 0 ? ROOT_FOLDER : path.substring(0, index);
+        }
+    }
+
+    /**
+     * Persisted catalog file content
+     */
+    public static class CatalogFile {
+        @JsonProperty
+        public Map<String, Long> folderModifiedTimes = new TreeMap<>(); //registry folder modified time when it was scanned
+        @JsonProperty
+        public long scanTime; //time when the last scan started
+        @JsonProperty
+        public List<Entry> testRuns = new ArrayList<>();
+    }
+
+    private final Path registryRoot;
+    private final Path catalogFile;
+    private final ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule())
+                                        .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false)
+                                        .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private CatalogFile catalog;
+    private Map<String, Entry> entries = new TreeMap<>();
+    private long catalogFileModifiedTime = -1;
+
+    public RunCatalog(Path registryRoot, Path indexFolder){
+        this.registryRoot = registryRoot;
+        this.catalogFile = indexFolder.resolve(CATALOG_FILENAME);
+    }
+
+    /**
+     * Get all test run entries from catalog, rebuild the catalog if it is missing or stale
+     * @return list of catalog entries, order by test run id
+     * @throws IOException throws this exception when fail to access registry
+     */
+    public synchronized List<Entry> getEntries() throws IOException{
+        refreshCatalog();
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Update catalog entry for a single test run based on the files in the test run folder
+     * @param testRun path to test run folder
+     * @throws IOException throws this exception when fail to save the catalog
+     */
+    public synchronized void update(Path testRun) throws IOException{
+        if (testRun == null || testRun.getFileName() == null) return;
+        String testRunId = testRun.getFileName().toString();
+        Instant createdTime = parseCreatedTime(testRunId);
+        if (createdTime == null) return;
+
+        refreshCatalog();
+        Entry entry = entries.computeIfAbsent(testRunId, id -> newEntry(id, createdTime, null));
+        entry.path = getRelativePath(testRun);
+        entry.state = getRunState(testRun);
+        saveCatalog();
+    }
+
+    /**
+     * Remove a test run from catalog, used after the test run folder was moved or deleted
+     * @param testRunId test run id
+     * @throws IOException throws this exception when fail to save the catalog
+     */
+    public synchronized void remove(String testRunId) throws IOException{
+        refreshCatalog();
+        if (entries.remove(testRunId) != null)
+            saveCatalog();
+    }
+
+    /**
+     * Rebuild the catalog by scanning all registry folders
+     * @throws IOException throws this exception when fail to access registry
+     */
+    public synchronized void rebuild() throws IOException{
+        LOGGER.log(Level.INFO, "Rebuild test run catalog for {0}", registryRoot);
+        catalog = new CatalogFile();
+        entries = new TreeMap<>();
+        scanFolders();
+        saveCatalog();
+    }
+
+    /**
+     * Make sure in memory catalog matches the registry
+     * Load the catalog file if another registry instance changed it, rebuild the catalog
+     * if the file is missing, and scan registry folders in which test runs were added or
+     * removed since last scan.
+     * Pending test runs are checked individually since test result file is written after
+     * the test run folder is created.
+     */
+    private void refreshCatalog() throws IOException{
+        long fileModifiedTime = getModifiedTime(catalogFile);
+        if (fileModifiedTime < 0){
+            rebuild();
+            return;
+        }
+        if (catalog == null || fileModifiedTime != catalogFileModifiedTime){
+            if (!loadCatalog()){
+                rebuild();
+                return;
+            }
+        }
+
+        boolean changed = scanFolders();
+        for(Entry entry : entries.values()){
+            if (entry.state != RunState.PENDING) continue;
+            RunState state = getRunState(entry.resolve(registryRoot));
+            if (state != entry.state){
+                entry.state = state;
+                changed = true;
+            }
+        }
+        if (changed)
+            saveCatalog();
+    }
+
+    /**
+     * Scan registry root and date shard folders, only folders changed since last scan are listed
+     * @return true if any folder was listed again
+     */
+    private boolean scanFolders() throws IOException{
+        long scanTime = System.currentTimeMillis();
+        Map<String, Long> folderModifiedTimes = new TreeMap<>();
+        Map<String, Entry> newEntries = new TreeMap<>();
+        boolean changed = scanFolder(ROOT_FOLDER, folderModifiedTimes, newEntries);
+        changed |= !folderModifiedTimes.keySet().equals(catalog.folderModifiedTimes.keySet());
+        if (changed){
+            catalog.folderModifiedTimes = folderModifiedTimes;
+            catalog.scanTime = scanTime;
+            entries = newEntries;
+        }
+        return changed;
+    }
+
+    private boolean scanFolder(String folder, Map<String, Long> folderModifiedTimes, Map<String, Entry> newEntries) throws IOException{
+        Path folderPath = folder.isEmpty() ? registryRoot : registryRoot.resolve(folder);
+        long modifiedTime = getModifiedTime(folderPath);
+        if (modifiedTime < 0) return true; //folder was removed
+        folderModifiedTimes.put(folder, modifiedTime);
+
+        boolean changed = false;
+        List<String> subFolders = new ArrayList<>();
+        if (isStale(folder, modifiedTime)){
+            changed = true;
+            try(Stream<Path> pathStream = Files.list(folderPath)){
+                for(Path path : pathStream.filter(Files::isDirectory).collect(Collectors.toList())){
+                    String name = path.getFileName().toString();
+                    if (name.startsWith(Registry.TESTADVISOR_TESTRUN_PREFIX)){
+                        Instant createdTime = parseCreatedTime(name);
+                        if (createdTime == null) continue;
+                        Entry entry = newEntry(name, createdTime, getRelativePath(path));
+                        entry.state = getRunState(path);
+                        newEntries.put(name, entry);
+                    }else if (isShardFolder(folder, name)){
+                        subFolders.add(folder.isEmpty() ? name : folder + "/" + name);
+                    }
+                }
+            }
+        }else{
+            // folder was not changed, keep its test runs and check its shard folders
+            for(Entry entry : entries.values()){
+                if (folder.equals(entry.getFolder()))
+                    newEntries.put(entry.testRunId, entry);
+            }
+            for(String subFolder : catalog.folderModifiedTimes.keySet()){
+                if (!subFolder.isEmpty() && folder.equals(getParentFolder(subFolder)))
+                    subFolders.add(subFolder);
+            }
+        }
+
+        for(String subFolder : subFolders)
+            changed |= scanFolder(subFolder, folderModifiedTimes, newEntries);
+        return changed;
+    }
+
+    private boolean isStale(String folder, long modifiedTime){
+        Long recordedTime = catalog.folderModifiedTimes.get(folder);
+        return recordedTime == null || recordedTime != modifiedTime
+            || modifiedTime + MODIFIED_TIME_GRANULARITY_MILLIS >= catalog.scanTime;
+    }
+
+    private static boolean isShardFolder(String parent, String name){
+        if (parent.isEmpty())
+            return YEAR_FOLDER_PATTERN.matcher(name).matches();
+        return parent.indexOf('/') < 0 && MONTH_FOLDER_PATTERN.matcher(name).matches();
+    }
+
+    private static String getParentFolder(String folder){
+        int index = folder.lastIndexOf('/');
+        return index < 0 ? ROOT_FOLDER : folder.substring(0, index);
+    }
+
+    private String getRelativePath(Path testRun){
+        Path relative = registryRoot.toAbsolutePath().normalize().relativize(testRun.toAbsolutePath().normalize());
+        return relative.toString().replace(relative.getFileSystem().getSeparator(), "/");
+    }
+
+    private boolean loadCatalog(){
+        try{
+            catalog = objectMapper.readValue(catalogFile.toFile(), CatalogFile.class);
+        }catch(IOException ex){
+            LOGGER.log(Level.WARNING, "Failed to load test run catalog {0}", ex.toString());
+            catalog = null;
+            return false;
+        }
+        Map<String, Entry> newEntries = new TreeMap<>();
+        for(Entry entry : catalog.testRuns){
+            if (entry.testRunId != null && entry.createdTime != null && entry.state != null)
+                newEntries.put(entry.testRunId, entry);
+        }
+        if (catalog.folderModifiedTimes == null)
+            catalog.folderModifiedTimes = new TreeMap<>();
+        entries = newEntries;
+        catalogFileModifiedTime = getModifiedTime(catalogFile);
+        return true;
+    }
+
+    private void saveCatalog() throws IOException{
+        catalog.testRuns = new ArrayList<>(entries.values());
+        Files.createDirectories(catalogFile.getParent());
+        Path tempFile = Files.createTempFile(catalogFile.getParent(), CATALOG_FILENAME, ".tmp");
+        try{
+            objectMapper.writerWithDefaultPrettyPrinter().writeValue(tempFile.toFile(), catalog);
+            try{
+                Files.move(tempFile, catalogFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }catch(AtomicMoveNotSupportedException ex){
+                Files.move(tempFile, catalogFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }finally{
+            Files.deleteIfExists(tempFile);
+        }
+        catalogFileModifiedTime = getModifiedTime(catalogFile);
+    }
+
+    private static Entry newEntry(String testRunId, Instant createdTime, String path){
+        Entry entry = new Entry();
+        entry.testRunId = testRunId;
+        entry.createdTime = createdTime;
+        entry.path = path;
+        entry.state = RunState.PENDING;
+        return entry;
+    }
+
+    /**
+     * Get test run state based on the files in test run folder
+     * @param testRun path to test run folder
+     * @return test run state
+     */
+    static RunState getRunState(Path testRun){
+        if (!Files.exists(testRun.resolve(Registry.TESTADVISOR_TEST_RESULT)))
+            return RunState.PENDING;
+        if (Files.exists(testRun.resolve(Registry.IMPORTED_MARKER_FILENAME)))
+            return RunState.IMPORTED;
+        if (!Files.exists(testRun.resolve(Registry.SIGNAL_FILENAME)))
+            return RunState.UNPROCESSED;
+        if (!Files.exists(testRun.resolve(Registry.PORTAL_RECORD_FILENAME)))
+            return RunState.PROCESSED;
+        return RunState.UPLOADED;
+    }
+
+    private static Instant parseCreatedTime(String testRunId){
+        TestRunId id = TestRunId.parse(testRunId);
+        if (id == null){
+            LOGGER.log(Level.WARNING, "Invalid test run id {0}", testRunId);
+            return null;
+        }
+        return id.getCreatedTime();
+    }
+
+    private static long getModifiedTime(Path path){
+        try{
+            return Files.getLastModifiedTime(path).toMillis();
+        }catch(IOException ex){
+            return -1;
+        }
+    }
+}
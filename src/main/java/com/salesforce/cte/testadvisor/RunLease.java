@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * RunLease lets several CLI processes work on the same registry without processing the
+ * same test run twice.
+ * A process claims a test run by atomically creating a lease file, leases/TestRun-xxx.lease.
+ * Held leases are renewed in background by updating lease file modified time, a lease which
+ * was not renewed within lease timeout belongs to a dead process and can be taken over.
+ * All public methods are thread safe.
+ */
+public class RunLease {
+
+    private static final Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    public static final String LEASE_EXTENSION = ".lease";
+    private static final String EXPIRED_EXTENSION = ".expired";
+
+    private final Path leaseFolder;
+    private final long timeoutMillis;
+    private final String owner = UUID.randomUUID().toString() + "@" + ManagementFactory.getRuntimeMXBean().getName();
+    private final Set<String> heldLeases = new HashSet<>();
+    private ScheduledExecutorService renewExecutor;
+
+    public RunLease(Path leaseFolder, long timeoutMillis){
+        this.leaseFolder = leaseFolder;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public String getOwner(){
+        return owner;
+    }
+
+    /**
+     * Try to claim a test run, an expired lease of another process is taken over
+     * @param testRunId test run id
+     * @return true if lease was acquired or is already held by this instance, false if
+     * another process holds the lease
+     * @throws IOException throws this exception when fail to access lease file
+     */
+    public synchronized boolean tryAcquire(String testRunId) throws IOException{
+        if (heldLeases.contains(testRunId)) return true;
+        Path leaseFile = getLeaseFile(testRunId);
+        Files.createDirectories(leaseFolder);
+        // retry once after an expired lease was removed
+        for(int i = 0; i < 2; i++){
+            try{
+                Files.write(leaseFile, owner.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                heldLeases.add(testRunId);
+                startRenewal();
+                return true;
+            }catch(FileAlreadyExistsException ex){
+                if (!breakExpiredLease(leaseFile))
+                    return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Release a lease held by this instance
+     * @param testRunId test run id
+     * @throws IOException throws this exception when fail to delete lease file
+     */
+    public synchronized void release(String testRunId) throws IOException{
+        if (!heldLeases.remove(testRunId)) return;
+        Path leaseFile = getLeaseFile(testRunId);
+        if (owner.equals(readOwner(leaseFile)))
+            Files.deleteIfExists(leaseFile);
+        else
+            LOGGER.log(Level.WARNING, "Lease of {0} was taken over by another process", testRunId);
+    }
+
+    /**
+     * Check whether a test run is claimed by another process
+     * @param testRunId test run id
+     * @return true if another process holds an unexpired lease of the test run
+     * @throws IOException throws this exception when fail to access lease file
+     */
+    public synchronized boolean isLeasedByOthers(String testRunId) throws IOException{
+        if (heldLeases.contains(testRunId)) return false;
+        try{
+            return !isExpired(Files.getLastModifiedTime(getLeaseFile(testRunId)));
+        }catch(NoSuchFileException ex){
+            return false;
+        }
+    }
+
+    /**
+     * Renew all leases held by this instance
+     */
+    public synchronized void renew(){
+        FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+        for(String testRunId : heldLeases){
+            try{
+                Files.setLastModifiedTime(getLeaseFile(testRunId), now);
+            }catch(IOException ex){
+                LOGGER.log(Level.WARNING, "Failed to renew lease of {0} {1}", new Object[]{testRunId, ex.toString()});
+            }
+        }
+    }
+
+    private Path getLeaseFile(String testRunId){
+        return leaseFolder.resolve(testRunId + LEASE_EXTENSION);
+    }
+
+    private boolean isExpired(FileTime modifiedTime){
+        return System.currentTimeMillis() - modifiedTime.toMillis() > timeoutMillis;
+    }
+
+    /**
+     * Remove lease file if it expired
+     * The lease file is renamed to a unique name first, so only one process can take it over.
+     * If the lease was renewed in between, it's moved back.
+     * @param leaseFile lease file
+     * @return true if lease file was removed, false if lease is still valid
+     */
+    private boolean breakExpiredLease(Path leaseFile) throws IOException{
+        try{
+            if (!isExpired(Files.getLastModifiedTime(leaseFile)))
+                return false;
+        }catch(NoSuchFileException ex){
+            return true;
+        }
+
+        Path expiredFile = leaseFolder.resolve(leaseFile.getFileName().toString() + "." + UUID.randomUUID() + EXPIRED_EXTENSION);
+        try{
+            try{
+                Files.move(leaseFile, expiredFile, StandardCopyOption.ATOMIC_MOVE);
+            }catch(AtomicMoveNotSupportedException ex){
+                Files.move(leaseFile, expiredFile);
+            }
+        }catch(NoSuchFileException ex){
+            return true;
+        }
+
+        if (!isExpired(Files.getLastModifiedTime(expiredFile))){
+            //lease was renewed by its holder or taken over by another process
+            try{
+                Files.move(expiredFile, leaseFile);
+            }catch(FileAlreadyExistsException ex){
+                Files.deleteIfExists(expiredFile);
+            }
+            return false;
+        }
+        LOGGER.log(Level.INFO, "Take over expired lease {0} of {1}", new Object[]{leaseFile.getFileName(), readOwner(expiredFile)});
+        Files.deleteIfExists(expiredFile);
+        return true;
+    }
+
+    private static String readOwner(Path leaseFile) throws IOException{
+        try{
+            return new String(Files.readAllBytes(leaseFile), StandardCharsets.UTF_8);
+        }catch(NoSuchFileException ex){
+            return null;
+        }
+    }
+
+    /**
+     * Start renewing held leases in background, leases are renewed 3 times per lease timeout
+     */
+    private void startRenewal(){
+        if (renewExecutor != null) return;
+        renewExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "testadvisor-lease-renewal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, timeoutMillis / 3);
+        renewExecutor.scheduleAtFixedRate(this::renew, period, period, TimeUnit.MILLISECONDS);
+    }
+}
@@ -8,23 +8,147 @@
 package com.salesforce.cte.testadvisor;
 
 import java.awt.image.BufferedImage;
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import com.github.romankh3.image.comparison.ImageComparison;
-import com.github.romankh3.image.comparison.ImageComparisonUtil;
 import com.github.romankh3.image.comparison.model.ImageComparisonResult;
+import com.github.romankh3.image.comparison.model.ImageComparisonState;
 import com.github.romankh3.image.comparison.model.Rectangle;
+import com.salesforce.cte.testadvisor.PerceptualHashStore.PerceptualHash;
 
 /**
  * @author Yibing Tao
  * This class provides methods to process screenshots
+ * Byte identical screenshots match without decoding, decoded screenshots are cached and
+ * can be prefetched in background, a single instance can be used by multiple threads.
+ * Prefetch and comparison threads are stopped on close.
  */
-public class ScreenshotManager {
+public class ScreenshotManager implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    private static final int PNG_HEADER_SIZE = 24;
+    private static final long PNG_SIGNATURE = 0x89504E470D0A1A0AL;
+    private static final int PNG_IHDR_TYPE = 0x49484452;
+    private static final int BUFFER_SIZE = 64 * 1024;
 
-    private int minimalRectangleSize;
+    private static final int HASH_COLUMNS = 9;
+    private static final int HASH_ROWS = 8;
+
+    private final int minimalRectangleSize;
+    private final DecodedImageCache imageCache;
+    private final RasterComparison rasterComparison;
+    private final ExecutorService comparisonPool;
+    private final ExecutorService prefetchPool;
+    private final Semaphore prefetchPermits;
     public ScreenshotManager(){
         this.minimalRectangleSize = Configuration.getScreenshotMinDiffAreaSize();
+        this.imageCache = new DecodedImageCache(Configuration.getImageCacheSize());
+        boolean raster = Configuration.getScreenshotComparisonEngine().equals(Configuration.RASTER_COMPARISON_ENGINE);
+        int comparisonThreads = raster ? Configuration.getComparisonThreads() : 1;
+        this.comparisonPool = comparisonThreads <= 1 ? null : Executors.newFixedThreadPool(comparisonThreads, runnable -> {
+            Thread thread = new Thread(runnable, "testadvisor-comparison");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // row bands of a screenshot are compared in parallel on the comparison pool
+        this.rasterComparison = raster ? new RasterComparison(minimalRectangleSize, comparisonPool,
+                                                comparisonThreads, Configuration.getIsPyramidComparisonEnabled())
+                                        : null;
+        // prefetched images are kept in image cache until compared
+        int prefetchImages = Configuration.getImageCacheSize() > 0 ? Configuration.getPrefetchImages() : 0;
+        this.prefetchPermits = new Semaphore(prefetchImages);
+        this.prefetchPool = prefetchImages < 2 ? null : Executors.newFixedThreadPool(Math.min(2, prefetchImages / 2), runnable -> {
+            Thread thread = new Thread(runnable, "testadvisor-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Get memory of a decoded screenshot from its PNG header without decoding it
+     * @param file PNG screenshot
+     * @return width x height x 4 bytes, or -1 if the file is not a PNG image
+     * @throws IOException throws this exception when fail to read the file
+     */
+    public static long getDecodedSize(Path file) throws IOException{
+        byte[] header = new byte[PNG_HEADER_SIZE];
+        int total = 0;
+        try(InputStream is = Files.newInputStream(file)){
+            int count;
+            while(total < header.length && (count = is.read(header, total, header.length - total)) > 0){
+                total += count;
+            }
+        }
+        // 8 bytes signature, IHDR chunk length and type, then width and height
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        if (total < header.length || buffer.getLong(0) != PNG_SIGNATURE || buffer.getInt(12) != PNG_IHDR_TYPE)
+            return -1;
+        return (long) buffer.getInt(16) * buffer.getInt(20) * 4;
+    }
+
+    /**
+     * Read and decode 2 screenshots to be compared later in background
+     * Nothing is done if the max number of images in flight are being prefetched, so caller is
+     * never blocked, or if both screenshots are byte identical and don't need to be decoded.
+     * @param baseline 
+     * baseline screenshot
+     * @param current
+     * current screenshot
+     */
+    public void prefetchScreenshots(File baseline, File current){
+        if (prefetchPool == null || imageCache.isCached(baseline) && imageCache.isCached(current)
+            || !prefetchPermits.tryAcquire(2))
+            return;
+        try{
+            prefetchPool.execute(() -> {
+                try{
+                    if (baseline.exists() && current.exists() && !isIdenticalFile(baseline, current)){
+                        imageCache.getImage(baseline);
+                        imageCache.getImage(current);
+                    }
+                }catch(RuntimeException ex){
+                    // screenshot is read again when compared and error is reported then
+                    LOGGER.log(Level.FINE, "Failed to prefetch screenshots {0}", ex.toString());
+                }finally{
+                    prefetchPermits.release(2);
+                }
+            });
+        }catch(RejectedExecutionException ex){
+            prefetchPermits.release(2);
+        }
+    }
+
+    /**
+     * Check whether a screenshot is decoded and cached, e.g. after it was prefetched
+     * @param screenshot screenshot file
+     * @return true if the screenshot doesn't need to be decoded
+     */
+    boolean isCached(File screenshot){
+        return imageCache.isCached(screenshot);
+    }
+
+    /**
+     * Stop prefetch and comparison threads, pending prefetches are dropped
+     */
+    @Override
+    public void close(){
+        if (prefetchPool != null)
+            prefetchPool.shutdownNow();
+        if (comparisonPool != null)
+            comparisonPool.shutdownNow();
     }
 
     /**
@@ -37,14 +161,13 @@ public class ScreenshotManager {
      * image comparison result, including difference percentiage and list of diff area
      */
     public ImageComparisonResult screenshotsComparison(File baseline, File current){
+        if (isIdenticalFile(baseline, current))
+            return getMatchResult();
         //load images to be compared:
-        BufferedImage expectedImage = ImageComparisonUtil.readImageFromResources(baseline.getAbsolutePath());
-        BufferedImage actualImage = ImageComparisonUtil.readImageFromResources(current.getAbsolutePath());
+        BufferedImage expectedImage = imageCache.getImage(baseline);
+        BufferedImage actualImage = imageCache.getImage(current);
 
-        //Create ImageComparison object and compare the images.
-        ImageComparison imc =  new ImageComparison(expectedImage, actualImage);
-        imc.setMinimalRectangleSize(minimalRectangleSize);
-        return  imc.compareImages();
+        return compareImages(expectedImage, actualImage, null, null);
     }
 
     /**
@@ -60,15 +183,13 @@ public class ScreenshotManager {
      */
     public ImageComparisonResult screenshotsComparisonWithExcludedAreas(File baseline, File current, 
             List<Rectangle> excludedAreas){
+        if (isIdenticalFile(baseline, current))
+            return getMatchResult();
         //load images to be compared:
-        BufferedImage expectedImage = ImageComparisonUtil.readImageFromResources(baseline.getAbsolutePath());
-        BufferedImage actualImage = ImageComparisonUtil.readImageFromResources(current.getAbsolutePath());
+        BufferedImage expectedImage = imageCache.getImage(baseline);
+        BufferedImage actualImage = imageCache.getImage(current);
 
-        //Create ImageComparison object and compare the images.
-        ImageComparison imc =  new ImageComparison(expectedImage, actualImage);
-        imc.setExcludedAreas(excludedAreas);
-        imc.setMinimalRectangleSize(minimalRectangleSize);
-        return  imc.compareImages();
+        return compareImages(expectedImage, actualImage, null, excludedAreas);
     }
 
     /**
@@ -96,14 +217,13 @@ public class ScreenshotManager {
      * image comparison result, including difference percentiage and list of diff area
      */
     public ImageComparisonResult screenshotsComparison(File baseline, File current, File resultFile){
+        if (isIdenticalFile(baseline, current))
+            return getMatchResult();
         //load images to be compared:
-        BufferedImage expectedImage = ImageComparisonUtil.readImageFromResources(baseline.getAbsolutePath());
-        BufferedImage actualImage = ImageComparisonUtil.readImageFromResources(current.getAbsolutePath());
-    
-        //Create ImageComparison object and compare the images.
-        ImageComparison imc = new ImageComparison(expectedImage, actualImage,resultFile);
-        imc.setMinimalRectangleSize(minimalRectangleSize);
-        return imc.compareImages();
+        BufferedImage expectedImage = imageCache.getImage(baseline);
+        BufferedImage actualImage = imageCache.getImage(current);
+
+        return compareImages(expectedImage, actualImage, resultFile, null);
     }
 
     /**
@@ -121,16 +241,181 @@ public class ScreenshotManager {
      */
     public ImageComparisonResult screenshotsComparisonWithExcludedAreas(File baseline, File current, 
         File resultFile, List<Rectangle> excludedAreas){
+        if (isIdenticalFile(baseline, current))
+            return getMatchResult();
+        //load images to be compared:
+        BufferedImage expectedImage = imageCache.getImage(baseline);
+        BufferedImage actualImage = imageCache.getImage(current);
+
+        return compareImages(expectedImage, actualImage, resultFile, excludedAreas);
+    }
+
+    /**
+     * Compare 2 screenshots only to find out whether their diff is large enough to report
+     * Comparison stops as soon as the diff is known to be large enough or not, so diff areas of
+     * the result may be incomplete. Only raster comparison engine stops early, image comparison
+     * library always does a full comparison.
+     * @param baseline 
+     * baseline screenshot
+     * @param current
+     * current screenshot
+     * @param excludedAreas
+     * list of area in rectangle to exclude from comparison, may be null
+     * @param minDiffRatio
+     * min diff ratio in percent to report a diff, 0 to ignore diff ratio
+     * @return
+     * image comparison result, MISMATCH with diff areas found so far if diff is large enough
+     */
+    public ImageComparisonResult screenshotsVerdict(File baseline, File current, List<Rectangle> excludedAreas,
+        int minDiffRatio){
+        if (isIdenticalFile(baseline, current))
+            return getMatchResult();
         //load images to be compared:
-        BufferedImage expectedImage = ImageComparisonUtil.readImageFromResources(baseline.getAbsolutePath());
-        BufferedImage actualImage = ImageComparisonUtil.readImageFromResources(current.getAbsolutePath());
-        
+        BufferedImage expectedImage = imageCache.getImage(baseline);
+        BufferedImage actualImage = imageCache.getImage(current);
+
+        if (rasterComparison != null)
+            return rasterComparison.verdict(expectedImage, actualImage, excludedAreas, minDiffRatio);
+        return compareImages(expectedImage, actualImage, null, excludedAreas);
+    }
+
+    /**
+     * Compare 2 decoded screenshots with the configured comparison engine
+     * @param expectedImage baseline screenshot
+     * @param actualImage current screenshot
+     * @param resultFile comparison result image, null if not needed
+     * @param excludedAreas list of area in rectangle to exclude from comparison, may be null
+     * @return image comparison result, including difference percentiage and list of diff area
+     */
+    private ImageComparisonResult compareImages(BufferedImage expectedImage, BufferedImage actualImage,
+        File resultFile, List<Rectangle> excludedAreas){
+        if (rasterComparison != null)
+            return rasterComparison.compare(expectedImage, actualImage, resultFile, excludedAreas);
+
         //Create ImageComparison object and compare the images.
-        ImageComparison imc = new ImageComparison(expectedImage, actualImage,resultFile);
+        ImageComparison imc = resultFile == null ? new ImageComparison(expectedImage, actualImage)
+                                : new ImageComparison(expectedImage, actualImage, resultFile);
         if (excludedAreas != null) imc.setExcludedAreas(excludedAreas);
         imc.setMinimalRectangleSize(minimalRectangleSize);
         return imc.compareImages();
     }
 
+    /**
+     * Check whether 2 screenshot files have identical bytes
+     * @param baseline baseline screenshot
+     * @param current current screenshot
+     * @return true if both files are identical, false if they are different or fail to read
+     */
+    private boolean isIdenticalFile(File baseline, File current){
+        try{
+            return isSameContent(baseline, current);
+        }catch(IOException ex){
+            LOGGER.log(Level.WARNING, "Failed to read screenshot {0}", ex.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Check whether 2 files have identical content
+     * Files of different sizes are not read, otherwise both files are read side by side
+     * until the first different byte.
+     * @param file1 first file
+     * @param file2 second file
+     * @return true if both files have the same bytes
+     * @throws IOException throws this exception when fail to read files
+     */
+    static boolean isSameContent(File file1, File file2) throws IOException{
+        if (file1.length() != file2.length())
+            return false;
+        if (file1.getCanonicalPath().equals(file2.getCanonicalPath()))
+            return true;
+        byte[] buffer1 = new byte[BUFFER_SIZE];
+        byte[] buffer2 = new byte[BUFFER_SIZE];
+        try(InputStream is1 = Files.newInputStream(file1.toPath());
+            InputStream is2 = Files.newInputStream(file2.toPath())){
+            while(true){
+                int count1 = readFully(is1, buffer1);
+                int count2 = readFully(is2, buffer2);
+                if (count1 != count2 || !Arrays.equals(buffer1, buffer2))
+                    return false;
+                if (count1 < BUFFER_SIZE)
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * Read until buffer is full or end of stream, unused part of buffer is cleared
+     */
+    private static int readFully(InputStream is, byte[] buffer) throws IOException{
+        int total = 0;
+        int count;
+        while(total < buffer.length && (count = is.read(buffer, total, buffer.length - total)) > 0){
+            total += count;
+        }
+        Arrays.fill(buffer, total, buffer.length, (byte) 0);
+        return total;
+    }
+
+    /**
+     * Create match result of byte identical screenshots without decoding them
+     * Like image comparison of a match, no result image is saved.
+     * @return image comparison result without images
+     */
+    private static ImageComparisonResult getMatchResult(){
+        return new ImageComparisonResult().setImageComparisonState(ImageComparisonState.MATCH);
+    }
+
+    /**
+     * Get perceptual hash of a screenshot, the hash is calculated and saved in the store if
+     * the screenshot was not hashed yet
+     * @param screenshot screenshot file
+     * @param store perceptual hash store
+     * @return perceptual hash of the screenshot
+     * @throws IOException throws this exception when fail to access the store
+     */
+    public PerceptualHash getPerceptualHash(File screenshot, PerceptualHashStore store) throws IOException{
+        PerceptualHash hash = store.get(screenshot.toPath());
+        if (hash != null) return hash;
+        BufferedImage image = imageCache.getImage(screenshot);
+        return store.put(screenshot.toPath(), getDifferenceHash(image), image.getWidth(), image.getHeight());
+    }
+
+    /**
+     * Calculate difference hash of an image
+     * Image is scaled down to 9x8 blocks of average brightness, each bit of the hash tells
+     * whether a block is brighter than its right neighbor.
+     * @param image image to hash
+     * @return 64 bits difference hash
+     */
+    static long getDifferenceHash(BufferedImage image){
+        int width = image.getWidth();
+        int height = image.getHeight();
+        long[] brightness = new long[HASH_COLUMNS * HASH_ROWS];
+        long[] pixels = new long[HASH_COLUMNS * HASH_ROWS];
+        int[] row = new int[width];
+        for(int y = 0; y < height; y++){
+            image.getRGB(0, y, width, 1, row, 0, width);
+            int blockRow = y * HASH_ROWS / height;
+            for(int x = 0; x < width; x++){
+                int rgb = row[x];
+                int block = blockRow * HASH_COLUMNS + x * HASH_COLUMNS / width;
+                brightness[block] += ((rgb >> 16) & 0xff) * 299 + ((rgb >> 8) & 0xff) * 587 + (rgb & 0xff) * 114;
+                pixels[block]++;
+            }
+        }
+
+        long hash = 0;
+        for(int blockRow = 0; blockRow < HASH_ROWS; blockRow++){
+            for(int column = 0; column < HASH_COLUMNS - 1; column++){
+                int block = blockRow * HASH_COLUMNS + column;
+                // compare average brightness, blocks of tiny images may have no pixel
+                long left = brightness[block] * Math.max(1, pixels[block + 1]);
+                long right = brightness[block + 1] * Math.max(1, pixels[block]);
+                hash = (hash << 1) | (left > right ? 1 : 0);
+            }
+        }
+        return hash;
+    }
 
 }
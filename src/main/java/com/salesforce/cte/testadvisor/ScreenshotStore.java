@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.salesforce.cte.common.TestAdvisorResult;
+import com.salesforce.cte.common.TestCaseExecution;
+import com.salesforce.cte.common.TestEvent;
+
+/**
+ * ScreenshotStore is a content addressed store of screenshots in registry.
+ * Each unique screenshot is saved once as store/ab/abcdef...png, keyed by SHA-256 of the
+ * file content. Screenshots of processed test runs are replaced by hard links to the store
+ * object when file system supports it, and a manifest of screenshot hashes is saved in
+ * the test run folder, so identical screenshots can be found without reading them.
+ */
+public class ScreenshotStore {
+
+    private static final Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    public static final String MANIFEST_FILENAME = "screenshot-manifest.json";
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final String OBJECT_EXTENSION = ".png";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Screenshot hashes of a test run, keyed by screenshot path relative to test run folder
+     */
+    public static class Manifest {
+        @JsonProperty
+        public Map<String, String> screenshots = new TreeMap<>();
+    }
+
+    /**
+     * Hash of a screenshot file, valid as long as file size and modified time don't change
+     */
+    private static class FileHash {
+        private final long size;
+        private final long modifiedTime;
+        private final String hash;
+
+        private FileHash(long size, long modifiedTime, String hash){
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+            this.hash = hash;
+        }
+    }
+
+    private final Path storeRoot;
+    private final ObjectMapper objectMapper = new ObjectMapper()
+                                        .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private final Map<Path, Manifest> manifestMap = new ConcurrentHashMap<>();
+    private final Map<Path, FileHash> hashMap = new ConcurrentHashMap<>();
+
+    public ScreenshotStore(Path storeRoot){
+        this.storeRoot = storeRoot;
+    }
+
+    public Path getStoreRoot(){
+        return storeRoot;
+    }
+
+    /**
+     * Add all screenshots of a test run to the store
+     * Screenshots in test run folder are replaced by hard links to store objects, the test
+     * run keeps its own copy if hard link is not supported.
+     * @param registry registry to resolve screenshot paths
+     * @param testRun path to test run folder
+     * @return number of screenshots added to the store
+     * @throws IOException throws this exception when fail to access screenshots or store
+     */
+    public synchronized int addTestRun(Registry registry, Path testRun) throws IOException{
+        TestAdvisorResult result = registry.getTestAdvisorResult(testRun);
+        Path runFolder = testRun.toAbsolutePath().normalize();
+        Manifest manifest = new Manifest();
+        for(TestCaseExecution test : result.getTestCaseExecutionList()){
+            for(TestEvent event : test.getEventList()){
+                if (event.getScreenshotPath() == null || event.getScreenshotPath().isEmpty()) continue;
+                Path screenshot = registry.resolveScreenshotPath(event.getScreenshotPath()).toAbsolutePath().normalize();
+                if (!screenshot.startsWith(runFolder) || !Files.isRegularFile(screenshot)) continue;
+                String relativePath = runFolder.relativize(screenshot).toString()
+                                        .replace(screenshot.getFileSystem().getSeparator(), "/");
+                if (manifest.screenshots.containsKey(relativePath)) continue;
+                manifest.screenshots.put(relativePath, addScreenshot(screenshot));
+            }
+        }
+
+        if (!manifest.screenshots.isEmpty()){
+            objectMapper.writerWithDefaultPrettyPrinter().writeValue(runFolder.resolve(MANIFEST_FILENAME).toFile(), manifest);
+            manifestMap.put(runFolder, manifest);
+        }
+        return manifest.screenshots.size();
+    }
+
+    /**
+     * Check whether 2 screenshots have identical content
+     * @param file1 first screenshot
+     * @param file2 second screenshot
+     * @return true if both screenshots have the same content hash
+     * @throws IOException throws this exception when fail to read screenshots
+     */
+    public boolean isIdentical(Path file1, Path file2) throws IOException{
+        return getHash(file1).equals(getHash(file2));
+    }
+
+    /**
+     * Get content hash of a screenshot
+     * Hash is read from test run manifest if the screenshot was added to the store,
+     * otherwise it's calculated from file content.
+     * @param file path to screenshot
+     * @return hex string of content hash
+     * @throws IOException throws this exception when fail to read the screenshot
+     */
+    public String getHash(Path file) throws IOException{
+        Path path = file.toAbsolutePath().normalize();
+        long size = Files.size(path);
+        long modifiedTime = Files.getLastModifiedTime(path).toMillis();
+        FileHash fileHash = hashMap.get(path);
+        if (fileHash != null && fileHash.size == size && fileHash.modifiedTime == modifiedTime)
+            return fileHash.hash;
+
+        String hash = getManifestHash(path);
+        if (hash == null)
+            hash = calculateHash(path);
+        hashMap.put(path, new FileHash(size, modifiedTime, hash));
+        return hash;
+    }
+
+    /**
+     * Delete store objects which are no longer linked from any test run
+     * Only works on file systems which report hard link count, nothing is deleted otherwise.
+     * @return number of deleted store objects
+     * @throws IOException throws this exception when fail to access store
+     */
+    public synchronized int prune() throws IOException{
+        if (!Files.exists(storeRoot)) return 0;
+        List<Path> objects;
+        try(Stream<Path> pathStream = Files.walk(storeRoot)){
+            objects = pathStream.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        int count = 0;
+        for(Path object : objects){
+            int linkCount;
+            try{
+                linkCount = (Integer) Files.getAttribute(object, "unix:nlink");
+            }catch(UnsupportedOperationException | IllegalArgumentException ex){
+                return count;
+            }
+            if (linkCount <= 1){
+                Files.deleteIfExists(object);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get store object path for a content hash
+     * @param hash content hash
+     * @return path to store object
+     */
+    public Path getObjectPath(String hash){
+        return storeRoot.resolve(hash.substring(0, 2)).resolve(hash + OBJECT_EXTENSION);
+    }
+
+    private String addScreenshot(Path screenshot) throws IOException{
+        String hash = calculateHash(screenshot);
+        Path object = getObjectPath(hash);
+        if (Files.exists(object)){
+            if (!Files.isSameFile(object, screenshot))
+                replaceWithLink(screenshot, object);
+        }else{
+            Files.createDirectories(object.getParent());
+            try{
+                Files.createLink(object, screenshot);
+            }catch(FileSystemException | UnsupportedOperationException ex){
+                //hard link is not supported, keep a copy in store
+                Files.copy(screenshot, object, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        return hash;
+    }
+
+    private void replaceWithLink(Path screenshot, Path object) throws IOException{
+        Path tempFile = screenshot.resolveSibling(screenshot.getFileName() + ".link");
+        try{
+            Files.deleteIfExists(tempFile);
+            Files.createLink(tempFile, object);
+            try{
+                Files.move(tempFile, screenshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }catch(AtomicMoveNotSupportedException ex){
+                Files.move(tempFile, screenshot, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }catch(FileSystemException | UnsupportedOperationException ex){
+            LOGGER.log(Level.FINE, "Hard link is not supported, keep screenshot {0}", screenshot);
+        }finally{
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private String getManifestHash(Path screenshot){
+        for(Path folder = screenshot.getParent(); folder != null; folder = folder.getParent()){
+            if (TestRunId.parse(folder.getFileName() == null ? null : folder.getFileName().toString()) == null) continue;
+            Manifest manifest = manifestMap.computeIfAbsent(folder, this::loadManifest);
+            String relativePath = folder.relativize(screenshot).toString()
+                                    .replace(screenshot.getFileSystem().getSeparator(), "/");
+            return manifest.screenshots.get(relativePath);
+        }
+        return null;
+    }
+
+    private Manifest loadManifest(Path testRun){
+        Path manifestFile = testRun.resolve(MANIFEST_FILENAME);
+        if (!Files.exists(manifestFile))
+            return new Manifest();
+        try{
+            return objectMapper.readValue(manifestFile.toFile(), Manifest.class);
+        }catch(IOException ex){
+            LOGGER.log(Level.WARNING, "Failed to load screenshot manifest {0}", ex.toString());
+            return new Manifest();
+        }
+    }
+
+    private static String calculateHash(Path file) throws IOException{
+        MessageDigest messageDigest;
+        try{
+            messageDigest = MessageDigest.getInstance(HASH_ALGORITHM);
+        }catch(NoSuchAlgorithmException ex){
+            throw new IOException(ex);
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try(InputStream is = Files.newInputStream(file)){
+            int count;
+            while((count = is.read(buffer)) > 0)
+                messageDigest.update(buffer, 0, count);
+        }
+        StringBuilder sb = new StringBuilder();
+        for(byte b : messageDigest.digest())
+            sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+}
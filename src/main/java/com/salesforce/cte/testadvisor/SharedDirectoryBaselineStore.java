@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Baseline store backed by a registry in a shared directory, for example on a NFS mount.
+ * Test runs are looked up in both flat and date sharded layout of the shared registry.
+ */
+public class SharedDirectoryBaselineStore implements BaselineStore {
+
+    private final Path root;
+
+    public SharedDirectoryBaselineStore(Path root){
+        this.root = root;
+    }
+
+    public Path getRoot(){
+        return root;
+    }
+
+    @Override
+    public long getTestHistoryVersion() throws IOException{
+        Path historyFile = getHistoryFile();
+        return Files.exists(historyFile) ? Files.size(historyFile) : -1;
+    }
+
+    @Override
+    public InputStream openTestHistory() throws IOException{
+        Path historyFile = getHistoryFile();
+        return Files.exists(historyFile) ? Files.newInputStream(historyFile) : null;
+    }
+
+    @Override
+    public boolean fetch(String testRunId, String relativePath, Path target) throws IOException{
+        Path testRun = getTestRun(testRunId);
+        if (testRun == null) return false;
+        Path source = testRun.resolve(relativePath).normalize();
+        if (!source.startsWith(testRun) || !Files.isRegularFile(source)) return false;
+        Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    private Path getTestRun(String testRunId){
+        TestRunId id = TestRunId.parse(testRunId);
+        if (id == null) return null;
+        Path testRun = Registry.getShardedTestRunPath(root, id);
+        if (Files.isDirectory(testRun)) return testRun;
+        testRun = root.resolve(id.getId());
+        return Files.isDirectory(testRun) ? testRun : null;
+    }
+
+    private Path getHistoryFile(){
+        return root.resolve(Registry.TESTADVISOR_INDEX_FOLDER).resolve(TestHistoryIndex.HISTORY_FILENAME);
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.salesforce.cte.common.TestAdvisorResult;
+import com.salesforce.cte.common.TestCaseExecution;
+import com.salesforce.cte.common.TestStatus;
+
+/**
+ * TestHistoryIndex keeps the status history of every test case across test runs, so the
+ * last known good (LKG) test run for a test case can be found without loading test results.
+ *
+ * The index is saved as an append only journal in registry index folder. Each indexed test
+ * run appends one line per test case followed by a line with only the test run id, which
+ * marks the test run as completely indexed.
+ * <pre>
+ * TestRun-20220101-100000	PASSED	com.salesforce.test.Login.testLogin
+ * TestRun-20220101-100000	FAILED	com.salesforce.test.Login.testLogout
+ * TestRun-20220101-100000
+ * </pre>
+ * All public methods are thread safe.
+ */
+public class TestHistoryIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    public static final String HISTORY_FILENAME = "test-history.log";
+    private static final String SEPARATOR = "\t";
+
+    /**
+     * Status of a test case in one test run
+     */
+    public static class HistoryEntry implements Comparable<HistoryEntry> {
+        private final String testRunId;
+        private final Instant testRunTime;
+        private final TestStatus status;
+
+        public HistoryEntry(String testRunId, Instant testRunTime, TestStatus status){
+            this.testRunId = testRunId;
+            this.testRunTime = testRunTime;
+            this.status = status;
+        }
+
+        public String getTestRunId(){
+            return testRunId;
+        }
+
+        public Instant getTestRunTime(){
+            return testRunTime;
+        }
+
+        public TestStatus getStatus(){
+            return status;
+        }
+
+        @Override
+        public int compareTo(HistoryEntry other){
+            return testRunTime.compareTo(other.testRunTime);
+        }
+    }
+
+    /**
+     * History of a single test case, entries are sorted by test run time, oldest first
+     */
+    private static class TestHistory {
+        private final List<HistoryEntry> entries = new ArrayList<>();
+        private final List<HistoryEntry> passedEntries = new ArrayList<>();
+
+        private void add(HistoryEntry entry){
+            insert(entries, entry);
+            if (entry.getStatus() == TestStatus.PASSED)
+                insert(passedEntries, entry);
+        }
+
+        private static void insert(List<HistoryEntry> list, HistoryEntry entry){
+            int index = Collections.binarySearch(list, entry);
+            if (index >= 0)
+                list.set(index, entry); //same test run indexed again
+            else
+                list.add(-index - 1, entry);
+        }
+    }
+
+    private final Path historyFile;
+    private Map<String, TestHistory> testHistoryMap = new HashMap<>();
+    private Set<String> indexedTestRuns = new HashSet<>();
+    private long loadedSize = -1;
+
+    public TestHistoryIndex(Path indexFolder){
+        this.historyFile = indexFolder.resolve(HISTORY_FILENAME);
+    }
+
+    /**
+     * Check whether test run has been added to the index
+     * @param testRunId test run id
+     * @return true if test run was indexed, false otherwise
+     * @throws IOException throws this exception when fail to read the index
+     */
+    public synchronized boolean isIndexed(String testRunId) throws IOException{
+        loadIndex();
+        return indexedTestRuns.contains(testRunId);
+    }
+
+    /**
+     * Append test case status of a test run to the index
+     * @param testRunId test run id
+     * @param testRunTime test run created time
+     * @param result test advisor result of the test run
+     * @throws IOException throws this exception when fail to write the index
+     */
+    public synchronized void addTestRun(String testRunId, Instant testRunTime, TestAdvisorResult result) throws IOException{
+        loadIndex();
+        if (indexedTestRuns.contains(testRunId)) return;
+        // a test case is considered passed in a test run if any of its execution passed
+        Map<String, TestStatus> statusMap = new LinkedHashMap<>();
+        for(TestCaseExecution test : result.getTestCaseExecutionList()){
+            if (test.getTestName() == null || test.getTestStatus() == null) continue;
+            if (statusMap.get(test.getTestName()) != TestStatus.PASSED)
+                statusMap.put(test.getTestName(), test.getTestStatus());
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for(Map.Entry<String, TestStatus> entry : statusMap.entrySet()){
+            sb.append(testRunId).append(SEPARATOR).append(entry.getValue().name())
+                .append(SEPARATOR).append(entry.getKey()).append(System.lineSeparator());
+        }
+        sb.append(testRunId).append(System.lineSeparator());
+
+        Files.createDirectories(historyFile.getParent());
+        try(Writer writer = Files.newBufferedWriter(historyFile, StandardCharsets.UTF_8,
+                                StandardOpenOption.CREATE, StandardOpenOption.APPEND)){
+            writer.write(sb.toString());
+        }
+        loadedSize = Files.size(historyFile);
+
+        for(Map.Entry<String, TestStatus> entry : statusMap.entrySet()){
+            testHistoryMap.computeIfAbsent(entry.getKey(), name -> new TestHistory())
+                .add(new HistoryEntry(testRunId, testRunTime, entry.getValue()));
+        }
+        indexedTestRuns.add(testRunId);
+    }
+
+    /**
+     * Find the latest test run before the given time in which the test case passed
+     * @param testCaseName test case full name
+     * @param before test run time, only test runs created before this time are considered
+     * @return history entry of the LKG test run, or null if the test case never passed
+     * @throws IOException throws this exception when fail to read the index
+     */
+    public synchronized HistoryEntry findLastPassed(String testCaseName, Instant before) throws IOException{
+        loadIndex();
+        TestHistory history = testHistoryMap.get(testCaseName);
+        if (history == null) return null;
+
+        int index = Collections.binarySearch(history.passedEntries, new HistoryEntry("", before, TestStatus.PASSED));
+        // index of first entry not before current test run
+        int insertion = index >= 0 ? index : -index - 1;
+        return insertion > 0 ? history.passedEntries.get(insertion - 1) : null;
+    }
+
+    /**
+     * Get test runs which are the latest passed test run of at least one test case
+     * @return set of test run ids
+     * @throws IOException throws this exception when fail to read the index
+     */
+    public synchronized Set<String> getLastPassedTestRunIds() throws IOException{
+        loadIndex();
+        Set<String> testRunIds = new HashSet<>();
+        for(TestHistory history : testHistoryMap.values()){
+            if (!history.passedEntries.isEmpty())
+                testRunIds.add(history.passedEntries.get(history.passedEntries.size() - 1).getTestRunId());
+        }
+        return testRunIds;
+    }
+
+    /**
+     * Merge test history from another history journal, test runs which are already indexed
+     * and incompletely indexed test runs are skipped
+     * @param input stream of another history journal
+     * @return number of test runs merged
+     * @throws IOException throws this exception when fail to read or write the index
+     */
+    public synchronized int merge(InputStream input) throws IOException{
+        loadIndex();
+        StringBuilder sb = new StringBuilder();
+        Map<String, List<String>> pending = new HashMap<>();
+        Set<String> mergedTestRuns = new HashSet<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        String line;
+        while((line = reader.readLine()) != null){
+            if (line.isEmpty()) continue;
+            String[] fields = line.split(SEPARATOR, 3);
+            if (indexedTestRuns.contains(fields[0]) || mergedTestRuns.contains(fields[0])) continue;
+            if (fields.length == 1){
+                List<String> lines = pending.remove(fields[0]);
+                if (lines != null)
+                    lines.forEach(testLine -> sb.append(testLine).append(System.lineSeparator()));
+                sb.append(fields[0]).append(System.lineSeparator());
+                mergedTestRuns.add(fields[0]);
+            }else if (fields.length == 3){
+                pending.computeIfAbsent(fields[0], id -> new ArrayList<>()).add(line);
+            }
+        }
+        if (mergedTestRuns.isEmpty())
+            return 0;
+
+        Files.createDirectories(historyFile.getParent());
+        try(Writer writer = Files.newBufferedWriter(historyFile, StandardCharsets.UTF_8,
+                                StandardOpenOption.CREATE, StandardOpenOption.APPEND)){
+            writer.write(sb.toString());
+        }
+        return mergedTestRuns.size();
+    }
+
+    /**
+     * Get status history of a test case
+     * @param testCaseName test case full name
+     * @return list of history entries, ordered by test run time, oldest first
+     * @throws IOException throws this exception when fail to read the index
+     */
+    public synchronized List<HistoryEntry> getHistory(String testCaseName) throws IOException{
+        loadIndex();
+        TestHistory history = testHistoryMap.get(testCaseName);
+        return history == null ? new ArrayList<>() : new ArrayList<>(history.entries);
+    }
+
+    /**
+     * Load index from journal file if it was changed since last load
+     */
+    private void loadIndex() throws IOException{
+        long size = Files.exists(historyFile) ? Files.size(historyFile) : 0;
+        if (size == loadedSize) return;
+
+        Map<String, TestHistory> newHistoryMap = new HashMap<>();
+        Set<String> newIndexedTestRuns = new HashSet<>();
+        if (size > 0){
+            Map<String, List<String[]>> pending = new HashMap<>();
+            try(BufferedReader reader = Files.newBufferedReader(historyFile, StandardCharsets.UTF_8)){
+                String line;
+                while((line = reader.readLine()) != null){
+                    if (line.isEmpty()) continue;
+                    String[] fields = line.split(SEPARATOR, 3);
+                    if (fields.length == 1){
+                        // test run is completely indexed
+                        List<String[]> testList = pending.remove(fields[0]);
+                        addToHistory(newHistoryMap, fields[0], testList == null ? new ArrayList<>() : testList);
+                        newIndexedTestRuns.add(fields[0]);
+                    }else if (fields.length == 3){
+                        pending.computeIfAbsent(fields[0], id -> new ArrayList<>()).add(fields);
+                    }
+                }
+            }
+        }
+        testHistoryMap = newHistoryMap;
+        indexedTestRuns = newIndexedTestRuns;
+        loadedSize = size;
+    }
+
+    private void addToHistory(Map<String, TestHistory> historyMap, String testRunId, List<String[]> testList){
+        TestRunId id = TestRunId.parse(testRunId);
+        if (id == null) return;
+        Instant testRunTime = id.getCreatedTime();
+        for(String[] fields : testList){
+            TestStatus status;
+            try{
+                status = TestStatus.valueOf(fields[1]);
+            }catch(IllegalArgumentException ex){
+                LOGGER.log(Level.WARNING, "Invalid test status in history index {0}", fields[1]);
+                continue;
+            }
+            historyMap.computeIfAbsent(fields[2], name -> new TestHistory())
+                .add(new HistoryEntry(testRunId, testRunTime, status));
+        }
+    }
+}
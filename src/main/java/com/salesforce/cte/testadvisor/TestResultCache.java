@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.salesforce.cte.adapter.TestAdvisorResultAdapter;
+import com.salesforce.cte.adapter.TestAdvisorTestRun;
+import com.salesforce.cte.common.TestAdvisorResult;
+import com.salesforce.cte.helper.ProcessException;
+
+/**
+ * TestResultCache is a process wide cache of parsed test result files.
+ * Entries are keyed by file path and validated by file size and modified time, so a
+ * test result file which was changed on disk will be parsed again.
+ * The cache is bounded by an estimated memory size and evicts least recently used entries.
+ */
+public class TestResultCache {
+
+    private static final Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    //parsed object graph is estimated to take a few times the size of the json file
+    private static final int PARSED_SIZE_FACTOR = 4;
+
+    private static final TestResultCache INSTANCE = new TestResultCache(Configuration.getResultCacheSize());
+
+    public static TestResultCache getInstance(){
+        return INSTANCE;
+    }
+
+    private enum Kind { TEST_ADVISOR_RESULT, TEST_ADVISOR_TEST_RUN }
+
+    private static class Key {
+        private final Kind kind;
+        private final Path path;
+
+        private Key(Kind kind, Path path){
+            this.kind = kind;
+            this.path = path;
+        }
+
+        @Override
+        public boolean equals(Object obj){
+            if (this == obj) return true;
+            if (!(obj instanceof Key)) return false;
+            Key other = (Key) obj;
+            return kind == other.kind && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode(){
+            return 31 * kind.hashCode() + path.hashCode();
+        }
+    }
+
+    private static class Entry {
+        private final long size;
+        private final long modifiedTime;
+        private final long estimatedBytes;
+        private final Object value;
+
+        private Entry(long size, long modifiedTime, Object value){
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+            this.estimatedBytes = size * PARSED_SIZE_FACTOR;
+            this.value = value;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Parser<T> {
+        T parse(InputStream is) throws IOException, ProcessException;
+    }
+
+    private final long maxBytes;
+    private final Map<Key, Entry> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    TestResultCache(long maxBytes){
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Get test advisor result parsed from a test result file
+     * @param file path to test result file
+     * @return parsed test advisor result, shared with other callers and should not be modified
+     * @throws IOException throws this exception when failed to access or parse the file
+     */
+    public TestAdvisorResult getTestAdvisorResult(Path file) throws IOException{
+        try{
+            return get(Kind.TEST_ADVISOR_RESULT, file, is -> {
+                ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule())
+                                            .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+                return objectMapper.readValue(is, TestAdvisorResult.class);
+            });
+        }catch(ProcessException ex){
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     * Get test advisor test run processed from a test result file
+     * @param file path to test result file
+     * @return test advisor test run, shared with other callers and should not be modified
+     * @throws IOException throws this exception when failed to access the file
+     * @throws ProcessException throws this exception when failed to process the file
+     */
+    public TestAdvisorTestRun getTestAdvisorTestRun(Path file) throws IOException, ProcessException{
+        return get(Kind.TEST_ADVISOR_TEST_RUN, file, is -> new TestAdvisorResultAdapter().process(is));
+    }
+
+    /**
+     * Remove all entries from cache
+     */
+    public synchronized void clear(){
+        cache.clear();
+        totalBytes = 0;
+    }
+
+    public synchronized long getHitCount(){
+        return hitCount;
+    }
+
+    public synchronized long getMissCount(){
+        return missCount;
+    }
+
+    private <T> T get(Kind kind, Path file, Parser<T> parser) throws IOException, ProcessException{
+        Key key = new Key(kind, file.toAbsolutePath().normalize());
+        long size = Files.size(key.path);
+        long modifiedTime = Files.getLastModifiedTime(key.path).toMillis();
+
+        synchronized(this){
+            Entry entry = cache.get(key);
+            if (entry != null && entry.size == size && entry.modifiedTime == modifiedTime){
+                hitCount++;
+                @SuppressWarnings("unchecked")
+                T value = (T) entry.value;
+                return value;
+            }
+            missCount++;
+        }
+
+        T value;
+        try(InputStream is = Files.newInputStream(key.path)){
+            value = parser.parse(is);
+        }
+        put(key, new Entry(size, modifiedTime, value));
+        return value;
+    }
+
+    private synchronized void put(Key key, Entry entry){
+        Entry old = cache.remove(key);
+        if (old != null)
+            totalBytes -= old.estimatedBytes;
+        if (entry.estimatedBytes > maxBytes){
+            LOGGER.log(Level.INFO, "Test result file {0} is too large to cache", key.path);
+            return;
+        }
+
+        cache.put(key, entry);
+        totalBytes += entry.estimatedBytes;
+
+        //evict least recently used entries
+        Iterator<Entry> it = cache.values().iterator();
+        while(totalBytes > maxBytes && it.hasNext()){
+            totalBytes -= it.next().estimatedBytes;
+            it.remove();
+        }
+    }
+}
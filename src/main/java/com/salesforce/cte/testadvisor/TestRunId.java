@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Test run id, format TestRun-yyyyMMdd-HHmmss
+ * The created time is parsed once when the id is created, test run ids are ordered by
+ * created time.
+ */
+public final class TestRunId implements Comparable<TestRunId> {
+
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern(Registry.TESTADVISOR_TESTRUN_PATTERN_STRING);
+    private static final Pattern PATTERN = Pattern.compile(Registry.TESTADVISOR_TESTRUN_PREFIX + "\\d{8}-\\d{6}");
+
+    private final String id;
+    private final Instant createdTime;
+
+    private TestRunId(String id, Instant createdTime){
+        this.id = id;
+        this.createdTime = createdTime;
+    }
+
+    /**
+     * Create test run id from a known id and created time, no validation is done
+     * @param id test run id
+     * @param createdTime test run created time
+     * @return test run id
+     */
+    public static TestRunId of(String id, Instant createdTime){
+        return new TestRunId(id, createdTime);
+    }
+
+    /**
+     * Parse test run id
+     * @param id test run id string
+     * @return test run id, or null if the string is not a valid test run id
+     */
+    public static TestRunId parse(String id){
+        if (id == null || !PATTERN.matcher(id).matches()) return null;
+        try{
+            return new TestRunId(id, LocalDateTime.parse(id.substring(Registry.TESTADVISOR_TESTRUN_PREFIX.length()), FORMATTER)
+                                        .toInstant(ZoneOffset.UTC));
+        }catch(DateTimeParseException ex){
+            return null;
+        }
+    }
+
+    /**
+     * Find test run id in a path string
+     * @param path path string, for example path to test run folder or a file in it
+     * @return test run id, or null if path doesn't contain a valid test run id
+     */
+    public static TestRunId find(String path){
+        if (path == null) return null;
+        Matcher matcher = PATTERN.matcher(path);
+        return matcher.find() ? parse(matcher.group(0)) : null;
+    }
+
+    /**
+     * Find test run id in a path
+     * @param path path to test run folder or a file in it
+     * @return test run id, or null if path doesn't contain a valid test run id
+     */
+    public static TestRunId fromPath(Path path){
+        if (path == null) return null;
+        TestRunId testRunId = path.getFileName() == null ? null : parse(path.getFileName().toString());
+        return testRunId != null ? testRunId : find(path.toAbsolutePath().toString());
+    }
+
+    /**
+     * Create test run id based on current UTC time
+     * @return test run id
+     */
+    public static TestRunId now(){
+        return parse(Registry.TESTADVISOR_TESTRUN_PREFIX + FORMATTER.format(OffsetDateTime.now(ZoneOffset.UTC)));
+    }
+
+    public String getId(){
+        return id;
+    }
+
+    public Instant getCreatedTime(){
+        return createdTime;
+    }
+
+    @Override
+    public int compareTo(TestRunId other){
+        int ret = createdTime.compareTo(other.createdTime);
+        return ret != 0 ? ret : id.compareTo(other.id);
+    }
+
+    @Override
+    public boolean equals(Object obj){
+        if (this == obj) return true;
+        if (!(obj instanceof TestRunId)) return false;
+        return id.equals(((TestRunId) obj).id);
+    }
+
+    @Override
+    public int hashCode(){
+        return id.hashCode();
+    }
+
+    @Override
+    public String toString(){
+        return id;
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.romankh3.image.comparison.model.Rectangle;
+
+/**
+ * VolatilityMaskIndex learns which regions of a test step screenshot change from run to run.
+ *
+ * Every screenshot is divided into tiles of TILE_SIZE pixels. For each test step the index
+ * counts how often every tile was compared and how often it was part of a diff area. A tile
+ * which changed in at least half of MIN_OBSERVATIONS or more comparisons is volatile and is
+ * excluded from later comparisons. Volatile tiles are still observed by identical comparisons
+ * and by every SAMPLE_INTERVAL-th comparison, which compares the whole screenshot, and
+ * counters are halved once a tile was observed more than MAX_OBSERVATIONS times, so a tile
+ * which stopped changing is compared again.
+ * Masks are saved as one json file per test case in registry index folder masks/, changes
+ * are kept in memory until flush is called and are merged into the saved masks under a file
+ * lock, so processes sharing the registry don't lose each other's counts.
+ * All public methods are thread safe.
+ */
+public class VolatilityMaskIndex {
+
+    public static final String MASK_FOLDER = "masks";
+    public static final int TILE_SIZE = 32;
+    public static final int MIN_OBSERVATIONS = 5;
+    public static final int MAX_OBSERVATIONS = 20;
+    public static final int SAMPLE_INTERVAL = 10;
+    private static final String MASK_EXTENSION = ".json";
+    private static final String LOCK_FILENAME = "masks.lock";
+
+    /**
+     * Tile change counters of a single test step
+     */
+    public static class StepMask {
+        @JsonProperty
+        public int width;
+        @JsonProperty
+        public int height;
+        @JsonProperty
+        public int[] changes;      //number of comparisons in which the tile was in a diff area
+        @JsonProperty
+        public int[] observations; //number of comparisons in which the tile was not excluded
+        @JsonProperty
+        public int comparisons;    //number of comparisons of the test step
+
+        private static StepMask create(int width, int height){
+            StepMask mask = new StepMask();
+            mask.width = width;
+            mask.height = height;
+            int tiles = mask.getColumns() * ((height + TILE_SIZE - 1) / TILE_SIZE);
+            mask.changes = new int[tiles];
+            mask.observations = new int[tiles];
+            return mask;
+        }
+
+        private int getColumns(){
+            return (width + TILE_SIZE - 1) / TILE_SIZE;
+        }
+
+        private boolean isVolatile(int tile){
+            return observations[tile] >= MIN_OBSERVATIONS && changes[tile] * 2 >= observations[tile];
+        }
+
+        private boolean isSampleComparison(){
+            return (comparisons + 1) % SAMPLE_INTERVAL == 0;
+        }
+
+        private boolean isSameSize(StepMask other){
+            return other != null && width == other.width && height == other.height
+                && other.changes != null && other.changes.length == changes.length;
+        }
+
+        /**
+         * Halve counters of tiles observed too often, so recent comparisons weigh more
+         */
+        private void age(){
+            for(int tile = 0; tile < observations.length; tile++){
+                if (observations[tile] > MAX_OBSERVATIONS){
+                    observations[tile] /= 2;
+                    changes[tile] /= 2;
+                }
+            }
+        }
+    }
+
+    /**
+     * Persisted masks of all test steps of a test case
+     */
+    public static class MaskFile {
+        @JsonProperty
+        public String testCaseName;
+        @JsonProperty
+        public Map<String, StepMask> steps = new TreeMap<>(); //step signature to mask
+    }
+
+    private final Path maskFolder;
+    private final ObjectMapper objectMapper = new ObjectMapper()
+                                        .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private final Map<String, MaskFile> maskFiles = new HashMap<>();
+    private final Map<String, MaskFile> pendingChanges = new HashMap<>(); //counts added since last flush
+
+    public VolatilityMaskIndex(Path indexFolder){
+        this.maskFolder = indexFolder.resolve(MASK_FOLDER);
+    }
+
+    /**
+     * Get volatile areas of a test step
+     * @param testCaseName test case full name
+     * @param stepSignature signature of test step
+     * @return list of areas to exclude from comparison, or null if no tile is volatile
+     * @throws IOException throws this exception when fail to read mask file
+     */
+    public synchronized List<Rectangle> getExcludedAreas(String testCaseName, String stepSignature) throws IOException{
+        StepMask mask = getMaskFile(testCaseName).steps.get(stepSignature);
+        if (mask == null) return null;
+
+        List<Rectangle> areas = new ArrayList<>();
+        int columns = mask.getColumns();
+        int rows = mask.changes.length / columns;
+        for(int row = 0; row < rows; row++){
+            //merge adjacent volatile tiles of a row into one area
+            int start = -1;
+            for(int column = 0; column <= columns; column++){
+                boolean isVolatile = column < columns && mask.isVolatile(row * columns + column);
+                if (isVolatile && start < 0){
+                    start = column;
+                }else if (!isVolatile && start >= 0){
+                    areas.add(new Rectangle(start * TILE_SIZE, row * TILE_SIZE,
+                        Math.min(mask.width, column * TILE_SIZE) - 1, Math.min(mask.height, (row + 1) * TILE_SIZE) - 1));
+                    start = -1;
+                }
+            }
+        }
+        return areas.isEmpty() ? null : areas;
+    }
+
+    /**
+     * Check whether next comparison of a test step should compare volatile areas as well, so
+     * the mask can learn whether they are still volatile
+     * Diffs found in volatile areas by such comparison are expected to be ignored by caller.
+     * @param testCaseName test case full name
+     * @param stepSignature signature of test step
+     * @return true if volatile areas should not be excluded from next comparison
+     * @throws IOException throws this exception when fail to read mask file
+     */
+    public synchronized boolean isSampleComparison(String testCaseName, String stepSignature) throws IOException{
+        StepMask mask = getMaskFile(testCaseName).steps.get(stepSignature);
+        return mask != null && mask.isSampleComparison();
+    }
+
+    /**
+     * Add result of a screenshot comparison to the mask of a test step
+     * @param testCaseName test case full name
+     * @param stepSignature signature of test step
+     * @param width screenshot width
+     * @param height screenshot height
+     * @param diffAreas diff areas found by the comparison, empty if screenshots are identical
+     * @throws IOException throws this exception when fail to read mask file
+     */
+    public synchronized void addComparison(String testCaseName, String stepSignature, int width, int height,
+                                            List<Rectangle> diffAreas) throws IOException{
+        addComparison(testCaseName, stepSignature, width, height, diffAreas, false);
+    }
+
+    private void addComparison(String testCaseName, String stepSignature, int width, int height,
+                                List<Rectangle> diffAreas, boolean isIdentical) throws IOException{
+        if (width <= 0 || height <= 0) return;
+        MaskFile maskFile = getMaskFile(testCaseName);
+        StepMask mask = maskFile.steps.get(stepSignature);
+        if (mask == null || mask.width != width || mask.height != height){
+            //new test step or screenshot size changed, start learning again
+            mask = StepMask.create(width, height);
+            maskFile.steps.put(stepSignature, mask);
+        }
+        MaskFile pendingFile = pendingChanges.computeIfAbsent(testCaseName, name -> {
+            MaskFile file = new MaskFile();
+            file.testCaseName = name;
+            return file;
+        });
+        StepMask pending = pendingFile.steps.get(stepSignature);
+        if (!mask.isSameSize(pending)){
+            pending = StepMask.create(width, height);
+            pendingFile.steps.put(stepSignature, pending);
+        }
+
+        int columns = mask.getColumns();
+        boolean[] changed = new boolean[mask.changes.length];
+        for(Rectangle area : diffAreas){
+            int minColumn = Math.max(0, (int) area.getMinPoint().getX() / TILE_SIZE);
+            int maxColumn = Math.min(columns - 1, (int) area.getMaxPoint().getX() / TILE_SIZE);
+            int minRow = Math.max(0, (int) area.getMinPoint().getY() / TILE_SIZE);
+            int maxRow = Math.min(changed.length / columns - 1, (int) area.getMaxPoint().getY() / TILE_SIZE);
+            for(int row = minRow; row <= maxRow; row++){
+                for(int column = minColumn; column <= maxColumn; column++){
+                    changed[row * columns + column] = true;
+                }
+            }
+        }
+        //volatile tiles were only compared if screenshots are identical or it's a sample comparison
+        boolean observeAll = isIdentical || mask.isSampleComparison();
+        for(int tile = 0; tile < changed.length; tile++){
+            if (!observeAll && mask.isVolatile(tile)) continue; //excluded from comparison
+            mask.observations[tile]++;
+            pending.observations[tile]++;
+            if (changed[tile]){
+                mask.changes[tile]++;
+                pending.changes[tile]++;
+            }
+        }
+        mask.comparisons++;
+        pending.comparisons++;
+        mask.age();
+    }
+
+    /**
+     * Add an identical screenshot comparison to the mask of a test step, nothing is added if
+     * the test step has no mask yet since screenshot size is unknown
+     * @param testCaseName test case full name
+     * @param stepSignature signature of test step
+     * @throws IOException throws this exception when fail to read mask file
+     */
+    public synchronized void addIdenticalComparison(String testCaseName, String stepSignature) throws IOException{
+        StepMask mask = getMaskFile(testCaseName).steps.get(stepSignature);
+        if (mask != null)
+            addComparison(testCaseName, stepSignature, mask.width, mask.height, new ArrayList<>(), true);
+    }
+
+    /**
+     * Save all changed masks
+     * Counts added since last flush are added to the masks saved by other processes, masks
+     * in memory are replaced by the merged masks.
+     * @throws IOException throws this exception when fail to write mask files
+     */
+    public synchronized void flush() throws IOException{
+        if (pendingChanges.isEmpty()) return;
+        Files.createDirectories(maskFolder);
+        // file lock is held per process, serialize index instances of this process first
+        synchronized(VolatilityMaskIndex.class){
+            try(FileChannel channel = FileChannel.open(maskFolder.resolve(LOCK_FILENAME),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileLock lock = channel.lock()){
+                for(MaskFile pendingFile : pendingChanges.values()){
+                    MaskFile merged = merge(readMaskFile(pendingFile.testCaseName), pendingFile);
+                    writeMaskFile(merged);
+                    maskFiles.put(merged.testCaseName, merged);
+                }
+            }
+        }
+        pendingChanges.clear();
+    }
+
+    /**
+     * Add pending counts to saved mask file, a step mask of different size replaces the saved one
+     */
+    private static MaskFile merge(MaskFile saved, MaskFile pendingFile){
+        for(Map.Entry<String, StepMask> entry : pendingFile.steps.entrySet()){
+            StepMask pending = entry.getValue();
+            StepMask mask = saved.steps.get(entry.getKey());
+            if (!pending.isSameSize(mask)){
+                saved.steps.put(entry.getKey(), pending);
+                pending.age();
+                continue;
+            }
+            for(int tile = 0; tile < mask.observations.length; tile++){
+                mask.observations[tile] += pending.observations[tile];
+                mask.changes[tile] += pending.changes[tile];
+            }
+            mask.comparisons += pending.comparisons;
+            mask.age();
+        }
+        return saved;
+    }
+
+    private MaskFile getMaskFile(String testCaseName) throws IOException{
+        MaskFile maskFile = maskFiles.get(testCaseName);
+        if (maskFile != null) return maskFile;
+
+        maskFile = readMaskFile(testCaseName);
+        maskFiles.put(testCaseName, maskFile);
+        return maskFile;
+    }
+
+    private MaskFile readMaskFile(String testCaseName) throws IOException{
+        MaskFile maskFile = null;
+        Path maskPath = getMaskPath(testCaseName);
+        if (Files.exists(maskPath))
+            maskFile = objectMapper.readValue(maskPath.toFile(), MaskFile.class);
+        if (maskFile == null || !testCaseName.equals(maskFile.testCaseName)){
+            maskFile = new MaskFile();
+            maskFile.testCaseName = testCaseName;
+        }
+        return maskFile;
+    }
+
+    private void writeMaskFile(MaskFile maskFile) throws IOException{
+        Path maskPath = getMaskPath(maskFile.testCaseName);
+        Path tempFile = Files.createTempFile(maskFolder, maskPath.getFileName().toString(), ".tmp");
+        try{
+            objectMapper.writeValue(tempFile.toFile(), maskFile);
+            try{
+                Files.move(tempFile, maskPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }catch(AtomicMoveNotSupportedException ex){
+                Files.move(tempFile, maskPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }finally{
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Get mask file of a test case, file name is hash of test case name since test case
+     * names may contain characters not allowed in file names
+     */
+    private Path getMaskPath(String testCaseName){
+        try{
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(testCaseName.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for(int i = 0; i < 16; i++){
+                sb.append(String.format("%02x", digest[i]));
+            }
+            return maskFolder.resolve(sb.toString() + MASK_EXTENSION);
+        }catch(NoSuchAlgorithmException ex){
+            throw new IllegalStateException(ex);
+        }
+    }
+}
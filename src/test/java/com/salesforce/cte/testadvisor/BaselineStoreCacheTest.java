@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.salesforce.cte.common.TestStatus;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BaselineStoreCacheTest {
+
+    private Path root;
+
+    @Before
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("testadvisor");
+    }
+
+    @Test
+    public void testRemoteBaseline() throws IOException{
+        Registry shared = new Registry(root.resolve("shared"));
+        RegistryHelper.createTestRun(shared, "TestRun-20220101-100000", TestStatus.PASSED);
+        RegistryHelper.createTestRun(shared, "TestRun-20220102-100000", TestStatus.PASSED);
+        RegistryHelper.createTestRun(shared, "TestRun-20220103-100000", TestStatus.FAILED);
+        shared.migrateToShardedLayout();
+        // build test history of shared registry
+        shared.getBaselineTestRuns();
+
+        Registry local = new Registry(root.resolve("local"));
+        local.setBaselineStore(new SharedDirectoryBaselineStore(shared.getRegistryRoot()));
+        Path current = local.getRegistryRoot().resolve("TestRun-20220104-100000");
+
+        Path baseline = local.getBaselineTestRun(current, "testcasePass");
+        assertEquals(local.getRegistryRoot().resolve(Registry.TESTADVISOR_BASELINE_CACHE_FOLDER)
+                        .resolve("TestRun-20220102-100000"), baseline);
+        assertTrue(Files.exists(baseline.resolve(Registry.TESTADVISOR_TEST_RESULT)));
+        assertEquals(baseline, local.getTestRunPath("TestRun-20220102-100000"));
+        // screenshots are not fetched until they are resolved
+        assertFalse(Files.exists(baseline.resolve("screenshots").resolve("1.png")));
+
+        String recorded = shared.getRegistryRoot().resolve("moved").resolve("TestRun-20220102-100000")
+                                .resolve("screenshots").resolve("1.png").toString();
+        Path screenshot = local.resolveScreenshotPath(recorded);
+        assertEquals(baseline.resolve("screenshots").resolve("1.png"), screenshot);
+        assertArrayEquals(new byte[]{1,2,3}, Files.readAllBytes(screenshot));
+
+        // test history is only checked for test case never passed
+        assertNull(local.getBaselineTestRun(current, "testcaseFail"));
+    }
+
+    @Test
+    public void testFetchMissingFile() throws IOException{
+        Registry shared = new Registry(root.resolve("shared"));
+        RegistryHelper.createTestRun(shared, "TestRun-20220101-100000", TestStatus.PASSED);
+
+        BaselineStoreCache cache = new BaselineStoreCache(
+            new SharedDirectoryBaselineStore(shared.getRegistryRoot()), root.resolve("cache"));
+        assertNull(cache.getTestRun("TestRun-20220102-100000"));
+        assertNull(cache.getCachedTestRun("TestRun-20220101-100000"));
+
+        Path testRun = cache.getTestRun("TestRun-20220101-100000");
+        assertEquals(testRun, cache.getCachedTestRun("TestRun-20220101-100000"));
+        assertNull(cache.getFile(testRun, "screenshots/2.png"));
+        assertNull(cache.getFile(testRun, "../TestRun-20220102-100000/test-result.json"));
+        assertArrayEquals(new byte[]{1,2,3}, Files.readAllBytes(cache.getFile(testRun, "screenshots/1.png")));
+    }
+
+    @After
+    public void teardown() throws IOException{
+        removeDirectory(root.toFile());
+    }
+
+    private void removeDirectory(File dir) {
+        if (dir.isDirectory()) {
+            File[] files = dir.listFiles();
+            if (files != null && files.length > 0) {
+                for (File aFile : files) {
+                    removeDirectory(aFile);
+                }
+            }
+            dir.delete();
+        } else {
+            dir.delete();
+        }
+    }
+}
@@ -197,4 +197,75 @@ public class ConfigurationTest {
         System.clearProperty("testadvisor.screenshotmindiffratio");
     }
 
+    @Test
+    public void testGetResultCacheSize(){
+        System.clearProperty("testadvisor.resultcachesize");
+        assertTrue(Configuration.getResultCacheSize() > 0);
+
+        System.setProperty("testadvisor.resultcachesize","64");
+        assertEquals(64L * 1024 * 1024,Configuration.getResultCacheSize());
+
+        System.setProperty("testadvisor.resultcachesize","invalid");
+        assertTrue(Configuration.getResultCacheSize() > 0);
+
+        System.clearProperty("testadvisor.resultcachesize");
+    }
+
+    @Test
+    public void testGetProcessMemory(){
+        System.clearProperty("testadvisor.processmemory");
+        System.clearProperty("testadvisor.imagecachesize");
+        System.clearProperty("testadvisor.resultcachesize");
+        //default budget leaves room for caches
+        assertTrue(Configuration.getProcessMemory() + Configuration.getImageCacheSize()
+                    + Configuration.getResultCacheSize() <= Runtime.getRuntime().maxMemory());
+
+        System.setProperty("testadvisor.processmemory","64");
+        assertEquals(64L * 1024 * 1024,Configuration.getProcessMemory());
+
+        System.clearProperty("testadvisor.processmemory");
+    }
+
+    @Test
+    public void testGetIsScreenshotStoreEnabled(){
+        System.clearProperty("testadvisor.screenshotstore");
+        assertTrue(!Configuration.getIsScreenshotStoreEnabled());
+
+        System.setProperty("testadvisor.screenshotstore","true");
+        assertTrue(Configuration.getIsScreenshotStoreEnabled());
+
+        System.setProperty("testadvisor.screenshotstore","ok");
+        assertTrue(!Configuration.getIsScreenshotStoreEnabled());
+
+        System.clearProperty("testadvisor.screenshotstore");
+    }
+
+    @Test
+    public void testGetRetentionMaxRuns(){
+        System.clearProperty("testadvisor.retentionmaxruns");
+        assertEquals(0,Configuration.getRetentionMaxRuns());
+
+        System.setProperty("testadvisor.retentionmaxruns","10");
+        assertEquals(10,Configuration.getRetentionMaxRuns());
+
+        System.setProperty("testadvisor.retentionmaxruns","invalid");
+        assertEquals(0,Configuration.getRetentionMaxRuns());
+
+        System.clearProperty("testadvisor.retentionmaxruns");
+    }
+
+    @Test
+    public void testGetRetentionMaxDays(){
+        System.clearProperty("testadvisor.retentionmaxdays");
+        assertEquals(0,Configuration.getRetentionMaxDays());
+
+        System.setProperty("testadvisor.retentionmaxdays","30");
+        assertEquals(30,Configuration.getRetentionMaxDays());
+
+        System.setProperty("testadvisor.retentionmaxdays","invalid");
+        assertEquals(0,Configuration.getRetentionMaxDays());
+
+        System.clearProperty("testadvisor.retentionmaxdays");
+    }
+
 }
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DecodedImageCacheTest {
+
+    private Path root;
+
+    @Before
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("testadvisor");
+    }
+
+    @Test
+    public void testImageDecodedOnce() throws IOException, URISyntaxException{
+        File file = copyImage("image/login.png", "1.png");
+        DecodedImageCache cache = new DecodedImageCache(Long.MAX_VALUE);
+        BufferedImage image = cache.getImage(file);
+        assertSame(image, cache.getImage(file));
+        assertEquals((long) image.getWidth() * image.getHeight() * 4, cache.getUsedBytes());
+
+        // changed file is decoded again
+        Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(file.lastModified() + 10000));
+        assertNotSame(image, cache.getImage(file));
+        assertEquals((long) image.getWidth() * image.getHeight() * 4, cache.getUsedBytes());
+    }
+
+    @Test
+    public void testBudget() throws IOException, URISyntaxException{
+        File file1 = copyImage("image/login.png", "1.png");
+        File file2 = copyImage("image/login2.png", "2.png");
+        DecodedImageCache cache = new DecodedImageCache(1);
+        BufferedImage image1 = cache.getImage(file1);
+        cache.getImage(file2);
+        // least recently used image is moved out of budget
+        assertEquals(0, cache.getUsedBytes());
+
+        DecodedImageCache disabled = new DecodedImageCache(0);
+        assertNotSame(disabled.getImage(file1), disabled.getImage(file1));
+        assertEquals(image1.getWidth(), disabled.getImage(file1).getWidth());
+    }
+
+    @Test
+    public void testIsCachedKeepsBudget() throws IOException, URISyntaxException{
+        File small = root.resolve("small.png").toFile();
+        ImageIO.write(new BufferedImage(10, 10, BufferedImage.TYPE_INT_ARGB), "png", small);
+        File large = copyImage("image/login.png", "1.png");
+        DecodedImageCache cache = new DecodedImageCache(ScreenshotManager.getDecodedSize(large.toPath()));
+        BufferedImage smallImage = cache.getImage(small);
+        BufferedImage largeImage = cache.getImage(large);
+        long largeBytes = (long) largeImage.getWidth() * largeImage.getHeight() * 4;
+        // small image is moved out of budget and checking it doesn't move it back
+        assertEquals(largeBytes, cache.getUsedBytes());
+        assertTrue(cache.isCached(small));
+        assertEquals(largeBytes, cache.getUsedBytes());
+        assertTrue(cache.isCached(large));
+        // getting an image moves it back into budget
+        assertSame(smallImage, cache.getImage(small));
+        assertEquals(100 * 4, cache.getUsedBytes());
+    }
+
+    private File copyImage(String resource, String name) throws IOException, URISyntaxException{
+        Path source = new File(getClass().getClassLoader().getResource(resource).toURI()).toPath();
+        return Files.copy(source, root.resolve(name), StandardCopyOption.REPLACE_EXISTING).toFile();
+    }
+
+    @After
+    public void teardown() throws IOException{
+        removeDirectory(root.toFile());
+    }
+
+    private void removeDirectory(File dir) {
+        if (dir.isDirectory()) {
+            File[] files = dir.listFiles();
+            if (files != null && files.length > 0) {
+                for (File aFile : files) {
+                    removeDirectory(aFile);
+                }
+            }
+            dir.delete();
+        } else {
+            dir.delete();
+        }
+    }
+}
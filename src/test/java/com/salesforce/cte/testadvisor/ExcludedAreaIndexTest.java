@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.github.romankh3.image.comparison.model.Rectangle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExcludedAreaIndexTest {
+
+    private Path root;
+
+    @Before
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("testadvisor");
+    }
+
+    @Test
+    public void testPutGet() throws IOException{
+        ExcludedAreaIndex index = new ExcludedAreaIndex(root);
+        assertNull(index.get("testcase", "step1", "hash1", "hash2"));
+
+        List<Rectangle> areas = Arrays.asList(new Rectangle(0, 0, 100, 20), new Rectangle(10, 200, 50, 220));
+        index.put("testcase", "step1", "hash1", "hash2", areas);
+        index.put("testcase", "step2", "hash1", "hash3", new ArrayList<>());
+        assertEquals(2, index.get("testcase", "step1", "hash1", "hash2").size());
+        assertNull(index.get("testcase", "step1", "hash2", "hash1"));
+
+        //excluded areas are loaded from index file
+        ExcludedAreaIndex reloaded = new ExcludedAreaIndex(root);
+        List<Rectangle> loaded = reloaded.get("testcase", "step1", "hash1", "hash2");
+        assertEquals(2, loaded.size());
+        assertEquals(10, (int) loaded.get(1).getMinPoint().getX());
+        assertEquals(220, (int) loaded.get(1).getMaxPoint().getY());
+        assertTrue(reloaded.get("testcase", "step2", "hash1", "hash3").isEmpty());
+    }
+
+    @Test
+    public void testCompact() throws IOException{
+        ExcludedAreaIndex index = new ExcludedAreaIndex(root, 2);
+        List<Rectangle> areas = Arrays.asList(new Rectangle(0, 0, 100, 20));
+        for(int i = 0; i < 4; i++){
+            index.put("testcase", "step1", "hash1", "hash" + i, areas);
+        }
+        assertEquals(4, Files.readAllLines(root.resolve(ExcludedAreaIndex.EXCLUDED_AREA_FILENAME)).size());
+        // journal is rewritten with latest entries once it grows beyond twice max entries
+        index.put("testcase", "step1", "hash1", "hash4", areas);
+        assertEquals(2, Files.readAllLines(root.resolve(ExcludedAreaIndex.EXCLUDED_AREA_FILENAME)).size());
+        assertNull(index.get("testcase", "step1", "hash1", "hash2"));
+        assertEquals(1, index.get("testcase", "step1", "hash1", "hash4").size());
+
+        ExcludedAreaIndex reloaded = new ExcludedAreaIndex(root, 2);
+        assertNull(reloaded.get("testcase", "step1", "hash1", "hash2"));
+        assertEquals(1, reloaded.get("testcase", "step1", "hash1", "hash3").size());
+        assertEquals(0, reloaded.compact());
+    }
+
+    @Test
+    public void testAppendByOthers() throws IOException{
+        ExcludedAreaIndex index1 = new ExcludedAreaIndex(root);
+        ExcludedAreaIndex index2 = new ExcludedAreaIndex(root);
+        List<Rectangle> areas = Arrays.asList(new Rectangle(0, 0, 100, 20));
+        index1.put("testcase", "step1", "hash1", "hash2", areas);
+        assertEquals(1, index2.get("testcase", "step1", "hash1", "hash2").size());
+
+        // lines appended by another index are read even if this index appended after them
+        index1.put("testcase", "step2", "hash1", "hash2", areas);
+        index2.put("testcase", "step3", "hash1", "hash2", areas);
+        assertEquals(1, index2.get("testcase", "step2", "hash1", "hash2").size());
+        assertEquals(1, index1.get("testcase", "step3", "hash1", "hash2").size());
+
+        // journal rewritten by another index is loaded again
+        index1.compact();
+        index1.put("testcase", "step4", "hash1", "hash2", areas);
+        assertEquals(1, index2.get("testcase", "step4", "hash1", "hash2").size());
+        assertEquals(1, index2.get("testcase", "step1", "hash1", "hash2").size());
+    }
+
+    @After
+    public void teardown() throws IOException{
+        removeDirectory(root.toFile());
+    }
+
+    private void removeDirectory(File dir) {
+        if (dir.isDirectory()) {
+            File[] files = dir.listFiles();
+            if (files != null && files.length > 0) {
+                for (File aFile : files) {
+                    removeDirectory(aFile);
+                }
+            }
+            dir.delete();
+        } else {
+            dir.delete();
+        }
+    }
+}
@@ -8,6 +8,8 @@
 package com.salesforce.cte.testadvisor;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -102,6 +104,33 @@ public class ProcessorTest{
         assertEquals("1.0.1", testRunSignal.clientCliVersion);
     }
 
+    @Test
+    public void testProcessInParallel() throws IOException, ProcessException{
+        TestRunSignal sequential = new TestRunSignal();
+        sequential.testSuiteName = "testSuite1";
+        sequential.clientBuildId = "123";
+        try(InputStream is = getClass().getClassLoader().getResourceAsStream("json/test-result.json")){
+            processor.process(is, sequential, new TestAdvisorResultAdapter());
+        }
+
+        TestRunSignal parallel = new TestRunSignal();
+        parallel.testSuiteName = "testSuite1";
+        parallel.clientBuildId = "123";
+        System.setProperty("testadvisor.processthreads","4");
+        try(InputStream is = getClass().getClassLoader().getResourceAsStream("json/test-result.json")){
+            processor.process(is, parallel, new TestAdvisorResultAdapter());
+        }finally{
+            System.clearProperty("testadvisor.processthreads");
+        }
+
+        assertEquals(sequential.testExecutions.size(), parallel.testExecutions.size());
+        for(int i = 0; i < sequential.testExecutions.size(); i++){
+            assertEquals(sequential.testExecutions.get(i).testCaseName, parallel.testExecutions.get(i).testCaseName);
+            assertEquals(sequential.testExecutions.get(i).startTime, parallel.testExecutions.get(i).startTime);
+            assertEquals(sequential.testExecutions.get(i).testSignals.size(), parallel.testExecutions.get(i).testSignals.size());
+        }
+    }
+
     @Test
     public void testProcessTestAdvisorResult() throws IOException, ProcessException{
         
@@ -191,6 +220,34 @@ public class ProcessorTest{
         assertEquals(0, processor.compareTestCaseExecution(baseline, current, signalList));
     }
 
+    @Test
+    public void testScreenshotVerdict() throws IOException{
+        System.setProperty("testadvisor.exportscreenshotdiffimage","false");
+        assertTrue(Processor.isVerdictComparison());
+        System.setProperty("testadvisor.exportscreenshotdiffarea","true");
+        assertFalse(Processor.isVerdictComparison());
+        System.setProperty("testadvisor.exportscreenshotdiffarea","false");
+        System.setProperty("testadvisor.learnedmask","true");
+        assertFalse(Processor.isVerdictComparison());
+        System.setProperty("testadvisor.learnedmask","false");
+
+        // verdict comparison of raster engine compares row bands in parallel
+        System.setProperty("testadvisor.comparisonengine","raster");
+        System.setProperty("testadvisor.comparisonthreads","4");
+        System.setProperty("testadvisor.screenshotmindiffareasize","0");
+        try(Processor verdictProcessor = new Processor(registry)){
+            TestAdvisorTestCase baseline = createTeseCase(100, 100, "selcmd");
+            TestAdvisorTestCase current = createTeseCase(50, 200, "selcmd");
+            List<TestSignal> signalList = new ArrayList<>();
+            assertEquals(100, verdictProcessor.compareTestCaseExecution(baseline, current, signalList));
+            assertEquals(6, signalList.size());
+        }finally{
+            System.clearProperty("testadvisor.comparisonengine");
+            System.clearProperty("testadvisor.comparisonthreads");
+            System.clearProperty("testadvisor.screenshotmindiffareasize");
+        }
+    }
+
     @Test
     public void testSeleniumUrl() throws IOException{
         TestAdvisorTestCase current = createTeseCase(50, 200, "selcmd2");
@@ -331,6 +388,7 @@ public class ProcessorTest{
 
     @After
     public void teardown() throws IOException{
+        processor.close();
         removeDirectory(root.toFile());
     }
 
@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.github.romankh3.image.comparison.ImageComparison;
+import com.github.romankh3.image.comparison.ImageComparisonUtil;
+import com.github.romankh3.image.comparison.model.ImageComparisonResult;
+import com.github.romankh3.image.comparison.model.ImageComparisonState;
+import com.github.romankh3.image.comparison.model.Rectangle;
+
+import org.junit.Test;
+
+public class RasterComparisonTest {
+
+    private RasterComparison rasterComparison = new RasterComparison(20);
+
+    @Test
+    public void testMatch(){
+        BufferedImage expected = createImage(BufferedImage.TYPE_3BYTE_BGR);
+        BufferedImage actual = createImage(BufferedImage.TYPE_INT_RGB);
+        // single pixel diff is smaller than minimal rectangle size
+        actual.setRGB(50, 50, Color.BLACK.getRGB());
+        // small color diff is within pixel tolerance
+        actual.setRGB(60, 60, new Color(250, 250, 250).getRGB());
+
+        ImageComparisonResult result = rasterComparison.compare(expected, actual, null, null);
+        assertEquals(ImageComparisonState.MATCH, result.getImageComparisonState());
+        assertEquals(0, result.getDifferencePercent(), 0);
+    }
+
+    @Test
+    public void testMismatch(){
+        BufferedImage expected = createImage(BufferedImage.TYPE_4BYTE_ABGR);
+        BufferedImage actual = createImage(BufferedImage.TYPE_INT_ARGB);
+        fill(actual, 10, 10, 10, 10);
+        // diff pixels no more than 5 pixels apart are grouped
+        fill(actual, 24, 10, 10, 10);
+        fill(actual, 150, 100, 20, 20);
+
+        ImageComparisonResult result = rasterComparison.compare(expected, actual, null, null);
+        assertEquals(ImageComparisonState.MISMATCH, result.getImageComparisonState());
+        assertTrue(result.getDifferencePercent() > 0);
+        List<Rectangle> rectangles = result.getRectangles();
+        assertEquals(2, rectangles.size());
+        assertRectangle(10, 10, 33, 19, rectangles.get(0));
+        assertRectangle(150, 100, 169, 119, rectangles.get(1));
+
+        // excluded areas are ignored
+        result = rasterComparison.compare(expected, actual, null, Arrays.asList(new Rectangle(0, 0, 50, 50)));
+        assertEquals(1, result.getRectangles().size());
+        assertRectangle(150, 100, 169, 119, result.getRectangles().get(0));
+    }
+
+    @Test
+    public void testParallelBands(){
+        BufferedImage expected = createImage(BufferedImage.TYPE_INT_RGB, 200, 400);
+        BufferedImage actual = createImage(BufferedImage.TYPE_INT_RGB, 200, 400);
+        // diff areas across and next to band borders at row 100, 200 and 300
+        fill(actual, 50, 90, 20, 20);
+        fill(actual, 100, 190, 20, 10);
+        fill(actual, 100, 203, 20, 10);
+        fill(actual, 10, 300, 180, 5);
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try{
+            RasterComparison parallelComparison = new RasterComparison(20, pool, 4, false);
+            List<Rectangle> areas = Arrays.asList(new Rectangle(0, 295, 100, 310));
+            ImageComparisonResult expectedResult = rasterComparison.compare(expected, actual, null, areas);
+            ImageComparisonResult result = parallelComparison.compare(expected, actual, null, areas);
+            assertEquals(3, expectedResult.getRectangles().size());
+            assertEquals(expectedResult.getRectangles().size(), result.getRectangles().size());
+            for(int i = 0; i < result.getRectangles().size(); i++){
+                Rectangle rectangle = expectedResult.getRectangles().get(i);
+                assertRectangle((int) rectangle.getMinPoint().getX(), (int) rectangle.getMinPoint().getY(),
+                    (int) rectangle.getMaxPoint().getX(), (int) rectangle.getMaxPoint().getY(), result.getRectangles().get(i));
+            }
+            assertEquals(expectedResult.getDifferencePercent(), result.getDifferencePercent(), 0);
+        }finally{
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPyramid(){
+        RasterComparison pyramidComparison = new RasterComparison(20, null, 1, true);
+        BufferedImage expected = createImage(BufferedImage.TYPE_INT_RGB, 203, 150);
+        BufferedImage actual = createImage(BufferedImage.TYPE_3BYTE_BGR, 203, 150);
+        assertEquals(ImageComparisonState.MATCH, pyramidComparison.compare(expected, actual, null, null).getImageComparisonState());
+
+        // diff areas across block borders, in last partial block column and next to excluded area
+        BufferedImage changed = createImage(BufferedImage.TYPE_3BYTE_BGR, 203, 150);
+        fill(changed, 5, 5, 12, 12);
+        fill(changed, 190, 140, 13, 10);
+        fill(changed, 60, 60, 30, 30);
+        List<Rectangle> areas = Arrays.asList(new Rectangle(60, 60, 75, 89));
+        ImageComparisonResult expectedResult = rasterComparison.compare(expected, changed, null, areas);
+        ImageComparisonResult result = pyramidComparison.compare(expected, changed, null, areas);
+        assertEquals(ImageComparisonState.MISMATCH, result.getImageComparisonState());
+        assertEquals(3, result.getRectangles().size());
+        for(int i = 0; i < result.getRectangles().size(); i++){
+            Rectangle rectangle = expectedResult.getRectangles().get(i);
+            assertRectangle((int) rectangle.getMinPoint().getX(), (int) rectangle.getMinPoint().getY(),
+                (int) rectangle.getMaxPoint().getX(), (int) rectangle.getMaxPoint().getY(), result.getRectangles().get(i));
+        }
+        assertEquals(expectedResult.getDifferencePercent(), result.getDifferencePercent(), 0.0001);
+    }
+
+    @Test
+    public void testVerdict(){
+        for(boolean pyramid : new boolean[]{false, true}){
+            RasterComparison comparison = new RasterComparison(20, null, 1, pyramid);
+            BufferedImage expected = createImage(BufferedImage.TYPE_INT_RGB, 400, 400);
+
+            // scan stops once first diff area is larger than 20 pixels in both directions
+            BufferedImage large = createImage(BufferedImage.TYPE_INT_RGB, 400, 400);
+            fill(large, 10, 10, 30, 30);
+            fill(large, 300, 300, 60, 60);
+            ImageComparisonResult result = comparison.verdict(expected, large, null, 1);
+            assertEquals(ImageComparisonState.MISMATCH, result.getImageComparisonState());
+            assertEquals(1, result.getRectangles().size());
+            assertEquals(10, (int) result.getRectangles().get(0).getMinPoint().getY());
+
+            // small diff is found by full scan
+            BufferedImage small = createImage(BufferedImage.TYPE_INT_RGB, 400, 400);
+            fill(small, 10, 10, 10, 10);
+            result = comparison.verdict(expected, small, null, 1);
+            assertEquals(ImageComparisonState.MISMATCH, result.getImageComparisonState());
+            assertRectangle(10, 10, 19, 19, result.getRectangles().get(0));
+
+            // thin diff in a single block row can't be large enough
+            BufferedImage thin = createImage(BufferedImage.TYPE_INT_RGB, 400, 400);
+            fill(thin, 10, 10, 25, 5);
+            result = comparison.verdict(expected, thin, null, 0);
+            if (pyramid){
+                assertEquals(ImageComparisonState.MATCH, result.getImageComparisonState());
+            }else{
+                assertEquals(ImageComparisonState.MISMATCH, result.getImageComparisonState());
+                assertRectangle(10, 10, 34, 14, result.getRectangles().get(0));
+            }
+        }
+    }
+
+    @Test
+    public void testParallelVerdict(){
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try{
+            RasterComparison parallelComparison = new RasterComparison(20, pool, 4, false);
+            BufferedImage expected = createImage(BufferedImage.TYPE_INT_RGB, 200, 400);
+
+            // large diff in last band stops all bands
+            BufferedImage large = createImage(BufferedImage.TYPE_INT_RGB, 200, 400);
+            fill(large, 10, 320, 30, 30);
+            ImageComparisonResult result = parallelComparison.verdict(expected, large, null, 0);
+            assertEquals(ImageComparisonState.MISMATCH, result.getImageComparisonState());
+            assertEquals(1, result.getRectangles().size());
+            assertEquals(320, (int) result.getRectangles().get(0).getMinPoint().getY());
+
+            // diff across band border at row 200 is too small in each band
+            BufferedImage border = createImage(BufferedImage.TYPE_INT_RGB, 200, 400);
+            fill(border, 50, 188, 25, 25);
+            result = parallelComparison.verdict(expected, border, null, 0);
+            assertEquals(ImageComparisonState.MISMATCH, result.getImageComparisonState());
+            assertEquals(1, result.getRectangles().size());
+            assertRectangle(50, 188, 74, 212, result.getRectangles().get(0));
+
+            // small diffs are the same as single thread verdict
+            BufferedImage small = createImage(BufferedImage.TYPE_INT_RGB, 200, 400);
+            fill(small, 10, 95, 8, 10);
+            fill(small, 100, 250, 5, 5);
+            ImageComparisonResult expectedResult = rasterComparison.verdict(expected, small, null, 0);
+            result = parallelComparison.verdict(expected, small, null, 0);
+            assertEquals(expectedResult.getRectangles().size(), result.getRectangles().size());
+            assertEquals(expectedResult.getDifferencePercent(), result.getDifferencePercent(), 0);
+        }finally{
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSizeMismatch(){
+        BufferedImage expected = createImage(BufferedImage.TYPE_INT_RGB);
+        BufferedImage actual = new BufferedImage(100, 100, BufferedImage.TYPE_INT_RGB);
+        ImageComparisonResult result = rasterComparison.compare(expected, actual, null, null);
+        assertEquals(ImageComparisonState.SIZE_MISMATCH, result.getImageComparisonState());
+        assertTrue(result.getDifferencePercent() > 0);
+    }
+
+    @Test
+    public void testSameResultAsImageComparison() throws URISyntaxException{
+        BufferedImage expected = ImageComparisonUtil.readImageFromResources(
+            new File(getClass().getClassLoader().getResource("image/login.png").toURI()).getAbsolutePath());
+        BufferedImage actual = ImageComparisonUtil.readImageFromResources(
+            new File(getClass().getClassLoader().getResource("image/login2.png").toURI()).getAbsolutePath());
+
+        ImageComparison imc = new ImageComparison(expected, actual);
+        imc.setMinimalRectangleSize(20);
+        ImageComparisonResult libraryResult = imc.compareImages();
+        ImageComparisonResult result = rasterComparison.compare(expected, actual, null, null);
+        assertFalse(result.getRectangles().isEmpty());
+        assertSameResult(libraryResult, result);
+
+        // exclude left half of the first diff area
+        Rectangle diffArea = libraryResult.getRectangles().get(0);
+        int middleX = (int) (diffArea.getMinPoint().getX() + diffArea.getMaxPoint().getX()) / 2;
+        List<Rectangle> excludedAreas = Arrays.asList(new Rectangle((int) diffArea.getMinPoint().getX(),
+                                            (int) diffArea.getMinPoint().getY(), middleX, (int) diffArea.getMaxPoint().getY()));
+        imc = new ImageComparison(expected, actual);
+        imc.setMinimalRectangleSize(20);
+        imc.setExcludedAreas(excludedAreas);
+        assertSameResult(imc.compareImages(), rasterComparison.compare(expected, actual, null, excludedAreas));
+    }
+
+    @Test
+    public void testSameRectanglesAsImageComparison(){
+        // scattered diff pixels, where grouping and merging order of the library matter
+        RasterComparison pyramidComparison = new RasterComparison(20, null, 1, true);
+        Random random = new Random(42);
+        for(int pattern = 0; pattern < 300; pattern++){
+            BufferedImage expected = createImage(BufferedImage.TYPE_INT_RGB, 80, 60);
+            BufferedImage actual = createImage(BufferedImage.TYPE_INT_RGB, 80, 60);
+            int pixels = 20 + random.nextInt(200);
+            for(int i = 0; i < pixels; i++){
+                actual.setRGB(random.nextInt(80), random.nextInt(60), random.nextInt(0x1000000));
+            }
+            List<Rectangle> excludedAreas = new ArrayList<>();
+            if (random.nextBoolean()){
+                int x = random.nextInt(70);
+                int y = random.nextInt(50);
+                excludedAreas.add(new Rectangle(x, y, x + random.nextInt(10), y + random.nextInt(10)));
+            }
+
+            ImageComparison imc = new ImageComparison(expected, actual);
+            imc.setMinimalRectangleSize(20);
+            imc.setExcludedAreas(excludedAreas);
+            ImageComparisonResult libraryResult = imc.compareImages();
+            assertSameResult(libraryResult, rasterComparison.compare(expected, actual, null, excludedAreas));
+            assertSameResult(libraryResult, pyramidComparison.compare(expected, actual, null, excludedAreas));
+        }
+    }
+
+    private static void assertSameResult(ImageComparisonResult expected, ImageComparisonResult actual){
+        assertEquals(expected.getImageComparisonState(), actual.getImageComparisonState());
+        assertEquals(expected.getDifferencePercent(), actual.getDifferencePercent(), 0.0001);
+        assertEquals(getCoordinates(expected.getRectangles()), getCoordinates(actual.getRectangles()));
+    }
+
+    /**
+     * Get sorted coordinates of rectangles, minX,minY,maxX,maxY of every rectangle
+     */
+    private static List<String> getCoordinates(List<Rectangle> rectangles){
+        List<String> coordinates = new ArrayList<>();
+        if (rectangles == null) return coordinates;
+        for(Rectangle rectangle : rectangles){
+            coordinates.add(String.format("%d,%d,%d,%d", (int) rectangle.getMinPoint().getX(), (int) rectangle.getMinPoint().getY(),
+                                            (int) rectangle.getMaxPoint().getX(), (int) rectangle.getMaxPoint().getY()));
+        }
+        Collections.sort(coordinates);
+        return coordinates;
+    }
+
+    private static BufferedImage createImage(int type){
+        return createImage(type, 200, 150);
+    }
+
+    private static BufferedImage createImage(int type, int width, int height){
+        BufferedImage image = new BufferedImage(width, height, type);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, width, height);
+        graphics.dispose();
+        return image;
+    }
+
+    private static void fill(BufferedImage image, int x, int y, int width, int height){
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.BLUE);
+        graphics.fillRect(x, y, width, height);
+        graphics.dispose();
+    }
+
+    private static void assertRectangle(int minX, int minY, int maxX, int maxY, Rectangle rectangle){
+        assertEquals(minX, (int) rectangle.getMinPoint().getX());
+        assertEquals(minY, (int) rectangle.getMinPoint().getY());
+        assertEquals(maxX, (int) rectangle.getMaxPoint().getX());
+        assertEquals(maxY, (int) rectangle.getMaxPoint().getY());
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.salesforce.cte.common.TestStatus;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RegistryBundleTest {
+
+    private Path root;
+
+    @Before
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("testadvisor");
+    }
+
+    @Test
+    public void testExportImport() throws IOException{
+        Registry source = new Registry(root.resolve("source"));
+        RegistryHelper.createTestRun(source, "TestRun-20220101-100000", TestStatus.PASSED);
+        RegistryHelper.createTestRun(source, "TestRun-20220102-100000", TestStatus.PASSED);
+        RegistryHelper.createTestRun(source, "TestRun-20220103-100000", TestStatus.FAILED);
+        RegistryHelper.createTestRun(source, "TestRun-20220104-100000", TestStatus.FAILED);
+
+        Path bundleFile = root.resolve("bundle.zip");
+        // latest passed test run and latest test run
+        assertEquals(2, new RegistryBundle(source).exportBundle(bundleFile));
+
+        Registry target = new Registry(root.resolve("target"));
+        assertEquals(2, new RegistryBundle(target).importBundle(bundleFile));
+        assertEquals(2, target.getAllTestRuns().size());
+        Path testrun = target.getTestRunPath("TestRun-20220102-100000");
+        assertArrayEquals(new byte[]{1,2,3}, Files.readAllBytes(testrun.resolve("screenshots").resolve("1.png")));
+        assertTrue(Files.exists(testrun.resolve(Registry.IMPORTED_MARKER_FILENAME)));
+
+        // imported test runs are only used as baseline
+        assertEquals(0, target.getUnprocessedTestRunList().size());
+        assertEquals(0, target.getReadyToUploadTestRunList().size());
+        Path current = target.getRegistryRoot().resolve("TestRun-20220105-100000");
+        assertEquals(testrun, target.getBaselineTestRun(current, "testcasePass"));
+
+        // test runs already in registry are skipped
+        assertEquals(0, new RegistryBundle(target).importBundle(bundleFile));
+    }
+
+    @After
+    public void teardown() throws IOException{
+        removeDirectory(root.toFile());
+    }
+
+    private void removeDirectory(File dir) {
+        if (dir.isDirectory()) {
+            File[] files = dir.listFiles();
+            if (files != null && files.length > 0) {
+                for (File aFile : files) {
+                    removeDirectory(aFile);
+                }
+            }
+            dir.delete();
+        } else {
+            dir.delete();
+        }
+    }
+}
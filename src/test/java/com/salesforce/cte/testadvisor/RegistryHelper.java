@@ -8,6 +8,7 @@
 package com.salesforce.cte.testadvisor;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Instant;
 import java.time.OffsetDateTime;
@@ -51,6 +52,20 @@ public class RegistryHelper {
         return testrun;
     }
 
+    /**
+     * Create a test run with a screenshot, test result of given status and test run signal
+     */
+    public static Path createTestRun(Registry registry, String testRunId, com.salesforce.cte.common.TestStatus status) throws IOException{
+        Path testrun = registry.getRegistryRoot().resolve(testRunId);
+        Files.createDirectories(testrun.resolve("screenshots"));
+        Files.write(testrun.resolve("screenshots").resolve("1.png"), new byte[]{1,2,3});
+        TestAdvisorResult result = createTestAdvisorResult();
+        result.getTestCaseExecutionList().get(0).setTestStatus(status);
+        saveTestAdvisorResult(testrun, result);
+        registry.saveTestRunSignal(createTestRunSignal(testRunId));
+        return testrun;
+    }
+
     public static TestRunSignal createTestRunSignal(String testrunId){
         TestRunSignal testRunSignal = new TestRunSignal();
         Instant now = Instant.now();
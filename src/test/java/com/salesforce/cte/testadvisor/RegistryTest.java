@@ -8,7 +8,9 @@
 package com.salesforce.cte.testadvisor;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
@@ -16,8 +18,12 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.salesforce.cte.common.TestAdvisorResult;
 import com.salesforce.cte.datamodel.client.TestRunSignal;
@@ -249,6 +255,28 @@ public class RegistryTest {
         assertEquals(testrun1, baseline);
     }
 
+    @Test
+    public void testGetBaselineSkipFailedRun() throws IOException{
+        Registry registry = new Registry(root);
+
+        Path testrun1 = RegistryHelper.createTestRun(registry,0);
+        RegistryHelper.saveTestAdvisorResult(testrun1, RegistryHelper.createTestAdvisorResult());
+
+        Path testrun2 = RegistryHelper.createTestRun(registry,500);
+        TestAdvisorResult failedResult = RegistryHelper.createTestAdvisorResult();
+        failedResult.getTestCaseExecutionList().get(0).setTestStatus(com.salesforce.cte.common.TestStatus.FAILED);
+        RegistryHelper.saveTestAdvisorResult(testrun2, failedResult);
+
+        Path testrun3 = RegistryHelper.createTestRun(registry,1000);
+        RegistryHelper.saveTestAdvisorResult(testrun3, RegistryHelper.createTestAdvisorResult());
+
+        registry.getAllTestRuns();
+        assertEquals(testrun1, registry.getBaselineTestRun(testrun3, "testcasePass"));
+        // no LKG run, latest run before current run is used
+        assertEquals(testrun2, registry.getBaselineTestRun(testrun3, "unknownTest"));
+        assertNull(registry.getBaselineTestRun(testrun1, "testcasePass"));
+    }
+
     @Test
     public void testGetNotExistTestResult() throws IOException{
         Registry registry = new Registry(root);
@@ -295,6 +323,114 @@ public class RegistryTest {
         assertTrue(testRunSignal.clientCliVersion.trim().length()>0);
     }
 
+    @Test
+    public void testMigrateToShardedLayout() throws IOException{
+        Registry registry = new Registry(root);
+        Path testrun1 = root.resolve("TestRun-20220101-100000");
+        Files.createDirectories(testrun1);
+        RegistryHelper.saveTestAdvisorResult(testrun1, RegistryHelper.createTestAdvisorResult());
+        Path screenshot = testrun1.resolve("screenshot.png");
+        Files.createFile(screenshot);
+        Path testrun2 = root.resolve("TestRun-20220201-100000");
+        Files.createDirectories(testrun2);
+        assertFalse(registry.isShardedLayout());
+
+        assertEquals(1, registry.migrateToShardedLayout());
+        assertTrue(registry.isShardedLayout());
+        Path shardedTestRun1 = root.resolve("2022").resolve("01").resolve("TestRun-20220101-100000");
+        assertTrue(Files.exists(shardedTestRun1.resolve(Registry.TESTADVISOR_TEST_RESULT)));
+        assertFalse(Files.exists(testrun1));
+        //pending test run is not moved
+        assertTrue(Files.exists(testrun2));
+
+        assertEquals(shardedTestRun1, registry.getTestRunPath("TestRun-20220101-100000"));
+        assertEquals(testrun2, registry.getTestRunPath("TestRun-20220201-100000"));
+        assertEquals("TestRun-20220101-100000", registry.getTestRunId(shardedTestRun1));
+        assertEquals(1, registry.getAllTestRuns().size());
+        assertEquals(shardedTestRun1, registry.getUnprocessedTestRunList().get(0));
+        assertEquals(shardedTestRun1.resolve("screenshot.png"), registry.resolveScreenshotPath(screenshot.toString()));
+
+        registry.saveTestRunSignal(RegistryHelper.createTestRunSignal("TestRun-20220101-100000"));
+        assertTrue(Files.exists(shardedTestRun1.resolve(Registry.SIGNAL_FILENAME)));
+        assertEquals(shardedTestRun1.resolve(Registry.SIGNAL_FILENAME), registry.getReadyToUploadTestRunList().get(0));
+    }
+
+    @Test
+    public void testCompactTestRuns() throws IOException{
+        Registry registry = new Registry(root);
+        Path testrun1 = createUploadedTestRun(registry, 0, com.salesforce.cte.common.TestStatus.PASSED);
+        Path testrun2 = createUploadedTestRun(registry, 1, com.salesforce.cte.common.TestStatus.FAILED);
+        Path testrun3 = createUploadedTestRun(registry, 2, com.salesforce.cte.common.TestStatus.FAILED);
+        Path testrun4 = createUploadedTestRun(registry, 3, com.salesforce.cte.common.TestStatus.PASSED);
+
+        //no retention rule
+        assertEquals(0, registry.compactTestRuns());
+
+        System.setProperty("testadvisor.retentionmaxruns", "2");
+        try{
+            assertEquals(2, registry.compactTestRuns());
+        }finally{
+            System.clearProperty("testadvisor.retentionmaxruns");
+        }
+        assertFalse(Files.exists(testrun1));
+        assertFalse(Files.exists(testrun2));
+        assertEquals(2, registry.getAllTestRuns().size());
+        assertEquals(2, registry.getRunArchive().getEntries().size());
+
+        //archived LKG run is extracted when it's the only LKG candidate
+        Path baseline = registry.getBaselineTestRun(testrun3, "testcasePass");
+        assertEquals(testrun1.getFileName(), baseline.getFileName());
+        assertTrue(Files.exists(baseline.resolve(Registry.TESTADVISOR_TEST_RESULT)));
+        assertEquals(baseline, registry.getTestRunPath(registry.getTestRunId(testrun1)));
+        assertEquals(testrun4, registry.getBaselineTestRun(testrun4.resolveSibling("TestRun-99991231-000000"), "testcasePass"));
+        assertNull(registry.getBaselineTestRun(testrun3, "unknownTest"));
+    }
+
+    private Path createUploadedTestRun(Registry registry, int plusSeconds, com.salesforce.cte.common.TestStatus status) throws IOException{
+        Path testrun = RegistryHelper.createTestRun(registry, plusSeconds);
+        TestAdvisorResult result = RegistryHelper.createTestAdvisorResult();
+        result.getTestCaseExecutionList().get(0).setTestStatus(status);
+        RegistryHelper.saveTestAdvisorResult(testrun, result);
+        String signalFile = registry.saveTestRunSignal(RegistryHelper.createTestRunSignal(registry.getTestRunId(testrun)));
+        registry.savePortalResponse(Paths.get(signalFile), "{}");
+        return testrun;
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception{
+        Registry registry = new Registry(root);
+        Path testrun1 = RegistryHelper.createTestRun(registry,0);
+        RegistryHelper.saveTestAdvisorResult(testrun1, RegistryHelper.createTestAdvisorResult());
+        Path testrun2 = RegistryHelper.createTestRun(registry,1);
+        RegistryHelper.saveTestAdvisorResult(testrun2, RegistryHelper.createTestAdvisorResult());
+        Path testrun3 = RegistryHelper.createTestRun(registry,2);
+        RegistryHelper.saveTestAdvisorResult(testrun3, RegistryHelper.createTestAdvisorResult());
+        registry.getAllTestRuns();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for(int i=0; i<20; i++){
+            final int n = i;
+            futures.add(executor.submit(() -> {
+                List<Path> testRunList = registry.getAllTestRuns();
+                assertEquals(3, testRunList.size());
+                assertEquals(testrun3, testRunList.get(0));
+                assertEquals(2, registry.findBeforeTestRunList(testrun3).size());
+                assertNotNull(registry.getBaselineTestRun(testrun3, "testcasePass"));
+                registry.saveTestRunSignal(RegistryHelper.createTestRunSignal(testrun1.getFileName().toString()));
+                registry.saveRegistryProperty("Property" + n, String.valueOf(n));
+                return null;
+            }));
+        }
+        for(Future<?> future : futures)
+            future.get();
+        executor.shutdown();
+
+        assertEquals(3, registry.getTestRunSnapshot().size());
+        registry.loadRegistryProperties();
+        for(int i=0; i<20; i++)
+            assertEquals(String.valueOf(i), registry.getRegistryProperties().getProperty("Property" + i));
+    }
 
     @After
     public void teardown() throws IOException{
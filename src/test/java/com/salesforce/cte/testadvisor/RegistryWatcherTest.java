@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RegistryWatcherTest {
+
+    private Path root;
+
+    @Before
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("testadvisor");
+    }
+
+    @Test
+    public void testWatchNewTestRun() throws IOException, InterruptedException{
+        Registry registry = new Registry(root);
+        //test run created before watching
+        Path existing = root.resolve("TestRun-20220101-100000");
+        Files.createDirectories(existing);
+        RegistryHelper.saveTestAdvisorResult(existing, RegistryHelper.createTestAdvisorResult());
+
+        List<Path> processed = new ArrayList<>();
+        try(RegistryWatcher watcher = new RegistryWatcher(registry, 100)){
+            watcher.start();
+            Path testrun = root.resolve("TestRun-20220102-100000");
+            Files.createDirectories(testrun);
+            pollUntil(watcher, processed, 1);
+            //test run without test result is not processed
+            assertEquals(1, processed.size());
+            assertEquals(existing, processed.get(0));
+
+            RegistryHelper.saveTestAdvisorResult(testrun, RegistryHelper.createTestAdvisorResult());
+            pollUntil(watcher, processed, 2);
+            assertEquals(2, processed.size());
+            assertEquals(testrun, processed.get(1));
+        }
+    }
+
+    @Test
+    public void testRetryUnprocessedTestRun() throws IOException, InterruptedException{
+        Registry registry = new Registry(root);
+        Path testrun = root.resolve("TestRun-20220101-100000");
+        Files.createDirectories(testrun);
+        RegistryHelper.saveTestAdvisorResult(testrun, RegistryHelper.createTestAdvisorResult());
+
+        List<Path> attempts = new ArrayList<>();
+        try(RegistryWatcher watcher = new RegistryWatcher(registry, 100)){
+            long deadline = System.currentTimeMillis() + 10 * 1000L;
+            while(attempts.size() < 3 && System.currentTimeMillis() < deadline){
+                watcher.poll(testRun -> {
+                    attempts.add(testRun);
+                    //first attempt fails, second one is skipped as claimed by another process
+                    if (attempts.size() == 1)
+                        throw new IOException("failed to process");
+                    if (attempts.size() == 3)
+                        Files.write(testRun.resolve(Registry.SIGNAL_FILENAME), "{}".getBytes());
+                }, 100);
+            }
+            assertEquals(3, attempts.size());
+            //test run is not handed over any more after test signal is written
+            long end = System.currentTimeMillis() + 1000;
+            while(System.currentTimeMillis() < end){
+                watcher.poll(attempts::add, 100);
+            }
+            assertEquals(3, attempts.size());
+            assertTrue(attempts.stream().allMatch(testrun::equals));
+        }
+    }
+
+    private void pollUntil(RegistryWatcher watcher, List<Path> processed, int count) throws IOException, InterruptedException{
+        long deadline = System.currentTimeMillis() + 10 * 1000L;
+        while(processed.size() < count && System.currentTimeMillis() < deadline){
+            watcher.poll(testRun -> {
+                processed.add(testRun);
+                Files.write(testRun.resolve(Registry.SIGNAL_FILENAME), "{}".getBytes());
+            }, 100);
+        }
+    }
+
+    @After
+    public void teardown() throws IOException{
+        removeDirectory(root.toFile());
+    }
+
+    private void removeDirectory(File dir) {
+        if (dir.isDirectory()) {
+            File[] files = dir.listFiles();
+            if (files != null && files.length > 0) {
+                for (File aFile : files) {
+                    removeDirectory(aFile);
+                }
+            }
+            dir.delete();
+        } else {
+            dir.delete();
+        }
+    }
+}
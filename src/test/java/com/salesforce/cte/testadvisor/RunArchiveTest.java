@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RunArchiveTest {
+
+    private Path root;
+
+    @Before
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("testadvisor");
+    }
+
+    @Test
+    public void testAddAndExtract() throws IOException{
+        RunArchive archive = new RunArchive(root.resolve("archive"));
+        assertTrue(archive.isEmpty());
+
+        Map<TestRunId, Path> testRuns = new TreeMap<>();
+        testRuns.put(TestRunId.parse("TestRun-20220101-100000"), createTestRun("TestRun-20220101-100000", new byte[]{1}));
+        testRuns.put(TestRunId.parse("TestRun-20220201-100000"), createTestRun("TestRun-20220201-100000", new byte[]{2}));
+        archive.add(testRuns);
+
+        //another test run of the same month is added to a new archive file
+        byte[] januaryArchive = Files.readAllBytes(root.resolve("archive").resolve("2022-01.zip"));
+        testRuns.clear();
+        testRuns.put(TestRunId.parse("TestRun-20220102-100000"), createTestRun("TestRun-20220102-100000", new byte[]{3}));
+        archive.add(testRuns);
+
+        assertEquals(3, archive.getEntries().size());
+        assertArrayEquals(januaryArchive, Files.readAllBytes(root.resolve("archive").resolve("2022-01.zip")));
+        assertTrue(Files.exists(root.resolve("archive").resolve("2022-01-2.zip")));
+        assertTrue(Files.exists(root.resolve("archive").resolve("2022-02.zip")));
+        assertTrue(archive.contains("TestRun-20220101-100000"));
+        assertFalse(archive.contains("TestRun-20220301-100000"));
+
+        assertNull(archive.getExtractedTestRun("TestRun-20220101-100000"));
+        Path testRun = archive.getTestRun("TestRun-20220101-100000");
+        assertArrayEquals(new byte[]{1}, Files.readAllBytes(testRun.resolve("screenshots").resolve("1.png")));
+        assertEquals(testRun, archive.getExtractedTestRun("TestRun-20220101-100000"));
+        testRun = archive.getTestRun("TestRun-20220102-100000");
+        assertArrayEquals(new byte[]{3}, Files.readAllBytes(testRun.resolve("screenshots").resolve("1.png")));
+
+        //a new archive instance reads the same archive index
+        assertEquals(3, new RunArchive(root.resolve("archive")).getEntries().size());
+        assertNull(archive.getTestRun("TestRun-20220301-100000"));
+    }
+
+    @Test
+    public void testEvictExtracted() throws IOException{
+        RunArchive archive = new RunArchive(root.resolve("archive"));
+        Map<TestRunId, Path> testRuns = new TreeMap<>();
+        testRuns.put(TestRunId.parse("TestRun-20220101-100000"), createTestRun("TestRun-20220101-100000", new byte[]{1}));
+        testRuns.put(TestRunId.parse("TestRun-20220102-100000"), createTestRun("TestRun-20220102-100000", new byte[]{2}));
+        archive.add(testRuns);
+        Path idle = archive.getTestRun("TestRun-20220101-100000");
+        Path recent = archive.getTestRun("TestRun-20220102-100000");
+
+        //extracted test run not accessed for 2 days is evicted
+        Files.setLastModifiedTime(idle, FileTime.fromMillis(System.currentTimeMillis() - 2 * 24 * 60 * 60 * 1000L));
+        assertEquals(1, archive.evictExtracted());
+        assertNull(archive.getExtractedTestRun("TestRun-20220101-100000"));
+        assertEquals(recent, archive.getExtractedTestRun("TestRun-20220102-100000"));
+        try(Stream<Path> pathStream = Files.list(root.resolve("archive").resolve(RunArchive.EXTRACTED_FOLDER))){
+            assertEquals(1, pathStream.count());
+        }
+
+        //access keeps an extracted test run
+        Files.setLastModifiedTime(recent, FileTime.fromMillis(System.currentTimeMillis() - 2 * 24 * 60 * 60 * 1000L));
+        archive.getTestRun("TestRun-20220102-100000");
+        assertEquals(0, archive.evictExtracted());
+
+        //evicted test run is extracted again
+        assertArrayEquals(new byte[]{1}, Files.readAllBytes(archive.getTestRun("TestRun-20220101-100000")
+                                                    .resolve("screenshots").resolve("1.png")));
+    }
+
+    private Path createTestRun(String testRunId, byte[] content) throws IOException{
+        Path testrun = root.resolve(testRunId);
+        Files.createDirectories(testrun.resolve("screenshots"));
+        Files.write(testrun.resolve("screenshots").resolve("1.png"), content);
+        Files.write(testrun.resolve(Registry.TESTADVISOR_TEST_RESULT), "{}".getBytes());
+        return testrun;
+    }
+
+    @After
+    public void teardown() throws IOException{
+        removeDirectory(root.toFile());
+    }
+
+    private void removeDirectory(File dir) {
+        if (dir.isDirectory()) {
+            File[] files = dir.listFiles();
+            if (files != null && files.length > 0) {
+                for (File aFile : files) {
+                    removeDirectory(aFile);
+                }
+            }
+            dir.delete();
+        } else {
+            dir.delete();
+        }
+    }
+}
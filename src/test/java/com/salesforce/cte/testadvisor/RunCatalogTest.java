@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import com.salesforce.cte.datamodel.client.TestRunSignal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RunCatalogTest {
+
+    private Path root;
+
+    @Before
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("testadvisor");
+    }
+
+    @Test
+    public void testRebuildMissingCatalog() throws IOException{
+        Path testrun1 = root.resolve("TestRun-20220101-100000");
+        Path testrun2 = root.resolve("TestRun-20220101-110000");
+        Files.createDirectories(testrun1);
+        Files.createDirectories(testrun2);
+        Files.createFile(testrun1.resolve(Registry.TESTADVISOR_TEST_RESULT));
+        Files.createFile(testrun1.resolve(Registry.SIGNAL_FILENAME));
+
+        RunCatalog catalog = new RunCatalog(root, root.resolve(Registry.TESTADVISOR_INDEX_FOLDER));
+        List<RunCatalog.Entry> entries = catalog.getEntries();
+
+        assertEquals(2, entries.size());
+        assertEquals("TestRun-20220101-100000", entries.get(0).testRunId);
+        assertEquals(RunCatalog.RunState.PROCESSED, entries.get(0).state);
+        assertEquals(RunCatalog.RunState.PENDING, entries.get(1).state);
+        assertTrue(Files.exists(root.resolve(Registry.TESTADVISOR_INDEX_FOLDER).resolve(RunCatalog.CATALOG_FILENAME)));
+    }
+
+    @Test
+    public void testShardedTestRuns() throws IOException{
+        Path testrun1 = root.resolve("2022").resolve("01").resolve("TestRun-20220101-100000");
+        Path testrun2 = root.resolve("TestRun-20220201-100000");
+        Files.createDirectories(testrun1);
+        Files.createDirectories(testrun2);
+        Files.createFile(testrun1.resolve(Registry.TESTADVISOR_TEST_RESULT));
+
+        RunCatalog catalog = new RunCatalog(root, root.resolve(Registry.TESTADVISOR_INDEX_FOLDER));
+        List<RunCatalog.Entry> entries = catalog.getEntries();
+        assertEquals(2, entries.size());
+        assertEquals("2022/01/TestRun-20220101-100000", entries.get(0).path);
+        assertEquals(testrun1, entries.get(0).resolve(root));
+        assertEquals(RunCatalog.RunState.UNPROCESSED, entries.get(0).state);
+        assertEquals(testrun2, entries.get(1).resolve(root));
+
+        //test run added to a new shard folder is found without rebuild
+        Path testrun3 = root.resolve("2022").resolve("02").resolve("TestRun-20220202-100000");
+        Files.createDirectories(testrun3);
+        entries = catalog.getEntries();
+        assertEquals(3, entries.size());
+        assertEquals(testrun3, entries.get(2).resolve(root));
+
+        //a new catalog instance reads shard folders from catalog file
+        entries = new RunCatalog(root, root.resolve(Registry.TESTADVISOR_INDEX_FOLDER)).getEntries();
+        assertEquals(3, entries.size());
+        assertEquals(testrun1, entries.get(0).resolve(root));
+    }
+
+    @Test
+    public void testPendingRunBecomesUnprocessed() throws IOException{
+        Path testrun = root.resolve("TestRun-20220101-100000");
+        Files.createDirectories(testrun);
+        RunCatalog catalog = new RunCatalog(root, root.resolve(Registry.TESTADVISOR_INDEX_FOLDER));
+        assertEquals(RunCatalog.RunState.PENDING, catalog.getEntries().get(0).state);
+
+        Files.createFile(testrun.resolve(Registry.TESTADVISOR_TEST_RESULT));
+        assertEquals(RunCatalog.RunState.UNPROCESSED, catalog.getEntries().get(0).state);
+    }
+
+    @Test
+    public void testCatalogUpdatedBySaveSignalAndResponse() throws IOException{
+        Registry registry = new Registry(root);
+        Path testrun = RegistryHelper.createTestRun(registry, 0);
+        Files.createFile(testrun.resolve(Registry.TESTADVISOR_TEST_RESULT));
+        assertEquals(1, registry.getUnprocessedTestRunList().size());
+
+        TestRunSignal testRunSignal = RegistryHelper.createTestRunSignal(registry.getTestRunId(testrun));
+        registry.saveTestRunSignal(testRunSignal);
+        assertEquals(0, registry.getUnprocessedTestRunList().size());
+        assertEquals(1, registry.getReadyToUploadTestRunList().size());
+
+        registry.savePortalResponse(testrun.resolve(Registry.SIGNAL_FILENAME), "response");
+        assertEquals(0, registry.getReadyToUploadTestRunList().size());
+        assertEquals(1, registry.getAllTestRuns().size());
+
+        //a new registry instance reads the same state from the catalog file
+        RunCatalog catalog = new RunCatalog(root, root.resolve(Registry.TESTADVISOR_INDEX_FOLDER));
+        assertEquals(RunCatalog.RunState.UPLOADED, catalog.getEntries().get(0).state);
+    }
+
+    @Test
+    public void testCorruptedCatalogIsRebuilt() throws IOException{
+        Path testrun = root.resolve("TestRun-20220101-100000");
+        Files.createDirectories(testrun);
+        Files.createFile(testrun.resolve(Registry.TESTADVISOR_TEST_RESULT));
+        Path indexFolder = root.resolve(Registry.TESTADVISOR_INDEX_FOLDER);
+        Files.createDirectories(indexFolder);
+        Files.write(indexFolder.resolve(RunCatalog.CATALOG_FILENAME), "{ not json".getBytes());
+
+        RunCatalog catalog = new RunCatalog(root, indexFolder);
+        List<RunCatalog.Entry> entries = catalog.getEntries();
+        assertEquals(1, entries.size());
+        assertEquals(RunCatalog.RunState.UNPROCESSED, entries.get(0).state);
+    }
+
+    @After
+    public void teardown() throws IOException{
+        removeDirectory(root.toFile());
+    }
+
+    private void removeDirectory(File dir) {
+        if (dir.isDirectory()) {
+            File[] files = dir.listFiles();
+            if (files != null && files.length > 0) {
+                for (File aFile : files) {
+                    removeDirectory(aFile);
+                }
+            }
+            dir.delete();
+        } else {
+            dir.delete();
+        }
+    }
+}
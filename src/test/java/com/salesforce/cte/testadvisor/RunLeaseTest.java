@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import com.salesforce.cte.common.TestAdvisorResult;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RunLeaseTest {
+
+    private static final String TESTRUN_ID = "TestRun-20220101-100000";
+
+    private Path root;
+
+    @Before
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("testadvisor");
+    }
+
+    @Test
+    public void testAcquireRelease() throws IOException{
+        RunLease lease1 = new RunLease(root.resolve("leases"), 60 * 1000L);
+        RunLease lease2 = new RunLease(root.resolve("leases"), 60 * 1000L);
+
+        assertTrue(lease1.tryAcquire(TESTRUN_ID));
+        assertTrue(lease1.tryAcquire(TESTRUN_ID));
+        assertFalse(lease2.tryAcquire(TESTRUN_ID));
+        assertTrue(lease2.isLeasedByOthers(TESTRUN_ID));
+        assertFalse(lease1.isLeasedByOthers(TESTRUN_ID));
+
+        lease1.release(TESTRUN_ID);
+        assertFalse(lease2.isLeasedByOthers(TESTRUN_ID));
+        assertTrue(lease2.tryAcquire(TESTRUN_ID));
+        assertFalse(lease1.tryAcquire(TESTRUN_ID));
+    }
+
+    @Test
+    public void testExpiredLease() throws IOException{
+        RunLease lease1 = new RunLease(root.resolve("leases"), 60 * 1000L);
+        RunLease lease2 = new RunLease(root.resolve("leases"), 60 * 1000L);
+        assertTrue(lease1.tryAcquire(TESTRUN_ID));
+
+        //holder died and stopped renewing its lease
+        Path leaseFile = root.resolve("leases").resolve(TESTRUN_ID + RunLease.LEASE_EXTENSION);
+        Files.setLastModifiedTime(leaseFile, FileTime.fromMillis(System.currentTimeMillis() - 120 * 1000L));
+        assertFalse(lease2.isLeasedByOthers(TESTRUN_ID));
+        assertTrue(lease2.tryAcquire(TESTRUN_ID));
+        assertEquals(lease2.getOwner(), new String(Files.readAllBytes(leaseFile)));
+
+        //old holder doesn't remove the lease taken over
+        lease1.release(TESTRUN_ID);
+        assertTrue(Files.exists(leaseFile));
+        assertEquals(1, root.resolve("leases").toFile().list().length);
+    }
+
+    @Test
+    public void testClaimTestRun() throws IOException{
+        Registry registry1 = new Registry(root.resolve("registry"));
+        Registry registry2 = new Registry(root.resolve("registry"));
+        Path testrun = registry1.getRegistryRoot().resolve(TESTRUN_ID);
+        Files.createDirectories(testrun);
+        TestAdvisorResult result = RegistryHelper.createTestAdvisorResult();
+        RegistryHelper.saveTestAdvisorResult(testrun, result);
+        assertEquals(1, registry1.getUnprocessedTestRunList().size());
+
+        assertEquals(testrun, registry1.claimTestRun(testrun));
+        assertNull(registry2.claimTestRun(testrun));
+
+        registry1.saveTestRunSignal(RegistryHelper.createTestRunSignal(TESTRUN_ID));
+        registry1.releaseTestRun(testrun);
+        //test run was processed while waiting for the lease
+        assertNull(registry2.claimTestRun(testrun));
+        assertFalse(Files.exists(root.resolve("registry").resolve(Registry.TESTADVISOR_LEASE_FOLDER)
+                                    .resolve(TESTRUN_ID + RunLease.LEASE_EXTENSION)));
+    }
+
+    @Test
+    public void testClaimProcessedTestRun() throws IOException{
+        Registry registry = new Registry(root.resolve("registry"));
+        Path testrun = registry.getRegistryRoot().resolve(TESTRUN_ID);
+        Files.createDirectories(testrun);
+        RegistryHelper.saveTestAdvisorResult(testrun, RegistryHelper.createTestAdvisorResult());
+        assertEquals(1, registry.getUnprocessedTestRunList().size());
+
+        //another process wrote test signal without updating the catalog
+        Files.write(testrun.resolve(Registry.SIGNAL_FILENAME), "{}".getBytes());
+        assertNull(registry.claimTestRun(testrun));
+        assertEquals(0, registry.getUnprocessedTestRunList().size());
+        assertFalse(Files.exists(root.resolve("registry").resolve(Registry.TESTADVISOR_LEASE_FOLDER)
+                                    .resolve(TESTRUN_ID + RunLease.LEASE_EXTENSION)));
+    }
+
+    @After
+    public void teardown() throws IOException{
+        removeDirectory(root.toFile());
+    }
+
+    private void removeDirectory(File dir) {
+        if (dir.isDirectory()) {
+            File[] files = dir.listFiles();
+            if (files != null && files.length > 0) {
+                for (File aFile : files) {
+                    removeDirectory(aFile);
+                }
+            }
+            dir.delete();
+        } else {
+            dir.delete();
+        }
+    }
+}
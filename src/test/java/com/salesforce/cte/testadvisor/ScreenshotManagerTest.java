@@ -8,6 +8,9 @@
 package com.salesforce.cte.testadvisor;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
@@ -15,9 +18,12 @@ import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 
 import com.github.romankh3.image.comparison.model.ImageComparisonResult;
 import com.github.romankh3.image.comparison.model.ImageComparisonState;
+import com.salesforce.cte.testadvisor.PerceptualHashStore.PerceptualHash;
 
 import org.junit.Test;
 
@@ -34,6 +40,16 @@ public class ScreenshotManagerTest {
         assertEquals(ImageComparisonState.MATCH, result.getImageComparisonState());
     }
 
+    @Test
+    public void testScreenshotComparisonByteIdentical() throws URISyntaxException{
+        URL baselineUrl = getClass().getClassLoader().getResource("image/login.png");
+        File baselineFile = new File(baselineUrl.toURI());
+        ImageComparisonResult result =  screenshotManager.screenshotsComparison(baselineFile, baselineFile);
+        assertEquals(ImageComparisonState.MATCH, result.getImageComparisonState());
+        // byte identical screenshots are not decoded
+        assertNull(result.getActual());
+    }
+
     @Test
     public void testScreenshotComparisonMismatch() throws URISyntaxException{
         URL baselineUrl = getClass().getClassLoader().getResource("image/login.png");
@@ -46,6 +62,65 @@ public class ScreenshotManagerTest {
         assertEquals(1, result.getRectangles().size());
     }
 
+    @Test
+    public void testPrefetchScreenshots() throws URISyntaxException, InterruptedException{
+        System.setProperty("testadvisor.prefetchimages", "2");
+        try(ScreenshotManager prefetchManager = new ScreenshotManager()){
+            File baselineFile = new File(getClass().getClassLoader().getResource("image/login.png").toURI());
+            File currentFile = new File(getClass().getClassLoader().getResource("image/login2.png").toURI());
+            // missing screenshots are ignored
+            prefetchManager.prefetchScreenshots(new File("missing1.png"), new File("missing2.png"));
+            long deadline = System.currentTimeMillis() + 10 * 1000L;
+            while(!(prefetchManager.isCached(baselineFile) && prefetchManager.isCached(currentFile))
+                    && System.currentTimeMillis() < deadline){
+                // retried until permits of the missing screenshots are released
+                prefetchManager.prefetchScreenshots(baselineFile, currentFile);
+                Thread.sleep(50);
+            }
+            // screenshots are decoded in background before they are compared
+            assertTrue(prefetchManager.isCached(baselineFile));
+            assertTrue(prefetchManager.isCached(currentFile));
+            ImageComparisonResult result = prefetchManager.screenshotsComparison(baselineFile, currentFile);
+            assertEquals(ImageComparisonState.MISMATCH, result.getImageComparisonState());
+            assertEquals(1, result.getRectangles().size());
+        }finally{
+            System.clearProperty("testadvisor.prefetchimages");
+        }
+    }
+
+    @Test
+    public void testIsSameContent() throws IOException{
+        Path root = Files.createTempDirectory("testadvisor");
+        try{
+            File file1 = Files.write(root.resolve("1.png"), new byte[]{1,2,3}).toFile();
+            File file2 = Files.write(root.resolve("2.png"), new byte[]{1,2,3}).toFile();
+            File file3 = Files.write(root.resolve("3.png"), new byte[]{1,2,4}).toFile();
+            File file4 = Files.write(root.resolve("4.png"), new byte[]{1,2}).toFile();
+            assertTrue(ScreenshotManager.isSameContent(file1, file1));
+            assertTrue(ScreenshotManager.isSameContent(file1, file2));
+            assertFalse(ScreenshotManager.isSameContent(file1, file3));
+            assertFalse(ScreenshotManager.isSameContent(file1, file4));
+        }finally{
+            for(String name : new String[]{"1.png", "2.png", "3.png", "4.png"})
+                Files.deleteIfExists(root.resolve(name));
+            Files.delete(root);
+        }
+    }
+
+    @Test
+    public void testGetDecodedSize() throws URISyntaxException, IOException{
+        Path screenshot = new File(getClass().getClassLoader().getResource("image/login.png").toURI()).toPath();
+        assertEquals(1920L * 1082 * 4, ScreenshotManager.getDecodedSize(screenshot));
+        Path root = Files.createTempDirectory("testadvisor");
+        try{
+            Path text = Files.write(root.resolve("text.png"), "not a png screenshot".getBytes());
+            assertEquals(-1, ScreenshotManager.getDecodedSize(text));
+        }finally{
+            Files.deleteIfExists(root.resolve("text.png"));
+            Files.delete(root);
+        }
+    }
+
     @Test
     public void testScreenshotComparisonSave() throws URISyntaxException, IOException{
         URL baselineUrl = getClass().getClassLoader().getResource("image/login.png");
@@ -58,5 +133,36 @@ public class ScreenshotManagerTest {
         assertTrue(Files.exists(resultFile.toPath()));
         Files.delete(resultFile.toPath());
     }
-    
+
+    @Test
+    public void testPerceptualHash() throws URISyntaxException, IOException{
+        Path root = Files.createTempDirectory("testadvisor");
+        try{
+            Path source = new File(getClass().getClassLoader().getResource("image/login.png").toURI()).toPath();
+            Path baseline = Files.copy(source, root.resolve("1.png"), StandardCopyOption.REPLACE_EXISTING);
+            Path current = Files.copy(source, root.resolve("2.png"), StandardCopyOption.REPLACE_EXISTING);
+
+            PerceptualHashStore store = new PerceptualHashStore();
+            assertNull(store.get(baseline));
+            PerceptualHash baselineHash = screenshotManager.getPerceptualHash(baseline.toFile(), store);
+            PerceptualHash currentHash = screenshotManager.getPerceptualHash(current.toFile(), store);
+            assertEquals(0, baselineHash.getDistance(currentHash));
+
+            // hashes are saved next to screenshots
+            store.flush();
+            assertTrue(Files.exists(root.resolve(PerceptualHashStore.PHASH_FILENAME)));
+            // saved hash files are released and read again on demand
+            assertEquals(0, store.getLoadedCount());
+            assertEquals(baselineHash.hash, store.get(baseline).hash);
+            PerceptualHash saved = new PerceptualHashStore().get(baseline);
+            assertNotNull(saved);
+            assertEquals(baselineHash.hash, saved.hash);
+        }finally{
+            for(File file : root.toFile().listFiles()){
+                Files.delete(file.toPath());
+            }
+            Files.delete(root);
+        }
+    }
+
 }
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Level;
+
+import com.salesforce.cte.common.TestAdvisorResult;
+import com.salesforce.cte.common.TestEvent;
+import com.salesforce.cte.common.TestEventType;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ScreenshotStoreTest {
+
+    private Path root;
+    private Registry registry;
+
+    @Before
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("testadvisor");
+        registry = new Registry(root);
+    }
+
+    @Test
+    public void testAddTestRun() throws IOException{
+        Path testrun1 = createTestRun("TestRun-20220101-100000", new byte[]{1,2,3});
+        Path testrun2 = createTestRun("TestRun-20220101-110000", new byte[]{1,2,3});
+        ScreenshotStore store = registry.getScreenshotStore();
+
+        assertEquals(1, store.addTestRun(registry, testrun1));
+        assertEquals(1, store.addTestRun(registry, testrun2));
+        assertTrue(Files.exists(testrun1.resolve(ScreenshotStore.MANIFEST_FILENAME)));
+
+        String hash = store.getHash(testrun1.resolve("1.png"));
+        assertEquals(hash, store.getHash(testrun2.resolve("1.png")));
+        assertTrue(Files.isSameFile(store.getObjectPath(hash), testrun2.resolve("1.png")));
+        assertTrue(Files.isSameFile(testrun1.resolve("1.png"), testrun2.resolve("1.png")));
+        assertTrue(store.isIdentical(testrun1.resolve("1.png"), testrun2.resolve("1.png")));
+    }
+
+    @Test
+    public void testIsIdentical() throws IOException{
+        Path testrun1 = createTestRun("TestRun-20220101-100000", new byte[]{1,2,3});
+        Path testrun2 = createTestRun("TestRun-20220101-110000", new byte[]{1,2,4});
+        ScreenshotStore store = registry.getScreenshotStore();
+        store.addTestRun(registry, testrun1);
+
+        assertFalse(store.isIdentical(testrun1.resolve("1.png"), testrun2.resolve("1.png")));
+        //a new store instance reads hash from manifest
+        ScreenshotStore newStore = new ScreenshotStore(store.getStoreRoot());
+        assertEquals(store.getHash(testrun1.resolve("1.png")), newStore.getHash(testrun1.resolve("1.png")));
+    }
+
+    private Path createTestRun(String testRunId, byte[] content) throws IOException{
+        Path testrun = root.resolve(testRunId);
+        Files.createDirectories(testrun);
+        Path screenshot = testrun.resolve("1.png");
+        Files.write(screenshot, content);
+
+        TestAdvisorResult result = RegistryHelper.createTestAdvisorResult();
+        result.getTestCaseExecutionList().get(0).getEventList().add(new TestEvent(TestEventType.AUTOMATION, "", 
+                                Level.INFO.toString(), "click", "", "locator", 1, screenshot.toFile()));
+        RegistryHelper.saveTestAdvisorResult(testrun, result);
+        return testrun;
+    }
+
+    @After
+    public void teardown() throws IOException{
+        removeDirectory(root.toFile());
+    }
+
+    private void removeDirectory(File dir) {
+        if (dir.isDirectory()) {
+            File[] files = dir.listFiles();
+            if (files != null && files.length > 0) {
+                for (File aFile : files) {
+                    removeDirectory(aFile);
+                }
+            }
+            dir.delete();
+        } else {
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+
+import com.salesforce.cte.common.TestAdvisorResult;
+import com.salesforce.cte.common.TestCaseExecution;
+import com.salesforce.cte.common.TestStatus;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestHistoryIndexTest {
+
+    private Path root;
+
+    @Before
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("testadvisor");
+    }
+
+    @Test
+    public void testFindLastPassed() throws IOException{
+        TestHistoryIndex index = new TestHistoryIndex(root);
+        // add test runs out of order
+        addTestRun(index, "TestRun-20220101-120000", TestStatus.FAILED);
+        addTestRun(index, "TestRun-20220101-100000", TestStatus.PASSED);
+        addTestRun(index, "TestRun-20220101-110000", TestStatus.PASSED);
+
+        assertEquals("TestRun-20220101-110000", 
+            index.findLastPassed("testcase", TestRunId.parse("TestRun-20220101-130000").getCreatedTime()).getTestRunId());
+        assertEquals("TestRun-20220101-100000", 
+            index.findLastPassed("testcase", TestRunId.parse("TestRun-20220101-110000").getCreatedTime()).getTestRunId());
+        assertNull(index.findLastPassed("testcase", TestRunId.parse("TestRun-20220101-100000").getCreatedTime()));
+        assertNull(index.findLastPassed("unknown", TestRunId.parse("TestRun-20220101-130000").getCreatedTime()));
+        assertEquals(3, index.getHistory("testcase").size());
+    }
+
+    @Test
+    public void testIndexPersisted() throws IOException{
+        TestHistoryIndex index = new TestHistoryIndex(root);
+        addTestRun(index, "TestRun-20220101-100000", TestStatus.PASSED);
+        addTestRun(index, "TestRun-20220101-110000", TestStatus.FAILED);
+
+        TestHistoryIndex index2 = new TestHistoryIndex(root);
+        assertTrue(index2.isIndexed("TestRun-20220101-100000"));
+        assertTrue(index2.isIndexed("TestRun-20220101-110000"));
+        assertFalse(index2.isIndexed("TestRun-20220101-120000"));
+        assertEquals("TestRun-20220101-100000", 
+            index2.findLastPassed("testcase", TestRunId.parse("TestRun-20220101-120000").getCreatedTime()).getTestRunId());
+    }
+
+    @Test
+    public void testIncompleteTestRunIgnored() throws IOException{
+        TestHistoryIndex index = new TestHistoryIndex(root);
+        addTestRun(index, "TestRun-20220101-100000", TestStatus.PASSED);
+        // simulate a test run which was not completely written
+        Files.write(root.resolve(TestHistoryIndex.HISTORY_FILENAME), 
+            "TestRun-20220101-110000\tPASSED\ttestcase\n".getBytes(), java.nio.file.StandardOpenOption.APPEND);
+
+        TestHistoryIndex index2 = new TestHistoryIndex(root);
+        assertFalse(index2.isIndexed("TestRun-20220101-110000"));
+        assertEquals("TestRun-20220101-100000", 
+            index2.findLastPassed("testcase", TestRunId.parse("TestRun-20220101-120000").getCreatedTime()).getTestRunId());
+    }
+
+    private void addTestRun(TestHistoryIndex index, String testRunId, TestStatus status) throws IOException{
+        TestAdvisorResult result = new TestAdvisorResult();
+        TestCaseExecution testCaseExecution = new TestCaseExecution();
+        testCaseExecution.setTestName("testcase");
+        testCaseExecution.setStartTime(Instant.now());
+        testCaseExecution.setTestStatus(status);
+        result.getTestCaseExecutionList().add(testCaseExecution);
+        index.addTestRun(testRunId, TestRunId.parse(testRunId).getCreatedTime(), result);
+    }
+
+    @After
+    public void teardown() throws IOException{
+        removeDirectory(root.toFile());
+    }
+
+    private void removeDirectory(File dir) {
+        if (dir.isDirectory()) {
+            File[] files = dir.listFiles();
+            if (files != null && files.length > 0) {
+                for (File aFile : files) {
+                    removeDirectory(aFile);
+                }
+            }
+            dir.delete();
+        } else {
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.salesforce.cte.adapter.TestAdvisorTestRun;
+import com.salesforce.cte.common.TestAdvisorResult;
+import com.salesforce.cte.helper.ProcessException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestResultCacheTest {
+
+    private Path root;
+
+    @Before
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("testadvisor");
+    }
+
+    @Test
+    public void testCacheHit() throws IOException, ProcessException{
+        Path testrun = createTestRun("TestRun-20220101-100000");
+        TestResultCache cache = new TestResultCache(1024L * 1024);
+
+        TestAdvisorResult result = cache.getTestAdvisorResult(testrun.resolve(Registry.TESTADVISOR_TEST_RESULT));
+        assertSame(result, cache.getTestAdvisorResult(testrun.resolve(Registry.TESTADVISOR_TEST_RESULT)));
+        TestAdvisorTestRun advisorRun = cache.getTestAdvisorTestRun(testrun.resolve(Registry.TESTADVISOR_TEST_RESULT));
+        assertSame(advisorRun, cache.getTestAdvisorTestRun(testrun.resolve(Registry.TESTADVISOR_TEST_RESULT)));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testChangedFileReloaded() throws IOException{
+        Path testrun = createTestRun("TestRun-20220101-100000");
+        TestResultCache cache = new TestResultCache(1024L * 1024);
+
+        TestAdvisorResult result = cache.getTestAdvisorResult(testrun.resolve(Registry.TESTADVISOR_TEST_RESULT));
+        TestAdvisorResult newResult = RegistryHelper.createTestAdvisorResult();
+        newResult.setVersion("2.0.0-SNAPSHOT");
+        RegistryHelper.saveTestAdvisorResult(testrun, newResult);
+
+        TestAdvisorResult result2 = cache.getTestAdvisorResult(testrun.resolve(Registry.TESTADVISOR_TEST_RESULT));
+        assertNotSame(result, result2);
+        assertEquals("2.0.0-SNAPSHOT", result2.getVersion());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws IOException{
+        Path testrun1 = createTestRun("TestRun-20220101-100000");
+        Path testrun2 = createTestRun("TestRun-20220101-110000");
+        long fileSize = Files.size(testrun1.resolve(Registry.TESTADVISOR_TEST_RESULT));
+        // room for a single parsed test result only
+        TestResultCache cache = new TestResultCache(fileSize * 6);
+
+        TestAdvisorResult result1 = cache.getTestAdvisorResult(testrun1.resolve(Registry.TESTADVISOR_TEST_RESULT));
+        cache.getTestAdvisorResult(testrun2.resolve(Registry.TESTADVISOR_TEST_RESULT));
+        assertNotSame(result1, cache.getTestAdvisorResult(testrun1.resolve(Registry.TESTADVISOR_TEST_RESULT)));
+        assertEquals(0, cache.getHitCount());
+    }
+
+    private Path createTestRun(String testRunId) throws IOException{
+        Path testrun = root.resolve(testRunId);
+        Files.createDirectories(testrun);
+        RegistryHelper.saveTestAdvisorResult(testrun, RegistryHelper.createTestAdvisorResult());
+        return testrun;
+    }
+
+    @After
+    public void teardown() throws IOException{
+        removeDirectory(root.toFile());
+    }
+
+    private void removeDirectory(File dir) {
+        if (dir.isDirectory()) {
+            File[] files = dir.listFiles();
+            if (files != null && files.length > 0) {
+                for (File aFile : files) {
+                    removeDirectory(aFile);
+                }
+            }
+            dir.delete();
+        } else {
+            dir.delete();
+        }
+    }
+}
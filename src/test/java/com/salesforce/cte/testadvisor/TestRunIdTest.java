@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Paths;
+import java.time.Instant;
+
+import org.junit.Test;
+
+public class TestRunIdTest {
+
+    @Test
+    public void testParse(){
+        TestRunId testRunId = TestRunId.parse("TestRun-20220102-030405");
+        assertNotNull(testRunId);
+        assertEquals("TestRun-20220102-030405", testRunId.getId());
+        assertEquals(Instant.parse("2022-01-02T03:04:05Z"), testRunId.getCreatedTime());
+
+        assertNull(TestRunId.parse("TestRun-20221302-030405"));
+        assertNull(TestRunId.parse("TestRun-2022010-030405"));
+        assertNull(TestRunId.parse("/registry/TestRun-20220102-030405"));
+        assertNull(TestRunId.parse(null));
+    }
+
+    @Test
+    public void testFromPath(){
+        assertEquals("TestRun-20220102-030405", 
+            TestRunId.fromPath(Paths.get("registry","TestRun-20220102-030405")).getId());
+        assertEquals("TestRun-20220102-030405", 
+            TestRunId.fromPath(Paths.get("registry","TestRun-20220102-030405", Registry.SIGNAL_FILENAME)).getId());
+        assertNull(TestRunId.fromPath(Paths.get("registry","other")));
+        assertNull(TestRunId.fromPath(null));
+    }
+
+    @Test
+    public void testCompare(){
+        TestRunId testRunId1 = TestRunId.parse("TestRun-20220102-030405");
+        TestRunId testRunId2 = TestRunId.parse("TestRun-20220102-030406");
+        assertTrue(testRunId1.compareTo(testRunId2) < 0);
+        assertTrue(testRunId2.compareTo(testRunId1) > 0);
+        assertEquals(0, testRunId1.compareTo(TestRunId.parse("TestRun-20220102-030405")));
+        assertEquals(testRunId1, TestRunId.parse("TestRun-20220102-030405"));
+        assertNotNull(TestRunId.now());
+    }
+}
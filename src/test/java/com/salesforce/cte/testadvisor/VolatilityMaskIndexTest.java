@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2021, salesforce.com, inc.
+ * All rights reserved.
+ * SPDX-License-Identifier: BSD-3-Clause
+ * For full license text, see the LICENSE file in the repo root or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.cte.testadvisor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.github.romankh3.image.comparison.model.Rectangle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class VolatilityMaskIndexTest {
+
+    private static final String TEST_CASE = "com.salesforce.test.Login.testLogin";
+
+    private Path root;
+
+    @Before
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("testadvisor");
+    }
+
+    @Test
+    public void testLearnVolatileArea() throws IOException{
+        VolatilityMaskIndex index = new VolatilityMaskIndex(root);
+        // clock in top right corner changes in every run
+        List<Rectangle> diffAreas = Arrays.asList(new Rectangle(70, 5, 90, 20));
+        for(int i = 0; i < VolatilityMaskIndex.MIN_OBSERVATIONS - 2; i++){
+            index.addComparison(TEST_CASE, "step1", 100, 50, diffAreas);
+            assertNull(index.getExcludedAreas(TEST_CASE, "step1"));
+        }
+        index.addIdenticalComparison(TEST_CASE, "step1");
+        assertNull(index.getExcludedAreas(TEST_CASE, "step1"));
+        index.addComparison(TEST_CASE, "step1", 100, 50, diffAreas);
+
+        List<Rectangle> areas = index.getExcludedAreas(TEST_CASE, "step1");
+        assertEquals(1, areas.size());
+        assertEquals(64, (int) areas.get(0).getMinPoint().getX());
+        assertEquals(0, (int) areas.get(0).getMinPoint().getY());
+        assertEquals(95, (int) areas.get(0).getMaxPoint().getX());
+        assertEquals(31, (int) areas.get(0).getMaxPoint().getY());
+        assertNull(index.getExcludedAreas(TEST_CASE, "step2"));
+
+        // masks are saved on flush
+        index.flush();
+        VolatilityMaskIndex reloaded = new VolatilityMaskIndex(root);
+        assertEquals(1, reloaded.getExcludedAreas(TEST_CASE, "step1").size());
+        assertNull(reloaded.getExcludedAreas("com.salesforce.test.Login.testLogout", "step1"));
+    }
+
+    @Test
+    public void testScreenshotSizeChanged() throws IOException{
+        VolatilityMaskIndex index = new VolatilityMaskIndex(root);
+        List<Rectangle> diffAreas = Arrays.asList(new Rectangle(0, 0, 10, 10));
+        for(int i = 0; i < VolatilityMaskIndex.MIN_OBSERVATIONS; i++){
+            index.addComparison(TEST_CASE, "step1", 100, 50, diffAreas);
+        }
+        assertEquals(1, index.getExcludedAreas(TEST_CASE, "step1").size());
+
+        // learning starts again with new screenshot size
+        index.addComparison(TEST_CASE, "step1", 200, 50, new ArrayList<>());
+        assertNull(index.getExcludedAreas(TEST_CASE, "step1"));
+    }
+
+    @Test
+    public void testVolatileAreaDecay() throws IOException{
+        VolatilityMaskIndex index = new VolatilityMaskIndex(root);
+        List<Rectangle> diffAreas = Arrays.asList(new Rectangle(0, 0, 10, 10));
+        for(int i = 0; i < VolatilityMaskIndex.MIN_OBSERVATIONS; i++){
+            index.addComparison(TEST_CASE, "step1", 100, 50, diffAreas);
+        }
+        assertEquals(1, index.getExcludedAreas(TEST_CASE, "step1").size());
+
+        // volatile areas are compared again in sample comparisons
+        for(int i = VolatilityMaskIndex.MIN_OBSERVATIONS; i < VolatilityMaskIndex.SAMPLE_INTERVAL - 1; i++){
+            assertFalse(index.isSampleComparison(TEST_CASE, "step1"));
+            index.addComparison(TEST_CASE, "step1", 100, 50, new ArrayList<>());
+        }
+        assertTrue(index.isSampleComparison(TEST_CASE, "step1"));
+        index.addComparison(TEST_CASE, "step1", 100, 50, new ArrayList<>());
+        assertFalse(index.isSampleComparison(TEST_CASE, "step1"));
+
+        // identical screenshots show volatile area stopped changing
+        for(int i = 0; i < VolatilityMaskIndex.MIN_OBSERVATIONS; i++){
+            index.addIdenticalComparison(TEST_CASE, "step1");
+        }
+        assertNull(index.getExcludedAreas(TEST_CASE, "step1"));
+    }
+
+    @Test
+    public void testMergeOnFlush() throws IOException{
+        VolatilityMaskIndex index1 = new VolatilityMaskIndex(root);
+        VolatilityMaskIndex index2 = new VolatilityMaskIndex(root);
+        List<Rectangle> diffAreas = Arrays.asList(new Rectangle(0, 0, 10, 10));
+        for(int i = 0; i < VolatilityMaskIndex.MIN_OBSERVATIONS - 2; i++){
+            index1.addComparison(TEST_CASE, "step1", 100, 50, diffAreas);
+        }
+        index2.addComparison(TEST_CASE, "step1", 100, 50, diffAreas);
+        index2.addComparison(TEST_CASE, "step1", 100, 50, diffAreas);
+        assertNull(index1.getExcludedAreas(TEST_CASE, "step1"));
+        assertNull(index2.getExcludedAreas(TEST_CASE, "step1"));
+
+        // counts of both indexes are kept
+        index1.flush();
+        index2.flush();
+        assertEquals(1, index2.getExcludedAreas(TEST_CASE, "step1").size());
+        assertEquals(1, new VolatilityMaskIndex(root).getExcludedAreas(TEST_CASE, "step1").size());
+    }
+
+    @After
+    public void teardown() throws IOException{
+        removeDirectory(root.toFile());
+    }
+
+    private void removeDirectory(File dir) {
+        if (dir.isDirectory()) {
+            File[] files = dir.listFiles();
+            if (files != null && files.length > 0) {
+                for (File aFile : files) {
+                    removeDirectory(aFile);
+                }
+            }
+            dir.delete();
+        } else {
+            dir.delete();
+        }
+    }
+}